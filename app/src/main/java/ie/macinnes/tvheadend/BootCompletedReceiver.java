@@ -20,6 +20,9 @@ public class BootCompletedReceiver extends BroadcastReceiver {
             Log.d(TAG, "Starting TVHeadend Services");
             context.startService(new Intent(context, TvInputService.class));
             context.startService(new Intent(context, EpgSyncService.class));
+
+            // Have the connection set up and authenticated before the first tune
+            HtspConnectionManager.getInstance(context).warmUp();
         }
     }
 }
@@ -39,18 +39,30 @@ public class Constants {
 
     // Audio and Video Preferences Keys and Values
     public static final String KEY_BUFFER_PLAYBACK_MS = "buffer_playback_ms";
+    public static final String KEY_BUFFER_BACKEND = "buffer_backend";
+    public static final String KEY_BUFFER_OVERFLOW_POLICY = "buffer_overflow_policy";
     public static final String KEY_AUDIO_PASSTHROUGH_DECODER_ENABLED = "audio_passthrough_decodeder_enabled";
     public static final String KEY_AUDIO_TUNNELING_ENABLED = "audio_tunneling_enabled";
+    public static final String KEY_VIDEO_TUNNELING_ENABLED = "video_tunneling_enabled";
     public static final String KEY_FFMPEG_AUDIO_ENABLED = "ffmpeg_audio_enabled";
     public static final String KEY_CAPTIONS_APPLY_EMBEDDED_STYLES = "captions_apply_embedded_styles";
+    public static final String KEY_SEAMLESS_CHANNEL_SWITCH_ENABLED = "seamless_channel_switch_enabled";
 
     // Advanced Preferences Keys and Values
     public static final String KEY_SHIELD_WORKAROUND_ENABLED = "shield_workaround_enabled";
     public static final String KEY_TUNER_COUNT = "tuner_count";
     public static final String KEY_DEBUG_TEXT_VIEW_ENABLED = "debug_text_view_enabled";
     public static final String KEY_TIMESHIFT_ENABLED = "timeshift_enabled";
+    public static final String KEY_TIMESHIFT_STORAGE = "timeshift_storage";
+    public static final String KEY_LOCAL_TIMESHIFT_SIZE = "local_timeshift_size";
     public static final String KEY_DVR_ENABLED = "dvr_enabled";
     public static final String KEY_HTSP_STREAM_PROFILE = "htsp_stream_profile";
+    public static final String KEY_HTSP_PIP_STREAM_PROFILE = "htsp_pip_stream_profile";
+    public static final String KEY_HTSP_DIRECT_MEDIA_SOURCE_ENABLED = "htsp_direct_media_source_enabled";
+    public static final String KEY_STANDBY_SUBSCRIPTION_COUNT = "standby_subscription_count";
+    public static final String KEY_RECORDING_READ_BLOCK_SIZE = "recording_read_block_size";
+    public static final String KEY_RECORDING_READ_AHEAD_WINDOW = "recording_read_ahead_window";
+    public static final String KEY_RECORDING_CACHE_SIZE = "recording_cache_size";
 
     // Bundle and Preference Keys
     public static final String KEY_APP_VERSION = "APP-VERSION";
@@ -0,0 +1,587 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ie.macinnes.htsp.HtspConnection;
+import ie.macinnes.htsp.HtspMessage;
+import ie.macinnes.htsp.HtspNotConnectedException;
+import ie.macinnes.htsp.SimpleHtspConnection;
+import ie.macinnes.htsp.tasks.Authenticator;
+import ie.macinnes.tvheadend.account.AccountUtils;
+
+/**
+ * Owns the one HTSP connection shared by everything in the process which talks to the server
+ * using the active account, i.e. the TV input and the EPG sync.
+ *
+ * The connection is reference counted, it's opened by the first acquire() and closed by the last
+ * release(). If the account, or its credentials, have changed by the time of an acquire() or
+ * warmUp(), the old connection is closed and a new one opened. Holders of the old connection can
+ * check for this with isCurrent(), and acquire the new one.
+ *
+ * Listeners which act on the connection being authenticated, such as the EPG sync, should be
+ * registered here rather than on the connection. A listener added after the connection has
+ * authenticated is told so straight away, rather than waiting for an authentication which has
+ * already happened. Subscribers are the exception, they are registered on the connection directly,
+ * as they only need to hear about re-authentication after a reconnect, and must not be told to
+ * resubscribe before they have subscribed.
+ *
+ * The connection can also be warmed up ahead of need, e.g. at boot or when the screen comes on,
+ * so the first tune doesn't have to wait for the connection to be set up and authenticated. While
+ * open, a keepalive request is sent periodically, so idle connections aren't dropped along the way.
+ *
+ * If the connection is lost while it's in use, it's restarted with a backoff. The same connection
+ * instance is restarted, so everything holding it, and every listener registered on it, carries on
+ * as before once it has re-authenticated.
+ */
+public class HtspConnectionManager implements HtspConnection.Listener, Authenticator.Listener {
+    private static final String TAG = HtspConnectionManager.class.getName();
+
+    // How long a warm up keeps the connection open, if nothing else acquires it
+    private static final long WARM_UP_HOLD_MS = 10 * 60 * 1000;
+
+    private static final long KEEPALIVE_INTERVAL_MS = 60 * 1000;
+    private static final int KEEPALIVE_TIMEOUT_MS = 5000;
+
+    private static final long RECONNECT_MIN_DELAY_MS = 1000;
+    private static final long RECONNECT_MAX_DELAY_MS = 30000;
+
+    private static HtspConnectionManager sInstance;
+
+    private final Context mContext;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final List<Authenticator.Listener> mAuthenticationListeners = new ArrayList<>();
+    private final List<PendingRunnable> mPendingRunnables = new ArrayList<>();
+    private SimpleHtspConnection mConnection;
+    private AccountDetails mAccountDetails;
+    private Authenticator.State mAuthenticationState;
+    private boolean mIsAsyncMetadataEnabled = false;
+    private int mReferenceCount = 0;
+    private boolean mIsWarmedUp = false;
+
+    private HtspConnection.State mConnectionState;
+    private boolean mIsRestarting = false;
+    private long mReconnectDelayMs = RECONNECT_MIN_DELAY_MS;
+
+    private HandlerThread mKeepaliveThread;
+    private Handler mKeepaliveHandler;
+
+    private final Runnable mKeepaliveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            sendKeepalive();
+        }
+    };
+
+    private final Runnable mReconnectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            reconnect();
+        }
+    };
+
+    private final Runnable mEndWarmUpRunnable = new Runnable() {
+        @Override
+        public void run() {
+            endWarmUp();
+        }
+    };
+
+    private HtspConnectionManager(@NonNull Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    @NonNull
+    public static synchronized HtspConnectionManager getInstance(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new HtspConnectionManager(context);
+        }
+
+        return sInstance;
+    }
+
+    /**
+     * Returns the shared connection, opening it if needed. Every successful call must be matched
+     * by a call to release().
+     *
+     * @return the connection, or null if there is no account configured
+     */
+    @Nullable
+    public synchronized SimpleHtspConnection acquire() {
+        final Account account = AccountUtils.getActiveAccount(mContext);
+
+        if (account == null) {
+            Log.i(TAG, "No account configured, unable to open HTSP connection");
+            return null;
+        }
+
+        if (mConnection == null) {
+            openConnection(new AccountDetails(mContext, account));
+        } else {
+            reopenIfChanged(account);
+        }
+
+        mReferenceCount++;
+        Log.d(TAG, "Acquired HTSP connection, " + mReferenceCount + " references");
+
+        return mConnection;
+    }
+
+    /**
+     * Opens the connection ahead of need, and keeps it open for a while even if nothing acquires
+     * it. Calling this again while warm extends the hold, and checks the connection is alive.
+     */
+    public synchronized void warmUp() {
+        if (!mIsWarmedUp) {
+            if (acquire() == null) {
+                return;
+            }
+
+            Log.d(TAG, "Warming up HTSP connection");
+            mIsWarmedUp = true;
+        } else {
+            final Account account = AccountUtils.getActiveAccount(mContext);
+            if (account != null) {
+                reopenIfChanged(account);
+            }
+
+            // Coming back from standby, find out sooner rather than later if the connection died
+            mKeepaliveHandler.removeCallbacks(mKeepaliveRunnable);
+            mKeepaliveHandler.post(mKeepaliveRunnable);
+        }
+
+        mMainHandler.removeCallbacks(mEndWarmUpRunnable);
+        mMainHandler.postDelayed(mEndWarmUpRunnable, WARM_UP_HOLD_MS);
+    }
+
+    public synchronized boolean isAuthenticated() {
+        return mAuthenticationState == Authenticator.State.AUTHENTICATED;
+    }
+
+    /**
+     * Returns false if connection has since been replaced, after a change to the account.
+     */
+    public synchronized boolean isCurrent(@Nullable SimpleHtspConnection connection) {
+        return connection != null && connection == mConnection;
+    }
+
+    /**
+     * Returns true the first time it's called after the connection has authenticated, and false
+     * after that, until the connection re-authenticates. The server only accepts
+     * enableAsyncMetadata once per connection, so whoever gets true sends it.
+     */
+    public synchronized boolean claimAsyncMetadata() {
+        if (!isAuthenticated() || mIsAsyncMetadataEnabled) {
+            return false;
+        }
+
+        mIsAsyncMetadataEnabled = true;
+        return true;
+    }
+
+    /**
+     * Posts runnable to handler once the connection is authenticated, straight away if it is
+     * already. If authentication takes longer than timeoutMs, runnable is posted regardless, so
+     * the caller gets to handle the failure.
+     */
+    public synchronized void postWhenAuthenticated(@NonNull Handler handler, @NonNull Runnable runnable, long timeoutMs) {
+        if (isAuthenticated()) {
+            handler.post(runnable);
+            return;
+        }
+
+        Log.d(TAG, "Queueing work until the HTSP connection is authenticated");
+        final PendingRunnable pendingRunnable = new PendingRunnable(handler, runnable);
+        mPendingRunnables.add(pendingRunnable);
+        handler.postDelayed(pendingRunnable, timeoutMs);
+    }
+
+    /**
+     * Forgets about runnable, if it's still waiting for authentication. Callers must also remove
+     * it from their handler, in case it was posted straight away.
+     */
+    public synchronized void removePending(@NonNull Runnable runnable) {
+        for (int i = mPendingRunnables.size() - 1; i >= 0; i--) {
+            final PendingRunnable pendingRunnable = mPendingRunnables.get(i);
+
+            if (pendingRunnable.mRunnable == runnable) {
+                pendingRunnable.cancel();
+                mPendingRunnables.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Releases a reference to connection, as returned by acquire().
+     */
+    public void release(@NonNull SimpleHtspConnection connection) {
+        synchronized (this) {
+            if (connection != mConnection) {
+                // Replaced after a change to the account, and stopped at the time. Its references
+                // were carried over to the current connection.
+                Log.d(TAG, "Releasing replaced HTSP connection");
+                connection = mConnection;
+            }
+
+            if (mReferenceCount == 0) {
+                Log.w(TAG, "Attempted to release HTSP connection with no references");
+                return;
+            }
+
+            mReferenceCount--;
+            Log.d(TAG, "Released HTSP connection, " + mReferenceCount + " references");
+
+            if (mReferenceCount > 0) {
+                return;
+            }
+
+            detachConnection();
+        }
+
+        stopConnection(connection);
+    }
+
+    public synchronized void addAuthenticationListener(@NonNull Authenticator.Listener listener) {
+        if (mAuthenticationListeners.contains(listener)) {
+            Log.w(TAG, "Attempted to add duplicate authentication listener");
+            return;
+        }
+
+        mAuthenticationListeners.add(listener);
+
+        if (mAuthenticationState == Authenticator.State.AUTHENTICATED) {
+            // Too late to hear about it from the connection, catch the listener up
+            listener.onAuthenticationStateChange(mAuthenticationState);
+        }
+    }
+
+    public synchronized void removeAuthenticationListener(@NonNull Authenticator.Listener listener) {
+        if (!mAuthenticationListeners.remove(listener)) {
+            Log.w(TAG, "Attempted to remove non existing authentication listener");
+        }
+    }
+
+    // HtspConnection.Listener Methods
+    @Override
+    public Handler getHandler() {
+        return null;
+    }
+
+    @Override
+    public void setConnection(@NonNull HtspConnection connection) {
+        // Don't care about this event here
+    }
+
+    @Override
+    public synchronized void onConnectionStateChange(@NonNull HtspConnection.State state) {
+        if (state == HtspConnection.State.FAILED || state == HtspConnection.State.CLOSED) {
+            // A new connection on the server side, which knows nothing of the old one
+            mIsAsyncMetadataEnabled = false;
+        }
+
+        mConnectionState = state;
+
+        if (mConnection == null || mIsRestarting
+                || (state != HtspConnection.State.FAILED && state != HtspConnection.State.CLOSED)) {
+            return;
+        }
+
+        // Lost while still in use. Restarting has to happen off the connection's own threads.
+        Log.w(TAG, "HTSP connection lost, reconnecting in " + mReconnectDelayMs + "ms");
+        mAuthenticationState = null;
+
+        mMainHandler.removeCallbacks(mReconnectRunnable);
+        mMainHandler.postDelayed(mReconnectRunnable, mReconnectDelayMs);
+        mReconnectDelayMs = Math.min(mReconnectDelayMs * 2, RECONNECT_MAX_DELAY_MS);
+    }
+
+    // Authenticator.Listener Methods
+    @Override
+    public synchronized void onAuthenticationStateChange(@NonNull Authenticator.State state) {
+        mAuthenticationState = state;
+
+        if (state != Authenticator.State.AUTHENTICATED) {
+            mIsAsyncMetadataEnabled = false;
+        }
+
+        for (Authenticator.Listener listener : new ArrayList<>(mAuthenticationListeners)) {
+            listener.onAuthenticationStateChange(state);
+        }
+
+        if (state == Authenticator.State.AUTHENTICATED) {
+            mReconnectDelayMs = RECONNECT_MIN_DELAY_MS;
+
+            for (PendingRunnable pendingRunnable : mPendingRunnables) {
+                // Replace the timeout fallback with an immediate post
+                pendingRunnable.mHandler.removeCallbacks(pendingRunnable);
+                pendingRunnable.mHandler.post(pendingRunnable);
+            }
+            mPendingRunnables.clear();
+        }
+    }
+
+    // Misc Internal Methods
+    /**
+     * Replaces the connection with a new one if the account has changed since it was opened. The
+     * references held on the old connection are carried over to the new one, while the old one is
+     * stopped, it can't get any further with the old credentials.
+     */
+    private void reopenIfChanged(@NonNull Account account) {
+        final AccountDetails accountDetails = new AccountDetails(mContext, account);
+
+        if (accountDetails.equals(mAccountDetails)) {
+            return;
+        }
+
+        Log.i(TAG, "Account changed, replacing HTSP connection");
+
+        final SimpleHtspConnection connection = mConnection;
+        detachConnection();
+
+        // Stopped off the lock we hold, as in release()
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                stopConnection(connection);
+            }
+        });
+
+        openConnection(accountDetails);
+    }
+
+    private void openConnection(@NonNull AccountDetails accountDetails) {
+        HtspConnection.ConnectionDetails connectionDetails = new HtspConnection.ConnectionDetails(
+                accountDetails.mHostname, accountDetails.mPort, accountDetails.mUsername,
+                accountDetails.mPassword, "android-tvheadend", BuildConfig.VERSION_NAME);
+
+        Log.d(TAG, "Opening HTSP connection");
+
+        mAccountDetails = accountDetails;
+        mAuthenticationState = null;
+        mConnectionState = null;
+        mIsAsyncMetadataEnabled = false;
+        mConnection = new SimpleHtspConnection(connectionDetails);
+        mConnection.addConnectionListener(this);
+        mConnection.addAuthenticationListener(this);
+        mConnection.start();
+
+        // sendMessage blocks waiting for the response, so keepalives need a thread of their own
+        mKeepaliveThread = new HandlerThread("HtspConnectionManager Keepalive Thread");
+        mKeepaliveThread.start();
+        mKeepaliveHandler = new Handler(mKeepaliveThread.getLooper());
+        mKeepaliveHandler.postDelayed(mKeepaliveRunnable, KEEPALIVE_INTERVAL_MS);
+    }
+
+    /**
+     * Forgets about the current connection, which the caller must stop once it's no longer
+     * holding the lock.
+     */
+    private void detachConnection() {
+        mConnection = null;
+        mAccountDetails = null;
+        mAuthenticationState = null;
+        mConnectionState = null;
+        mIsAsyncMetadataEnabled = false;
+        mMainHandler.removeCallbacks(mReconnectRunnable);
+
+        mKeepaliveThread.quit();
+        mKeepaliveThread = null;
+        mKeepaliveHandler = null;
+    }
+
+    /**
+     * Must not be called holding the lock, the connection's threads may be waiting on it to
+     * deliver a state change.
+     */
+    private void stopConnection(@NonNull SimpleHtspConnection connection) {
+        Log.d(TAG, "Closing HTSP connection");
+        connection.removeConnectionListener(this);
+        connection.removeAuthenticationListener(this);
+        connection.stop();
+    }
+
+    private void endWarmUp() {
+        SimpleHtspConnection connection;
+
+        synchronized (this) {
+            if (!mIsWarmedUp) {
+                return;
+            }
+
+            Log.d(TAG, "HTSP connection warm up expired");
+            mIsWarmedUp = false;
+            connection = mConnection;
+        }
+
+        release(connection);
+    }
+
+    private void reconnect() {
+        SimpleHtspConnection connection;
+
+        synchronized (this) {
+            if (mConnection == null
+                    || mConnectionState == HtspConnection.State.CONNECTING
+                    || mConnectionState == HtspConnection.State.CONNECTED) {
+                // Released, or already back by the time we got here
+                return;
+            }
+
+            connection = mConnection;
+            mIsRestarting = true;
+        }
+
+        Log.i(TAG, "Reconnecting HTSP connection");
+
+        try {
+            connection.stop();
+        } finally {
+            synchronized (this) {
+                mIsRestarting = false;
+            }
+        }
+
+        synchronized (this) {
+            if (mConnection != connection) {
+                // Released while we were stopping it
+                return;
+            }
+        }
+
+        connection.start();
+    }
+
+    private void sendKeepalive() {
+        SimpleHtspConnection connection;
+        Handler keepaliveHandler;
+
+        synchronized (this) {
+            if (mConnection == null || !isAuthenticated()) {
+                connection = null;
+            } else {
+                connection = mConnection;
+            }
+            keepaliveHandler = mKeepaliveHandler;
+        }
+
+        if (connection != null) {
+            HtspMessage request = new HtspMessage();
+            request.put("method", "getSysTime");
+
+            try {
+                if (connection.sendMessage(request, KEEPALIVE_TIMEOUT_MS) == null) {
+                    Log.w(TAG, "No response to HTSP keepalive");
+                }
+            } catch (HtspNotConnectedException e) {
+                Log.w(TAG, "Failed to send HTSP keepalive, not connected");
+            }
+        }
+
+        // Unless the connection was replaced meanwhile, and the new one has a thread of its own
+        if (keepaliveHandler != null && keepaliveHandler.getLooper() == Looper.myLooper()) {
+            keepaliveHandler.postDelayed(mKeepaliveRunnable, KEEPALIVE_INTERVAL_MS);
+        }
+    }
+
+    // Inner Classes
+    /**
+     * The parts of an account a connection is opened with, to tell when they've changed.
+     */
+    private static class AccountDetails {
+        final String mHostname;
+        final int mPort;
+        final String mUsername;
+        final String mPassword;
+
+        AccountDetails(@NonNull Context context, @NonNull Account account) {
+            final AccountManager accountManager = AccountManager.get(context);
+
+            mHostname = accountManager.getUserData(account, Constants.KEY_HOSTNAME);
+            mPort = Integer.parseInt(accountManager.getUserData(account, Constants.KEY_HTSP_PORT));
+            mUsername = account.name;
+            mPassword = accountManager.getPassword(account);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof AccountDetails)) {
+                return false;
+            }
+
+            final AccountDetails other = (AccountDetails) o;
+
+            return TextUtils.equals(mHostname, other.mHostname)
+                    && mPort == other.mPort
+                    && TextUtils.equals(mUsername, other.mUsername)
+                    && TextUtils.equals(mPassword, other.mPassword);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(new Object[]{mHostname, mPort, mUsername, mPassword});
+        }
+    }
+
+    /**
+     * Wraps a runnable queued by postWhenAuthenticated(), which is posted both as the timeout
+     * fallback and once authenticated. Whichever runs first cancels the other, and takes it out of
+     * the queue, so it never runs twice, e.g. again after a later reconnect.
+     */
+    private class PendingRunnable implements Runnable {
+        final Handler mHandler;
+        final Runnable mRunnable;
+        private boolean mIsDone = false;
+
+        PendingRunnable(@NonNull Handler handler, @NonNull Runnable runnable) {
+            mHandler = handler;
+            mRunnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            synchronized (HtspConnectionManager.this) {
+                if (mIsDone) {
+                    return;
+                }
+                cancel();
+                mPendingRunnables.remove(this);
+            }
+
+            mRunnable.run();
+        }
+
+        void cancel() {
+            mIsDone = true;
+            mHandler.removeCallbacks(this);
+        }
+    }
+}
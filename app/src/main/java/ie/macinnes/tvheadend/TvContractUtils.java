@@ -16,6 +16,7 @@ package ie.macinnes.tvheadend;
 
 import android.content.ComponentName;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.Context;
 import android.database.Cursor;
 import android.media.tv.TvContract;
@@ -26,12 +27,23 @@ import android.support.annotation.RequiresApi;
 import android.util.Log;
 import android.util.SparseArray;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
 public class TvContractUtils {
     private static final String TAG = TvContractUtils.class.getName();
 
     public static final long INVALID_CHANNEL_ID = -1;
     private static final long INVALID_RECORDED_PROGRAM_ID = -1;
 
+    // Container of a recording, as stored in RecordedPrograms.COLUMN_INTERNAL_PROVIDER_FLAG1
+    public static final int RECORDING_CONTAINER_UNKNOWN = 0;
+    public static final int RECORDING_CONTAINER_TS = 1;
+    public static final int RECORDING_CONTAINER_MATROSKA = 2;
+    public static final int RECORDING_CONTAINER_MP4 = 3;
+
     private TvContractUtils() {
         throw new IllegalAccessError("Utility class");
     }
@@ -105,6 +117,87 @@ public class TvContractUtils {
         return null;
     }
 
+    /**
+     * Returns the TVHeadend channel IDs of the channels either side of the given channel, ordered
+     * by display number. The nearest channels come first, alternating between the next and the
+     * previous channel, wrapping around at either end of the list.
+     */
+    public static List<Integer> getNeighbouringTvhChannelIds(Context context, Uri channelUri, int count) {
+        ContentResolver resolver = context.getContentResolver();
+
+        Uri channelsUri = TvContract.buildChannelsUriForInput(TvContractUtils.getInputId());
+        String[] projection = {Channels._ID, Channels.COLUMN_ORIGINAL_NETWORK_ID, Channels.COLUMN_DISPLAY_NUMBER};
+
+        final long rowId = ContentUris.parseId(channelUri);
+
+        List<String[]> channels = new ArrayList<>();
+
+        try (Cursor cursor = resolver.query(channelsUri, projection, null, null, null)) {
+            while (cursor != null && cursor.moveToNext()) {
+                channels.add(new String[] {
+                        cursor.getString(0), cursor.getString(1), cursor.getString(2)});
+            }
+        }
+
+        Collections.sort(channels, new Comparator<String[]>() {
+            @Override
+            public int compare(String[] a, String[] b) {
+                return compareDisplayNumbers(a[2], b[2]);
+            }
+        });
+
+        int current = -1;
+        for (int i = 0; i < channels.size(); i++) {
+            if (Long.parseLong(channels.get(i)[0]) == rowId) {
+                current = i;
+                break;
+            }
+        }
+
+        List<Integer> neighbours = new ArrayList<>();
+
+        if (current == -1) {
+            return neighbours;
+        }
+
+        count = Math.min(count, channels.size() - 1);
+
+        for (int distance = 1; neighbours.size() < count; distance++) {
+            neighbours.add(Integer.parseInt(channels.get((current + distance) % channels.size())[1]));
+
+            if (neighbours.size() < count) {
+                final int previous = (current - distance + channels.size()) % channels.size();
+                neighbours.add(Integer.parseInt(channels.get(previous)[1]));
+            }
+        }
+
+        return neighbours;
+    }
+
+    /**
+     * Compares display numbers such as "1", "1.2" or "101-3" numerically, part by part.
+     */
+    private static int compareDisplayNumbers(String a, String b) {
+        final String[] aParts = (a != null ? a : "").split("\\D+");
+        final String[] bParts = (b != null ? b : "").split("\\D+");
+
+        for (int i = 0; i < Math.min(aParts.length, bParts.length); i++) {
+            int result;
+
+            try {
+                result = Long.compare(Long.parseLong(aParts[i]), Long.parseLong(bParts[i]));
+            } catch (NumberFormatException e) {
+                result = aParts[i].compareTo(bParts[i]);
+            }
+
+            if (result != 0) {
+                return result;
+            }
+        }
+
+        return aParts.length - bParts.length;
+    }
+
     public static SparseArray<Uri> buildChannelUriMap(Context context) {
         ContentResolver resolver = context.getContentResolver();
 
@@ -272,6 +365,42 @@ public class TvContractUtils {
         return null;
     }
 
+    /**
+     * Guesses the container of a recording from the file name TVHeadend wrote it to.
+     */
+    public static int getRecordingContainer(String filename) {
+        if (filename == null) {
+            return RECORDING_CONTAINER_UNKNOWN;
+        }
+
+        final String lowerFilename = filename.toLowerCase();
+
+        if (lowerFilename.endsWith(".ts")) {
+            return RECORDING_CONTAINER_TS;
+        } else if (lowerFilename.endsWith(".mkv") || lowerFilename.endsWith(".mka") || lowerFilename.endsWith(".webm")) {
+            return RECORDING_CONTAINER_MATROSKA;
+        } else if (lowerFilename.endsWith(".mp4")) {
+            return RECORDING_CONTAINER_MP4;
+        }
+
+        return RECORDING_CONTAINER_UNKNOWN;
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.N)
+    public static int getRecordingContainerFromRecordedProgramUri(Context context, Uri recordedProgramUri) {
+        ContentResolver resolver = context.getContentResolver();
+
+        String[] projection = {TvContract.RecordedPrograms._ID, TvContract.RecordedPrograms.COLUMN_INTERNAL_PROVIDER_FLAG1};
+
+        try (Cursor cursor = resolver.query(recordedProgramUri, projection, null,null, null)) {
+            if (cursor != null && cursor.moveToNext() && !cursor.isNull(1)) {
+                return cursor.getInt(1);
+            }
+        }
+
+        return RECORDING_CONTAINER_UNKNOWN;
+    }
+
     @RequiresApi(api = Build.VERSION_CODES.N)
     public static SparseArray<Uri> buildRecordedProgramUriMap(Context context) {
         // Create a map from dvr entry id to program row ID for existing recorded programs.
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.player;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+
+import com.google.android.exoplayer2.DefaultLoadControl;
+import com.google.android.exoplayer2.upstream.DefaultAllocator;
+
+/**
+ * A DefaultLoadControl which also stops loading once the player has used up its share of the
+ * memory budget, as handed out by PlaybackSessions.
+ *
+ * The share is checked each time, so a running player makes room as soon as another session
+ * (e.g. PIP) starts, and gets it back once that session is released. Playback is allowed to
+ * start once the share is used up, even if less than the usual amount of media is buffered.
+ */
+class BudgetedLoadControl extends DefaultLoadControl {
+    private final Context mContext;
+    private final Object mSession;
+
+    BudgetedLoadControl(@NonNull Context context, @NonNull Object session, DefaultAllocator allocator,
+                        int minBufferMs, int maxBufferMs, int bufferForPlaybackMs,
+                        int bufferForPlaybackAfterRebufferMs, int targetBufferBytes,
+                        boolean prioritizeTimeOverSizeThresholds) {
+        super(allocator, minBufferMs, maxBufferMs, bufferForPlaybackMs,
+                bufferForPlaybackAfterRebufferMs, targetBufferBytes, prioritizeTimeOverSizeThresholds);
+
+        mContext = context;
+        mSession = session;
+    }
+
+    @Override
+    public boolean shouldContinueLoading(long bufferedDurationUs, float playbackSpeed) {
+        if (isOverBudget()) {
+            return false;
+        }
+
+        return super.shouldContinueLoading(bufferedDurationUs, playbackSpeed);
+    }
+
+    @Override
+    public boolean shouldStartPlayback(long bufferedDurationUs, float playbackSpeed, boolean rebuffering) {
+        if (isOverBudget()) {
+            // Loading has stopped, so waiting for more to be buffered would wait forever. The
+            // same as DefaultLoadControl does once its target buffer size is reached.
+            return true;
+        }
+
+        return super.shouldStartPlayback(bufferedDurationUs, playbackSpeed, rebuffering);
+    }
+
+    // Misc Internal Methods
+    private boolean isOverBudget() {
+        return getAllocator().getTotalBytesAllocated() >= PlaybackSessions.getMemoryShare(mContext, mSession);
+    }
+}
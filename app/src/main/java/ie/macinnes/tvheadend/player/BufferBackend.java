@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.player;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ie.macinnes.tvheadend.Constants;
+import ie.macinnes.tvheadend.R;
+
+/**
+ * Allocates the storage backing subscription buffers.
+ *
+ * The heap backend counts towards the (small) Java heap limit, the direct backend lives in
+ * native memory, and the file backend is a memory-mapped temporary file, leaving the kernel free
+ * to page it out.
+ */
+abstract class BufferBackend {
+    private static final String TAG = BufferBackend.class.getName();
+
+    static final String BACKEND_HEAP = "heap";
+    static final String BACKEND_DIRECT = "direct";
+    static final String BACKEND_FILE = "file";
+
+    private static final int MIN_BUFFER_SIZE = 2 * 1024 * 1024;
+    private static final int MAX_BUFFER_SIZE = 32 * 1024 * 1024;
+
+    // Never use more than 1/8th of the memory class for a single buffer
+    private static final int MEMORY_CLASS_DIVISOR = 8;
+
+    // How many seconds of the stream the buffer should be able to hold
+    private static final int BUFFER_SECONDS = 10;
+
+    // Used until we've seen a stream, roughly a high bitrate HD H.264 channel. In bits/sec.
+    private static final int DEFAULT_BITRATE = 16 * 1000 * 1000;
+
+    // The most recently observed stream bitrate, in bits/sec.
+    private static final AtomicInteger sLastBitrate = new AtomicInteger(DEFAULT_BITRATE);
+
+    /**
+     * Allocates a buffer of the given size.
+     */
+    @NonNull
+    abstract ByteBuffer allocate(int size) throws IOException;
+
+    /**
+     * Returns the backend selected in the preferences.
+     */
+    @NonNull
+    static BufferBackend create(@NonNull Context context) {
+        SharedPreferences sharedPreferences = context.getSharedPreferences(
+                Constants.PREFERENCE_TVHEADEND, Context.MODE_PRIVATE);
+
+        final String backend = sharedPreferences.getString(
+                Constants.KEY_BUFFER_BACKEND,
+                context.getResources().getString(R.string.pref_default_buffer_backend));
+
+        switch (backend) {
+            case BACKEND_HEAP:
+                return new HeapBufferBackend();
+            case BACKEND_FILE:
+                return new FileBufferBackend(context.getCacheDir());
+            case BACKEND_DIRECT:
+            default:
+                return new DirectBufferBackend();
+        }
+    }
+
+    /**
+     * Allocates a subscription buffer from the preferred backend, sized for the device and the
+     * most recently observed stream bitrate. If the file backend fails, we fall back to a direct
+     * buffer.
+     */
+    @NonNull
+    static ByteBuffer allocateBuffer(@NonNull Context context) throws IOException {
+        final BufferBackend backend = create(context);
+        final int size = getBufferSize(context, sLastBitrate.get());
+
+        Log.d(TAG, "Allocating " + size + " byte buffer using " + backend.getClass().getSimpleName());
+
+        try {
+            return backend.allocate(size);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to allocate buffer, falling back to a direct buffer", e);
+            return new DirectBufferBackend().allocate(size);
+        }
+    }
+
+    /**
+     * Records the bitrate of a stream, which is used to size the next buffer.
+     */
+    static void setLastBitrate(int bitrate) {
+        if (bitrate > 0) {
+            sLastBitrate.set(bitrate);
+        }
+    }
+
+    static int getBufferSize(@NonNull Context context, int bitrate) {
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+
+        int memoryLimit = (activityManager.getMemoryClass() * 1024 * 1024) / MEMORY_CLASS_DIVISOR;
+
+        if (activityManager.isLowRamDevice()) {
+            memoryLimit /= 2;
+        }
+
+        // Leave room for the buffers of any other sessions, e.g. PIP
+        memoryLimit /= PlaybackSessions.getSessionCount();
+
+        final long bitrateSize = ((long) bitrate / 8) * BUFFER_SECONDS;
+
+        long size = Math.min(bitrateSize, memoryLimit);
+        size = Math.max(size, MIN_BUFFER_SIZE);
+        size = Math.min(size, MAX_BUFFER_SIZE);
+
+        return (int) size;
+    }
+
+    // Inner Classes
+    private static class HeapBufferBackend extends BufferBackend {
+        @NonNull
+        @Override
+        ByteBuffer allocate(int size) throws IOException {
+            try {
+                return ByteBuffer.allocate(size);
+            } catch (OutOfMemoryError e) {
+                // Since we're allocating a large buffer here, it's fairly safe to assume we'll have
+                // enough memory to catch and throw this exception. We do this, as each OOM exception
+                // message is unique (lots of #'s of bytes available/used/etc) and means crash reporting
+                // doesn't group things nicely.
+                throw new IOException("OutOfMemoryError when allocating heap buffer", e);
+            }
+        }
+    }
+
+    private static class DirectBufferBackend extends BufferBackend {
+        @NonNull
+        @Override
+        ByteBuffer allocate(int size) throws IOException {
+            try {
+                return ByteBuffer.allocateDirect(size);
+            } catch (OutOfMemoryError e) {
+                throw new IOException("OutOfMemoryError when allocating direct buffer", e);
+            }
+        }
+    }
+
+    private static class FileBufferBackend extends BufferBackend {
+        private final File mDirectory;
+
+        FileBufferBackend(File directory) {
+            mDirectory = directory;
+        }
+
+        @NonNull
+        @Override
+        ByteBuffer allocate(int size) throws IOException {
+            File file = File.createTempFile("subscription", ".buffer", mDirectory);
+
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+                randomAccessFile.setLength(size);
+                // The mapping remains valid after the channel is closed and the file is deleted
+                return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } finally {
+                if (!file.delete()) {
+                    Log.w(TAG, "Failed to delete buffer file " + file);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.player;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.google.android.exoplayer2.audio.AudioCapabilities;
+import com.google.android.exoplayer2.audio.AudioCapabilitiesReceiver;
+import com.google.android.exoplayer2.mediacodec.MediaCodecInfo;
+import com.google.android.exoplayer2.mediacodec.MediaCodecSelector;
+import com.google.android.exoplayer2.mediacodec.MediaCodecUtil;
+import com.google.android.exoplayer2.util.MimeTypes;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers which decoders the device has for the formats we play, so building a player doesn't
+ * have to wait on MediaCodecUtil probing, which is very slow on some SoCs.
+ *
+ * The decoders are probed once per firmware (by Build.FINGERPRINT), and the results persisted.
+ * Formats with no decoder are answered straight from the cache. Those with one are still looked up
+ * through MediaCodecUtil, but prewarm() fills its in-process cache on a background thread ahead of
+ * the first player being built.
+ *
+ * The audio capabilities of the output, e.g. HDMI passthrough support, are kept up to date as
+ * displays are plugged in and out.
+ */
+public class CodecCapabilityCache implements AudioCapabilitiesReceiver.Listener {
+    private static final String TAG = CodecCapabilityCache.class.getName();
+    private static final String PREFERENCE_NAME = "codec_capabilities";
+
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String KEY_DECODER_PREFIX = "decoder_";
+    private static final String KEY_TUNNELING_PREFIX = "tunneling_";
+    private static final String KEY_PASSTHROUGH_DECODER = "passthrough_decoder";
+
+    // The formats our StreamReaders produce
+    private static final String[] MIME_TYPES = new String[] {
+            MimeTypes.VIDEO_H264,
+            MimeTypes.VIDEO_H265,
+            MimeTypes.VIDEO_MPEG2,
+            MimeTypes.AUDIO_AAC,
+            MimeTypes.AUDIO_AC3,
+            MimeTypes.AUDIO_E_AC3,
+            MimeTypes.AUDIO_MPEG,
+            MimeTypes.AUDIO_MPEG_L1,
+            MimeTypes.AUDIO_MPEG_L2,
+            MimeTypes.AUDIO_VORBIS,
+    };
+
+    private static CodecCapabilityCache sInstance;
+
+    private final SharedPreferences mSharedPreferences;
+    private final AudioCapabilitiesReceiver mAudioCapabilitiesReceiver;
+
+    // Decoder name by MIME type, an empty name meaning there is no decoder
+    private final Map<String, String> mDecoders = new HashMap<>();
+    private final Map<String, Boolean> mTunneling = new HashMap<>();
+    private String mPassthroughDecoder;
+    private boolean mIsProbed = false;
+    private boolean mIsPrewarmStarted = false;
+
+    private AudioCapabilities mAudioCapabilities;
+
+    private CodecCapabilityCache(@NonNull Context context) {
+        mSharedPreferences = context.getSharedPreferences(PREFERENCE_NAME, Context.MODE_PRIVATE);
+
+        load();
+
+        mAudioCapabilitiesReceiver = new AudioCapabilitiesReceiver(context, this);
+        mAudioCapabilities = mAudioCapabilitiesReceiver.register();
+        Log.d(TAG, "Audio capabilities: " + mAudioCapabilities);
+    }
+
+    @NonNull
+    public static synchronized CodecCapabilityCache getInstance(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new CodecCapabilityCache(context.getApplicationContext());
+        }
+
+        return sInstance;
+    }
+
+    /**
+     * Probes the decoders on a background thread, if they haven't been probed for this firmware
+     * already, and warms up MediaCodecUtil's own cache for the formats which have a decoder.
+     */
+    public synchronized void prewarm() {
+        if (mIsPrewarmStarted) {
+            return;
+        }
+        mIsPrewarmStarted = true;
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                probe();
+            }
+        }, "CodecCapabilityCache Prewarm Thread").start();
+    }
+
+    @NonNull
+    synchronized AudioCapabilities getAudioCapabilities() {
+        return mAudioCapabilities;
+    }
+
+    /**
+     * Returns false only if the device is known to have no decoder for mimeType.
+     */
+    synchronized boolean hasDecoder(@NonNull String mimeType) {
+        final String decoder = mDecoders.get(mimeType);
+        return decoder == null || !decoder.isEmpty();
+    }
+
+    /**
+     * Returns false only if the device is known to have no decoder for mimeType which supports
+     * tunneled playback. Until the decoders have been probed, the track selector's own check of
+     * the renderers' capabilities has to decide.
+     */
+    synchronized boolean mayTunnel(@NonNull String mimeType) {
+        if (!mIsProbed) {
+            return true;
+        }
+
+        final Boolean tunneling = mTunneling.get(mimeType);
+        return tunneling != null && tunneling;
+    }
+
+    /**
+     * Returns false only if the device is known to have no video decoder which supports tunneled
+     * playback.
+     */
+    synchronized boolean hasTunnelingVideoDecoder() {
+        if (!mIsProbed) {
+            return true;
+        }
+
+        for (String mimeType : MIME_TYPES) {
+            if (MimeTypes.isVideo(mimeType) && mayTunnel(mimeType)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    synchronized boolean hasPassthroughDecoder() {
+        return mPassthroughDecoder == null || !mPassthroughDecoder.isEmpty();
+    }
+
+    /**
+     * Returns a MediaCodecSelector which doesn't probe for decoders the device is known not to
+     * have.
+     */
+    @NonNull
+    MediaCodecSelector buildMediaCodecSelector(final boolean enablePassthroughDecoder) {
+        return new MediaCodecSelector() {
+            @Override
+            public MediaCodecInfo getDecoderInfo(String mimeType, boolean requiresSecureDecoder) throws MediaCodecUtil.DecoderQueryException {
+                if (!hasDecoder(mimeType)) {
+                    return null;
+                }
+                return MediaCodecUtil.getDecoderInfo(mimeType, requiresSecureDecoder);
+            }
+
+            @Override
+            public MediaCodecInfo getPassthroughDecoderInfo() throws MediaCodecUtil.DecoderQueryException {
+                if (enablePassthroughDecoder && hasPassthroughDecoder()) {
+                    return MediaCodecUtil.getPassthroughDecoderInfo();
+                }
+                return null;
+            }
+        };
+    }
+
+    // AudioCapabilitiesReceiver.Listener Methods
+    @Override
+    public synchronized void onAudioCapabilitiesChanged(AudioCapabilities audioCapabilities) {
+        // Picked up by the next player to be built, i.e. the next session
+        Log.i(TAG, "Audio capabilities changed: " + audioCapabilities);
+        mAudioCapabilities = audioCapabilities;
+    }
+
+    // Misc Internal Methods
+    private synchronized void load() {
+        if (!Build.FINGERPRINT.equals(mSharedPreferences.getString(KEY_FINGERPRINT, null))) {
+            Log.d(TAG, "No codec capabilities saved for this firmware");
+            return;
+        }
+
+        for (String mimeType : MIME_TYPES) {
+            final String decoder = mSharedPreferences.getString(KEY_DECODER_PREFIX + mimeType, null);
+            if (decoder != null) {
+                mDecoders.put(mimeType, decoder);
+                mTunneling.put(mimeType, mSharedPreferences.getBoolean(KEY_TUNNELING_PREFIX + mimeType, false));
+            }
+        }
+
+        mPassthroughDecoder = mSharedPreferences.getString(KEY_PASSTHROUGH_DECODER, null);
+        mIsProbed = true;
+
+        Log.d(TAG, "Loaded codec capabilities: " + mDecoders);
+    }
+
+    private void probe() {
+        final long startTime = SystemClock.elapsedRealtime();
+
+        final Map<String, String> decoders = new HashMap<>();
+        final Map<String, Boolean> tunneling = new HashMap<>();
+        String passthroughDecoder = null;
+
+        for (String mimeType : MIME_TYPES) {
+            if (!hasDecoder(mimeType)) {
+                // Known not to exist, nothing to probe or warm up
+                continue;
+            }
+
+            try {
+                final MediaCodecInfo info = MediaCodecUtil.getDecoderInfo(mimeType, false);
+                decoders.put(mimeType, info != null ? info.name : "");
+                tunneling.put(mimeType, info != null && info.tunneling);
+            } catch (MediaCodecUtil.DecoderQueryException e) {
+                // Left unknown, rather than recorded as missing
+                Log.w(TAG, "Failed to query decoder for " + mimeType, e);
+            }
+        }
+
+        try {
+            final MediaCodecInfo info = MediaCodecUtil.getPassthroughDecoderInfo();
+            passthroughDecoder = info != null ? info.name : "";
+        } catch (MediaCodecUtil.DecoderQueryException e) {
+            Log.w(TAG, "Failed to query passthrough decoder", e);
+        }
+
+        Log.d(TAG, "Probed codec capabilities in " + (SystemClock.elapsedRealtime() - startTime)
+                + "ms: " + decoders);
+
+        save(decoders, tunneling, passthroughDecoder);
+    }
+
+    private synchronized void save(@NonNull Map<String, String> decoders, @NonNull Map<String, Boolean> tunneling,
+                                   @Nullable String passthroughDecoder) {
+        if (mIsProbed) {
+            // Already saved for this firmware, the probe only served to warm up MediaCodecUtil
+            return;
+        }
+
+        mDecoders.putAll(decoders);
+        mTunneling.putAll(tunneling);
+        mPassthroughDecoder = passthroughDecoder;
+        mIsProbed = true;
+
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.clear();
+        editor.putString(KEY_FINGERPRINT, Build.FINGERPRINT);
+
+        for (Map.Entry<String, String> entry : decoders.entrySet()) {
+            editor.putString(KEY_DECODER_PREFIX + entry.getKey(), entry.getValue());
+            editor.putBoolean(KEY_TUNNELING_PREFIX + entry.getKey(), tunneling.get(entry.getKey()));
+        }
+
+        if (passthroughDecoder != null) {
+            editor.putString(KEY_PASSTHROUGH_DECODER, passthroughDecoder);
+        }
+
+        editor.apply();
+    }
+}
@@ -29,7 +29,7 @@ import java.lang.ref.WeakReference;
 import ie.macinnes.htsp.SimpleHtspConnection;
 import ie.macinnes.htsp.tasks.Subscriber;
 
-public abstract class HtspDataSource implements DataSource, Closeable {
+public abstract class HtspDataSource implements DataSource, Closeable, HtspPlaybackControl {
     public static final long INVALID_TIMESHIFT_TIME = Subscriber.INVALID_TIMESHIFT_TIME;
 
     public static abstract class Factory implements DataSource.Factory {
@@ -76,14 +76,6 @@ public abstract class HtspDataSource implements DataSource, Closeable {
 
     protected abstract void release();
 
-    // Methods used by the player, which need to be passed to the Subscriber
-    public abstract void pause();
-    public abstract void resume();
-    public abstract long getTimeshiftStartTime();
-    public abstract long getTimeshiftStartPts();
-    public abstract long getTimeshiftOffsetPts();
-    public abstract void setSpeed(int speed);
-
     // DataSource Methods
     @Override
     public Uri getUri() {
@@ -22,6 +22,7 @@ import android.util.Log;
 import android.util.SparseArray;
 
 import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.ParserException;
 import com.google.android.exoplayer2.extractor.Extractor;
 import com.google.android.exoplayer2.extractor.ExtractorInput;
 import com.google.android.exoplayer2.extractor.ExtractorOutput;
@@ -29,13 +30,12 @@ import com.google.android.exoplayer2.extractor.PositionHolder;
 import com.google.android.exoplayer2.extractor.SeekMap;
 import com.google.android.exoplayer2.util.ParsableByteArray;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.util.Arrays;
 
 import ie.macinnes.htsp.HtspMessage;
 import ie.macinnes.tvheadend.Constants;
+import ie.macinnes.tvheadend.player.reader.Muxpkt;
 import ie.macinnes.tvheadend.player.reader.StreamReader;
 import ie.macinnes.tvheadend.player.reader.StreamReadersFactory;
 
@@ -56,16 +56,29 @@ class HtspExtractor implements Extractor {
 
         @Override
         public SeekPoints getSeekPoints(long timeUs) {
-            return null;
+            // The data source takes the position of a seek as the PTS to skip to
+            return mKeyframeIndex.getSeekPoints(timeUs);
         }
-
     }
 
     private final Context mContext;
     private ExtractorOutput mOutput;
     private final SparseArray<StreamReader> mStreamReaders = new SparseArray<>();
+    private final KeyframeGate mKeyframeGate = new KeyframeGate("HtspExtractor");
+    private final KeyframeIndex mKeyframeIndex = new KeyframeIndex(KeyframeIndex.LIVE_MAX_ENTRIES);
+
+    // Set when tracks have been declared from a cached subscriptionStart
+    private HtspMessage mCachedSubscriptionStart;
+
+    // The subscriptionStart the tracks were last declared from
+    private HtspMessage mSubscriptionStart;
+
+    private final ParsableByteArray mFrameBuffer = new ParsableByteArray(1024 * 1024);
 
-    private final byte[] mRawBytes = new byte[1024 * 1024];
+    // Every muxpkt is decoded into this, so reading packets doesn't allocate
+    private final Muxpkt mMuxpkt = new Muxpkt();
+    private int mFrameBufferLength = 0;
+    private boolean mHeaderSkipped = false;
 
     public HtspExtractor(Context context) {
         mContext = context;
@@ -93,42 +106,64 @@ class HtspExtractor implements Extractor {
 
     @Override
     public int read(ExtractorInput input, PositionHolder seekPosition) throws IOException, InterruptedException {
-        int bytesRead = input.read(mRawBytes, 0, mRawBytes.length);
+        if (!mHeaderSkipped) {
+            input.skipFully(HtspSubscriptionDataSource.HEADER.length);
+            mHeaderSkipped = true;
+        }
+
+        byte[] data = mFrameBuffer.data;
+
+        int bytesRead = input.read(data, mFrameBufferLength, data.length - mFrameBufferLength);
+        if (bytesRead == C.RESULT_END_OF_INPUT) {
+            return RESULT_END_OF_INPUT;
+        }
+
         if (Constants.DEBUG)
             Log.v(TAG, "Read " + bytesRead + " bytes");
 
-        ObjectInputStream objectInput = null;
+        mFrameBufferLength += bytesRead;
+        mFrameBuffer.setPosition(0);
+        mFrameBuffer.setLimit(mFrameBufferLength);
+
+        while (mFrameBuffer.bytesLeft() >= HtspFraming.FRAME_LENGTH_SIZE) {
+            final int frameStart = mFrameBuffer.getPosition();
+            final int frameLength = mFrameBuffer.readInt();
 
-        try (
-                // N.B. Don't add the objectInput to this bit, it breaks stuff
-                ByteArrayInputStream inputStream = new ByteArrayInputStream(mRawBytes, 0, bytesRead)
-        ) {
-            while (inputStream.available() > 0) {
-                objectInput = new ObjectInputStream(inputStream);
-                handleMessage((HtspMessage) objectInput.readUnshared());
+            if (mFrameBuffer.bytesLeft() < frameLength) {
+                // Partial frame, carry it over until the rest of it has been read.
+                mFrameBuffer.setPosition(frameStart);
+                break;
             }
-        } catch (IOException e) {
-            // TODO: This is a problem, and returning RESULT_CONTINUE is a hack... I think?
-            Log.w(TAG, "Caught IOException, returning RESULT_CONTINUE");
-            return RESULT_CONTINUE;
-        } catch (ClassNotFoundException e) {
-            Log.w(TAG, "Class Not Found");
-        } finally {
-            try {
-                if (objectInput != null) {
-                    objectInput.close();
+
+            final int frameType = HtspFraming.readFrameType(mFrameBuffer);
+
+            if (frameType == HtspFraming.FRAME_TYPE_MUXPKT) {
+                HtspFraming.readMuxpkt(mFrameBuffer, frameLength, mMuxpkt);
+                handleMuxpkt(mMuxpkt);
+            } else {
+                HtspMessage message = HtspFraming.readMessage(mFrameBuffer, frameType, frameLength);
+                if (message != null) {
+                    handleMessage(message);
                 }
-            } catch (IOException ex) {
-                // Ignore
             }
+
+            mFrameBuffer.setPosition(frameStart + HtspFraming.FRAME_LENGTH_SIZE + frameLength);
         }
 
+        carryOverPartialFrame();
+
         return RESULT_CONTINUE;
     }
 
     @Override
     public void seek(long position, long timeUs) {
         Log.d(TAG, "Seeking HTSP Extractor to position:" + position + " and timeUs:" + timeUs);
+
+        // The data source discards its buffer on seek, so any partial frame is now useless
+        mFrameBufferLength = 0;
+
+        // Data after the seek will start mid-GOP
+        mKeyframeGate.reset();
     }
 
     @Override
@@ -138,19 +173,100 @@ class HtspExtractor implements Extractor {
     }
 
     // Internal Methods
-    private void handleMessage(@NonNull final HtspMessage message) {
+    private void carryOverPartialFrame() {
+        final int frameStart = mFrameBuffer.getPosition();
+        final int remaining = mFrameBufferLength - frameStart;
+
+        byte[] data = mFrameBuffer.data;
+
+        if (remaining >= HtspFraming.FRAME_LENGTH_SIZE) {
+            // Make sure the buffer is large enough to hold the whole frame
+            final int frameSize = HtspFraming.FRAME_LENGTH_SIZE + mFrameBuffer.readInt();
+
+            if (frameSize > data.length) {
+                Log.d(TAG, "Growing frame buffer to " + frameSize + " bytes");
+                data = new byte[frameSize];
+            }
+        }
+
+        System.arraycopy(mFrameBuffer.data, frameStart, data, 0, remaining);
+        mFrameBuffer.reset(data, remaining);
+        mFrameBufferLength = remaining;
+    }
+
+    private void handleMessage(@NonNull final HtspMessage message) throws ParserException {
         final String method = message.getString("method");
 
         if (method.equals("subscriptionStart")) {
             handleSubscriptionStart(message);
-        } else if (method.equals("muxpkt")) {
-            handleMuxpkt(message);
+        } else if (method.equals("cachedSubscriptionStart")) {
+            handleCachedSubscriptionStart(message);
+        } else if (method.equals("timeshiftStatus")) {
+            // Anything before the start of the server's timeshift buffer can no longer be sought to
+            mKeyframeIndex.trimToPts(message.getLong("start"));
+        }
+    }
+
+    private void handleCachedSubscriptionStart(@NonNull final HtspMessage message) {
+        if (mStreamReaders.size() != 0) {
+            // Tracks have already been declared
+            return;
         }
+
+        Log.i(TAG, "Declaring tracks from cached Subscription Start");
+        mCachedSubscriptionStart = message;
+        createStreamReaders(message);
     }
 
-    private void handleSubscriptionStart(@NonNull final HtspMessage message) {
+    private void handleSubscriptionStart(@NonNull final HtspMessage message) throws ParserException {
         Log.i(TAG, "Handling Subscription Start");
 
+        mKeyframeGate.onSubscriptionStart(message);
+
+        if (mCachedSubscriptionStart != null) {
+            final HtspMessage cached = mCachedSubscriptionStart;
+            mCachedSubscriptionStart = null;
+
+            if (!SubscriptionStartCache.hasSameStreams(cached, message)) {
+                throw new StreamsChangedException("Streams differ from the cached subscriptionStart");
+            }
+
+            // The tracks are already in place, give them the final formats. Any differences are
+            // picked up as a format change by the renderers.
+            updateStreamReaders(message);
+            return;
+        }
+
+        if (mSubscriptionStart != null) {
+            // Resubscribed, e.g. after a reconnect or a channel switch. The data source splices the
+            // new subscription on to the old one, so playback carries on with the same tracks if
+            // it can.
+            if (!SubscriptionStartCache.hasSameStreams(mSubscriptionStart, message)) {
+                throw new StreamsChangedException("Streams differ after resubscribing");
+            }
+
+            Log.i(TAG, "Resubscribed with the same streams, keeping the existing tracks");
+            updateStreamReaders(message);
+            return;
+        }
+
+        createStreamReaders(message);
+    }
+
+    private void updateStreamReaders(@NonNull final HtspMessage message) {
+        mSubscriptionStart = message;
+
+        for (HtspMessage stream : message.getHtspMessageArray("streams")) {
+            final StreamReader streamReader = mStreamReaders.get(stream.getInteger("index"));
+            if (streamReader != null) {
+                streamReader.createTracks(stream, mOutput);
+            }
+        }
+    }
+
+    private void createStreamReaders(@NonNull final HtspMessage message) {
+        mSubscriptionStart = message;
+
         StreamReadersFactory streamReadersFactory = new StreamReadersFactory(mContext);
 
         for (HtspMessage stream : message.getHtspMessageArray("streams")) {
@@ -171,7 +287,7 @@ class HtspExtractor implements Extractor {
         mOutput.endTracks();
     }
 
-    private void handleMuxpkt(@NonNull final HtspMessage message) {
+    private void handleMuxpkt(@NonNull final Muxpkt muxpkt) {
 //        subscriptionId     u32   required   Subscription ID.
 //        frametype          u32   required   Type of frame as ASCII value: 'I', 'P', 'B'
 //        stream             u32   required   Stream index. Corresponds to the streams reported in the subscriptionStart message.
@@ -180,7 +296,7 @@ class HtspExtractor implements Extractor {
 //        duration           u32   required   Duration of frame in µs.
 //        payload            bin   required   Actual frame data.
 
-        final int streamIndex = message.getInteger("stream");
+        final int streamIndex = muxpkt.getStream();
 
         final StreamReader streamReader = mStreamReaders.get(streamIndex);
         if (streamReader == null) {
@@ -188,6 +304,15 @@ class HtspExtractor implements Extractor {
             return;
         }
 
-        streamReader.consume(message);
+        if (!mKeyframeGate.accept(muxpkt)) {
+            return;
+        }
+
+        if (mKeyframeGate.isVideoKeyframe(muxpkt) && muxpkt.hasPts()) {
+            final long pts = muxpkt.getPts();
+            mKeyframeIndex.add(pts, pts);
+        }
+
+        streamReader.consume(muxpkt);
     }
 }
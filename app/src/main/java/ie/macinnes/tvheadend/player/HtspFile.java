@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.player;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.google.android.exoplayer2.C;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import ie.macinnes.htsp.HtspMessage;
+import ie.macinnes.htsp.HtspNotConnectedException;
+import ie.macinnes.htsp.SimpleHtspConnection;
+
+/**
+ * A file on the server, accessed with the HTSP fileOpen, fileSeek, fileRead and fileClose
+ * methods. Unlike HtspFileInputStream, it can be repositioned without reopening the file.
+ *
+ * Not thread safe, other than readAt, which may be called from several threads at once.
+ */
+class HtspFile implements Closeable {
+    private static final String TAG = HtspFile.class.getName();
+
+    static final int TIMEOUT_MS = 5000;
+
+    private final SimpleHtspConnection mConnection;
+    private final String mFileName;
+    private final int mFileId;
+    private long mSize;
+
+    private long mPosition = 0;
+    private boolean mIsClosed = false;
+
+    /**
+     * Opens fileName, e.g. "dvrfile/123", on the server.
+     */
+    HtspFile(@NonNull SimpleHtspConnection connection, @NonNull String fileName) throws IOException {
+        mConnection = connection;
+        mFileName = fileName;
+
+        HtspMessage fileOpen = new HtspMessage();
+        fileOpen.put("method", "fileOpen");
+        fileOpen.put("file", fileName);
+
+        HtspMessage response = send(fileOpen);
+
+        mFileId = response.getInteger("id");
+        mSize = response.containsKey("size") ? response.getLong("size") : C.LENGTH_UNSET;
+
+        Log.d(TAG, "Opened " + mFileName + " with ID " + mFileId + " and size " + mSize);
+    }
+
+    @NonNull
+    String getFileName() {
+        return mFileName;
+    }
+
+    /**
+     * Returns the size of the file, or C.LENGTH_UNSET if the server did not report one.
+     */
+    long getSize() {
+        return mSize;
+    }
+
+    /**
+     * Asks the server for the current size of the file, which keeps growing while it is being
+     * recorded, and returns it.
+     */
+    long refreshSize() throws IOException {
+        HtspMessage fileStat = new HtspMessage();
+        fileStat.put("method", "fileStat");
+        fileStat.put("id", mFileId);
+
+        HtspMessage response = send(fileStat);
+
+        if (response.containsKey("size")) {
+            mSize = response.getLong("size");
+        }
+
+        return mSize;
+    }
+
+    long getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * Moves the position the next read will start from. Does nothing if the file is already
+     * at offset.
+     */
+    void seek(long offset) throws IOException {
+        if (offset == mPosition) {
+            return;
+        }
+
+        HtspMessage fileSeek = new HtspMessage();
+        fileSeek.put("method", "fileSeek");
+        fileSeek.put("id", mFileId);
+        fileSeek.put("offset", offset);
+        fileSeek.put("whence", "SEEK_SET");
+
+        HtspMessage response = send(fileSeek);
+
+        mPosition = response.getLong("offset", offset);
+    }
+
+    /**
+     * Reads up to size bytes from the current position.
+     *
+     * @return the data read, which is empty at the end of the file
+     */
+    @NonNull
+    byte[] read(int size) throws IOException {
+        HtspMessage fileRead = new HtspMessage();
+        fileRead.put("method", "fileRead");
+        fileRead.put("id", mFileId);
+        fileRead.put("size", size);
+
+        HtspMessage response = send(fileRead);
+
+        byte[] data = response.getByteArray("data");
+        if (data == null) {
+            data = new byte[0];
+        }
+
+        mPosition += data.length;
+
+        return data;
+    }
+
+    /**
+     * Reads up to size bytes from offset, without using or moving the current position.
+     *
+     * @return the data read, which is empty at the end of the file
+     */
+    @NonNull
+    byte[] readAt(long offset, int size) throws IOException {
+        return readAt(offset, size, TIMEOUT_MS);
+    }
+
+    /**
+     * As readAt(long, int), waiting up to timeoutMs for the response, e.g. when it is queued
+     * behind other requests on the server.
+     */
+    @NonNull
+    byte[] readAt(long offset, int size, int timeoutMs) throws IOException {
+        HtspMessage fileRead = new HtspMessage();
+        fileRead.put("method", "fileRead");
+        fileRead.put("id", mFileId);
+        fileRead.put("size", size);
+        fileRead.put("offset", offset);
+
+        HtspMessage response = send(fileRead, timeoutMs);
+
+        byte[] data = response.getByteArray("data");
+        return data != null ? data : new byte[0];
+    }
+
+    @Override
+    public void close() {
+        if (mIsClosed) {
+            return;
+        }
+
+        mIsClosed = true;
+
+        HtspMessage fileClose = new HtspMessage();
+        fileClose.put("method", "fileClose");
+        fileClose.put("id", mFileId);
+
+        try {
+            mConnection.sendMessage(fileClose);
+        } catch (HtspNotConnectedException e) {
+            // Ignore, the server will have closed it along with the connection
+        }
+    }
+
+    // Misc Internal Methods
+    @NonNull
+    private HtspMessage send(@NonNull HtspMessage message) throws IOException {
+        return send(message, TIMEOUT_MS);
+    }
+
+    @NonNull
+    private HtspMessage send(@NonNull HtspMessage message, int timeoutMs) throws IOException {
+        final String method = message.getString("method");
+
+        HtspMessage response;
+
+        try {
+            response = mConnection.sendMessage(message, timeoutMs);
+        } catch (HtspNotConnectedException e) {
+            throw new IOException("Failed to send " + method + ", HTSP not connected", e);
+        }
+
+        if (response == null) {
+            throw new IOException("Timed out waiting for a " + method + " response");
+        }
+
+        if (response.containsKey("error")) {
+            throw new IOException(method + " failed for " + mFileName + ": " + response.getString("error"));
+        }
+
+        return response;
+    }
+}
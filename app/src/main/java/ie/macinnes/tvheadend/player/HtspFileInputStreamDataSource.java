@@ -17,22 +17,27 @@
 package ie.macinnes.tvheadend.player;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.util.Log;
 
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
 import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TransferListener;
 
 import org.acra.ACRA;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import ie.macinnes.htsp.HtspFileInputStream;
 import ie.macinnes.htsp.SimpleHtspConnection;
 import ie.macinnes.tvheadend.Application;
+import ie.macinnes.tvheadend.Constants;
+import ie.macinnes.tvheadend.R;
 
 public class HtspFileInputStreamDataSource extends HtspDataSource {
     private static final String TAG = HtspFileInputStreamDataSource.class.getName();
-    private static final int BUFFER_SIZE = 10*1024*1024;
     private static final AtomicInteger sDataSourceCount = new AtomicInteger();
 
     public static class Factory extends HtspDataSource.Factory {
@@ -40,27 +45,63 @@ public class HtspFileInputStreamDataSource extends HtspDataSource {
 
         private final Context mContext;
         private final SimpleHtspConnection mConnection;
+        private final TransferListener<? super DataSource> mListener;
 
         public Factory(Context context, SimpleHtspConnection connection) {
+            this(context, connection, null);
+        }
+
+        public Factory(Context context, SimpleHtspConnection connection, TransferListener<? super DataSource> listener) {
             mContext = context;
             mConnection = connection;
+            mListener = listener;
         }
 
         @Override
         public HtspDataSource createDataSourceInternal() {
-            return new HtspFileInputStreamDataSource(mContext, mConnection);
+            return new HtspFileInputStreamDataSource(mContext, mConnection, mListener);
         }
 
     }
 
     private final int mDataSourceNumber;
-    private HtspFileInputStream mHtspFileInputStream;
 
-    private HtspFileInputStreamDataSource(Context context, SimpleHtspConnection connection) {
+    // Each fileRead is a round trip to the server, so ask for more than ExoPlayer does at once.
+    // With a read ahead window, that many blocks are requested before they are needed.
+    private final int mReadBlockSize;
+    private final int mReadAheadWindowSize;
+    private HtspFileReadAhead mReadAhead;
+
+    // Kept open between a close() and the next open(), so seeking within the same file only costs
+    // a fileSeek rather than a fileOpen too.
+    private HtspFile mHtspFile;
+
+    private byte[] mReadBuffer = new byte[0];
+    private int mReadBufferPosition = 0;
+    private long mBytesRemaining;
+
+    private final TransferListener<? super DataSource> mListener;
+    private boolean mIsOpen = false;
+
+    private HtspFileInputStreamDataSource(Context context, SimpleHtspConnection connection,
+                                          TransferListener<? super DataSource> listener) {
         super(context, connection);
 
+        mListener = listener;
+
         mDataSourceNumber = sDataSourceCount.incrementAndGet();
 
+        SharedPreferences sharedPreferences = mContext.getSharedPreferences(
+                Constants.PREFERENCE_TVHEADEND, Context.MODE_PRIVATE);
+
+        mReadBlockSize = Integer.parseInt(sharedPreferences.getString(
+                Constants.KEY_RECORDING_READ_BLOCK_SIZE,
+                mContext.getResources().getString(R.string.pref_default_recording_read_block_size))) * 1024;
+
+        mReadAheadWindowSize = Integer.parseInt(sharedPreferences.getString(
+                Constants.KEY_RECORDING_READ_AHEAD_WINDOW,
+                mContext.getResources().getString(R.string.pref_default_recording_read_ahead_window)));
+
         Log.d(TAG, "New HtspSubscriptionDataSource instantiated ("+mDataSourceNumber+")");
     }
 
@@ -90,28 +131,116 @@ public class HtspFileInputStreamDataSource extends HtspDataSource {
     // DataSource Methods
     @Override
     public long open(DataSpec dataSpec) throws IOException {
-        Log.i(TAG, "Opening HTSP DataSource ("+mDataSourceNumber+")");
+        Log.i(TAG, "Opening HTSP DataSource at position " + dataSpec.position + " ("+mDataSourceNumber+")");
 
         mDataSpec = dataSpec;
 
         String fileName = "dvrfile" + dataSpec.uri.getPath();
 
-        mHtspFileInputStream = new HtspFileInputStream(mConnection, fileName);
+        if (mHtspFile == null || !mHtspFile.getFileName().equals(fileName)) {
+            closeHtspFile();
+            mHtspFile = new HtspFile(mConnection, fileName);
+
+            if (mReadAheadWindowSize > 0) {
+                mReadAhead = new HtspFileReadAhead(mHtspFile, mReadAheadWindowSize, mReadBlockSize);
+            }
+        } else {
+            // The recording may still be running, the size from fileOpen will be out of date
+            mHtspFile.refreshSize();
+        }
+
+        final long fileSize = mHtspFile.getSize();
+
+        if (fileSize != C.LENGTH_UNSET && dataSpec.position > fileSize) {
+            throw new EOFException("Position " + dataSpec.position + " is beyond the end of " + fileName);
+        }
+
+        mReadBuffer = new byte[0];
+        mReadBufferPosition = 0;
 
-        return mHtspFileInputStream.getFileSize();
+        if (dataSpec.length != C.LENGTH_UNSET) {
+            mBytesRemaining = dataSpec.length;
+        } else if (fileSize != C.LENGTH_UNSET) {
+            mBytesRemaining = fileSize - dataSpec.position;
+        } else {
+            mBytesRemaining = C.LENGTH_UNSET;
+        }
+
+        if (mReadAhead != null) {
+            // Read ahead requests carry their own offset, no need to seek
+            mReadAhead.reset(dataSpec.position, mBytesRemaining != C.LENGTH_UNSET
+                    ? dataSpec.position + mBytesRemaining : C.LENGTH_UNSET);
+        } else {
+            mHtspFile.seek(dataSpec.position);
+        }
+
+        mIsOpen = true;
+        if (mListener != null) {
+            mListener.onTransferStart(this, dataSpec);
+        }
+
+        return mBytesRemaining;
     }
 
     @Override
     public int read(byte[] buffer, int offset, int readLength) throws IOException {
-        return mHtspFileInputStream.read(buffer, offset, readLength);
+        if (readLength == 0) {
+            return 0;
+        } else if (mBytesRemaining == 0) {
+            return C.RESULT_END_OF_INPUT;
+        }
+
+        if (mReadBufferPosition == mReadBuffer.length) {
+            if (mReadAhead != null) {
+                mReadBuffer = mReadAhead.next();
+            } else {
+                int blockSize = mReadBlockSize;
+                if (mBytesRemaining != C.LENGTH_UNSET) {
+                    blockSize = (int) Math.min(blockSize, mBytesRemaining);
+                }
+
+                mReadBuffer = mHtspFile.read(blockSize);
+            }
+            mReadBufferPosition = 0;
+
+            if (mReadBuffer.length == 0) {
+                if (mBytesRemaining != C.LENGTH_UNSET) {
+                    throw new EOFException();
+                }
+                return C.RESULT_END_OF_INPUT;
+            }
+        }
+
+        int bytesToRead = Math.min(readLength, mReadBuffer.length - mReadBufferPosition);
+        if (mBytesRemaining != C.LENGTH_UNSET) {
+            bytesToRead = (int) Math.min(bytesToRead, mBytesRemaining);
+            mBytesRemaining -= bytesToRead;
+        }
+
+        System.arraycopy(mReadBuffer, mReadBufferPosition, buffer, offset, bytesToRead);
+        mReadBufferPosition += bytesToRead;
+
+        if (mListener != null) {
+            mListener.onBytesTransferred(this, bytesToRead);
+        }
+
+        return bytesToRead;
     }
 
     @Override
     public void close() throws IOException {
         Log.i(TAG, "Closing HTSP DataSource ("+mDataSourceNumber+")");
-        if (mHtspFileInputStream != null) {
-            mHtspFileInputStream.close();
+
+        if (mIsOpen) {
+            mIsOpen = false;
+            if (mListener != null) {
+                mListener.onTransferEnd(this);
+            }
         }
+
+        // The file itself stays open, the next open() is likely a seek within it
+        mReadBuffer = new byte[0];
+        mReadBufferPosition = 0;
     }
 
     // HtspDataSource Methods
@@ -120,14 +249,7 @@ public class HtspFileInputStreamDataSource extends HtspDataSource {
             mConnection = null;
         }
 
-        if (mHtspFileInputStream != null) {
-            try {
-                mHtspFileInputStream.close();
-            } catch (IOException e) {
-                // Ignore.
-            }
-            mHtspFileInputStream = null;
-        }
+        closeHtspFile();
 
         // Watch for memory leaks
         Application.getRefWatcher(mContext).watch(this);
@@ -162,7 +284,27 @@ public class HtspFileInputStreamDataSource extends HtspDataSource {
     }
 
     @Override
-    public void setSpeed(int speed) {
-        // No action needed
+    public boolean setSpeed(int speed) {
+        // Nothing to change the speed of, the player steps through recordings by seeking
+        return false;
+    }
+
+    @Override
+    public long switchChannel(long channelId) {
+        // Recordings have no channel to switch
+        return C.TIME_UNSET;
+    }
+
+    // Misc Internal Methods
+    private void closeHtspFile() {
+        if (mReadAhead != null) {
+            mReadAhead.release();
+            mReadAhead = null;
+        }
+
+        if (mHtspFile != null) {
+            mHtspFile.close();
+            mHtspFile = null;
+        }
     }
 }
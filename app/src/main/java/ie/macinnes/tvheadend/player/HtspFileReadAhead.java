@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.player;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.google.android.exoplayer2.C;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Keeps several fileRead requests for consecutive blocks of a HtspFile in flight at once, so
+ * reading a recording is not limited to one block per round trip to the server.
+ *
+ * Blocks are handed out in order by next(). Each one taken is replaced by a request for the next
+ * block beyond the window. Must only be used from a single thread, other than the internal
+ * request threads.
+ */
+class HtspFileReadAhead {
+    private static final String TAG = HtspFileReadAhead.class.getName();
+
+    // The slowest link we allow for. The server answers the requests in the window one after
+    // another, so the last may have to wait for all the others to be transferred first.
+    private static final long MIN_BYTES_PER_SECOND = 2 * 1000 * 1000 / 8;
+
+    private final HtspFile mHtspFile;
+    private final int mWindowSize;
+    private final int mBlockSize;
+    private final ExecutorService mExecutor;
+    private final int mTimeoutMs;
+
+    private final ArrayDeque<PendingRead> mPendingReads = new ArrayDeque<>();
+    private long mNextRequestOffset = 0;
+    private long mEndOffset = C.LENGTH_UNSET;
+
+    /**
+     * @param windowSize The number of fileRead requests to keep in flight
+     * @param blockSize The size of each fileRead request, in bytes
+     */
+    HtspFileReadAhead(@NonNull HtspFile htspFile, int windowSize, int blockSize) {
+        mHtspFile = htspFile;
+        mWindowSize = windowSize;
+        mBlockSize = blockSize;
+
+        // sendMessage blocks until the response arrives, so each request in flight needs a thread
+        mExecutor = Executors.newFixedThreadPool(windowSize);
+
+        mTimeoutMs = (int) (HtspFile.TIMEOUT_MS + ((long) windowSize * blockSize * 1000) / MIN_BYTES_PER_SECOND);
+
+        Log.d(TAG, "Reading " + mHtspFile.getFileName() + " ahead " + windowSize + " blocks of "
+                + blockSize + " bytes");
+    }
+
+    /**
+     * Discards any blocks read so far, and starts reading from position.
+     *
+     * @param endOffset The offset to stop reading at, or C.LENGTH_UNSET to read to the end of the
+     *                  file
+     */
+    void reset(long position, long endOffset) {
+        cancelPendingReads();
+
+        mNextRequestOffset = position;
+        mEndOffset = endOffset;
+
+        requestBlocks();
+    }
+
+    /**
+     * Returns the next block, waiting for it to arrive if needed.
+     *
+     * @return the next block, which is empty once the end has been reached
+     */
+    @NonNull
+    byte[] next() throws IOException {
+        final PendingRead pendingRead = mPendingReads.poll();
+
+        if (pendingRead == null) {
+            return new byte[0];
+        }
+
+        byte[] block;
+
+        try {
+            block = pendingRead.mFuture.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            cancelPendingReads();
+
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+
+        if (block.length < pendingRead.mLength) {
+            // A short read, the blocks we have requested beyond this one no longer line up. This
+            // is normally the end of the file, in which case those will come back empty anyway.
+            cancelPendingReads();
+            mNextRequestOffset = pendingRead.mOffset + block.length;
+
+            if (block.length == 0) {
+                mEndOffset = mNextRequestOffset;
+            }
+        }
+
+        requestBlocks();
+
+        return block;
+    }
+
+    void release() {
+        cancelPendingReads();
+        mExecutor.shutdownNow();
+    }
+
+    // Misc Internal Methods
+    private void requestBlocks() {
+        while (mPendingReads.size() < mWindowSize
+                && (mEndOffset == C.LENGTH_UNSET || mNextRequestOffset < mEndOffset)) {
+            final long offset = mNextRequestOffset;
+
+            int length = mBlockSize;
+            if (mEndOffset != C.LENGTH_UNSET) {
+                length = (int) Math.min(length, mEndOffset - offset);
+            }
+
+            final int requestLength = length;
+            Future<byte[]> future = mExecutor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    return mHtspFile.readAt(offset, requestLength, mTimeoutMs);
+                }
+            });
+
+            mPendingReads.add(new PendingRead(offset, requestLength, future));
+            mNextRequestOffset += requestLength;
+        }
+    }
+
+    private void cancelPendingReads() {
+        for (PendingRead pendingRead : mPendingReads) {
+            // Requests already sent will complete regardless, we simply ignore the response
+            pendingRead.mFuture.cancel(false);
+        }
+
+        mPendingReads.clear();
+    }
+
+    // Inner Classes
+    private static class PendingRead {
+        final long mOffset;
+        final int mLength;
+        final Future<byte[]> mFuture;
+
+        PendingRead(long offset, int length, @NonNull Future<byte[]> future) {
+            mOffset = offset;
+            mLength = length;
+            mFuture = future;
+        }
+    }
+}
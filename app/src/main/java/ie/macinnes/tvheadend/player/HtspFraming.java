@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.player;
+
+import android.support.annotation.NonNull;
+
+import com.google.android.exoplayer2.util.ParsableByteArray;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import ie.macinnes.htsp.HtspMessage;
+import ie.macinnes.tvheadend.player.reader.Muxpkt;
+
+/**
+ * Binary framing used to pass subscription messages from the HtspSubscriptionDataSource to the
+ * HtspExtractor.
+ *
+ * Every frame is prefixed with a 4 byte big-endian length (not including the length itself),
+ * followed by a 1 byte frame type. muxpkt frames then carry the stream index, frametype, pts,
+ * dts, duration and finally the raw payload. subscriptionStart frames are rare, and carry the
+ * Java serialized HtspMessage. Cached subscriptionStart frames are identical, but carry a copy
+ * from the SubscriptionStartCache rather than one sent by the server, and are decoded with the
+ * method "cachedSubscriptionStart". timeshiftStatus frames carry only the PTS the server's
+ * timeshift buffer starts at.
+ *
+ * muxpkt frames are by far the most common, so they are decoded into a reused Muxpkt rather than
+ * a new HtspMessage, the others are decoded into an HtspMessage as they're sent.
+ */
+final class HtspFraming {
+    private HtspFraming() {
+        throw new IllegalAccessError("Utility class");
+    }
+
+    static final int FRAME_LENGTH_SIZE = 4;
+
+    static final byte FRAME_TYPE_SUBSCRIPTION_START = 1;
+    static final byte FRAME_TYPE_MUXPKT = 2;
+    static final byte FRAME_TYPE_CACHED_SUBSCRIPTION_START = 3;
+    static final byte FRAME_TYPE_TIMESHIFT_STATUS = 4;
+
+    // Frame Type + Stream + Frame Type + PTS + DTS + Duration
+    static final int MUXPKT_HEADER_SIZE = 1 + 4 + 4 + 8 + 8 + 4;
+
+    // Frame Type + Start PTS
+    static final int TIMESHIFT_STATUS_HEADER_SIZE = 1 + 8;
+
+    // Used on the wire when TVHeadend has not provided us a PTS or DTS
+    private static final long NO_TIMESTAMP = Muxpkt.NO_TIMESTAMP;
+
+    /**
+     * Returns the total size of a muxpkt frame, including the length prefix.
+     */
+    static int getMuxpktFrameSize(int payloadLength) {
+        return FRAME_LENGTH_SIZE + MUXPKT_HEADER_SIZE + payloadLength;
+    }
+
+    /**
+     * Writes the length prefix and header of a muxpkt frame into target. The payload itself is
+     * not copied, the caller is expected to write it immediately after the header.
+     *
+     * @return the number of bytes written to target
+     */
+    static int writeMuxpktHeader(@NonNull byte[] target, @NonNull HtspMessage message, int payloadLength) {
+        int offset = 0;
+
+        offset = putInt(target, offset, MUXPKT_HEADER_SIZE + payloadLength);
+        target[offset++] = FRAME_TYPE_MUXPKT;
+        offset = putInt(target, offset, message.getInteger("stream"));
+        offset = putInt(target, offset, message.getInteger("frametype", -1));
+        offset = putLong(target, offset, message.containsKey("pts") ? message.getLong("pts") : NO_TIMESTAMP);
+        offset = putLong(target, offset, message.containsKey("dts") ? message.getLong("dts") : NO_TIMESTAMP);
+        offset = putInt(target, offset, message.getInteger("duration", 0));
+
+        return offset;
+    }
+
+    /**
+     * Writes a complete timeshiftStatus frame into target, which must have room for
+     * FRAME_LENGTH_SIZE + TIMESHIFT_STATUS_HEADER_SIZE bytes.
+     *
+     * @return the number of bytes written to target
+     */
+    static int writeTimeshiftStatus(@NonNull byte[] target, long startPts) {
+        int offset = 0;
+
+        offset = putInt(target, offset, TIMESHIFT_STATUS_HEADER_SIZE);
+        target[offset++] = FRAME_TYPE_TIMESHIFT_STATUS;
+        offset = putLong(target, offset, startPts);
+
+        return offset;
+    }
+
+    /**
+     * Builds a complete subscriptionStart frame, including the length prefix.
+     *
+     * @param cached true if the message came from the SubscriptionStartCache
+     */
+    @NonNull
+    static byte[] encodeSubscriptionStart(@NonNull HtspMessage message, boolean cached) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        // Leave room for the length prefix and frame type
+        outputStream.write(new byte[FRAME_LENGTH_SIZE]);
+        outputStream.write(cached ? FRAME_TYPE_CACHED_SUBSCRIPTION_START : FRAME_TYPE_SUBSCRIPTION_START);
+
+        try (ObjectOutputStream objectOutput = new ObjectOutputStream(outputStream)) {
+            objectOutput.writeUnshared(message);
+        }
+
+        byte[] frame = outputStream.toByteArray();
+        putInt(frame, 0, frame.length - FRAME_LENGTH_SIZE);
+
+        return frame;
+    }
+
+    /**
+     * Reads the type of a frame. The position of data must be directly after the length prefix.
+     * The rest of the frame is then decoded with readMuxpkt() or readMessage().
+     */
+    static int readFrameType(@NonNull ParsableByteArray data) {
+        return data.readUnsignedByte();
+    }
+
+    /**
+     * Decodes the rest of a muxpkt frame into muxpkt, reusing its payload buffer. The position of
+     * data must be directly after the frame type, and the rest of the frame must be available.
+     */
+    static void readMuxpkt(@NonNull ParsableByteArray data, int frameLength, @NonNull Muxpkt muxpkt) {
+        final int stream = data.readInt();
+        final int frameType = data.readInt();
+        final long pts = data.readLong();
+        final long dts = data.readLong();
+        final int duration = data.readInt();
+
+        muxpkt.set(stream, frameType, pts, dts, duration);
+
+        final int payloadLength = frameLength - MUXPKT_HEADER_SIZE;
+        data.readBytes(muxpkt.preparePayload(payloadLength), 0, payloadLength);
+    }
+
+    /**
+     * Decodes the rest of any other frame. The position of data must be directly after the frame
+     * type, and the rest of the frame must be available.
+     *
+     * @return the decoded HtspMessage, or null if the frame type is unknown
+     */
+    static HtspMessage readMessage(@NonNull ParsableByteArray data, int frameType, int frameLength) throws IOException {
+        switch (frameType) {
+            case FRAME_TYPE_SUBSCRIPTION_START:
+                return readSubscriptionStart(data, frameLength);
+            case FRAME_TYPE_CACHED_SUBSCRIPTION_START:
+                HtspMessage message = readSubscriptionStart(data, frameLength);
+                message.put("method", "cachedSubscriptionStart");
+                return message;
+            case FRAME_TYPE_TIMESHIFT_STATUS:
+                return readTimeshiftStatus(data);
+            default:
+                return null;
+        }
+    }
+
+    private static HtspMessage readTimeshiftStatus(@NonNull ParsableByteArray data) {
+        HtspMessage message = new HtspMessage();
+        message.put("method", "timeshiftStatus");
+        message.put("start", data.readLong());
+
+        return message;
+    }
+
+    private static HtspMessage readSubscriptionStart(@NonNull ParsableByteArray data, int frameLength) throws IOException {
+        final int length = frameLength - 1;
+
+        try (ObjectInputStream objectInput = new ObjectInputStream(
+                new ByteArrayInputStream(data.data, data.getPosition(), length))) {
+            return (HtspMessage) objectInput.readUnshared();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Failed to decode subscriptionStart frame", e);
+        } finally {
+            data.skipBytes(length);
+        }
+    }
+
+    private static int putInt(byte[] target, int offset, int value) {
+        target[offset] = (byte) (value >>> 24);
+        target[offset + 1] = (byte) (value >>> 16);
+        target[offset + 2] = (byte) (value >>> 8);
+        target[offset + 3] = (byte) value;
+        return offset + 4;
+    }
+
+    private static int putLong(byte[] target, int offset, long value) {
+        offset = putInt(target, offset, (int) (value >>> 32));
+        return putInt(target, offset, (int) value);
+    }
+}
@@ -0,0 +1,680 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.player;
+
+import android.content.Context;
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.FormatHolder;
+import com.google.android.exoplayer2.SeekParameters;
+import com.google.android.exoplayer2.decoder.DecoderInputBuffer;
+import com.google.android.exoplayer2.extractor.DummyTrackOutput;
+import com.google.android.exoplayer2.extractor.ExtractorOutput;
+import com.google.android.exoplayer2.extractor.SeekMap;
+import com.google.android.exoplayer2.extractor.TrackOutput;
+import com.google.android.exoplayer2.source.MediaPeriod;
+import com.google.android.exoplayer2.source.SampleQueue;
+import com.google.android.exoplayer2.source.SampleStream;
+import com.google.android.exoplayer2.source.TrackGroup;
+import com.google.android.exoplayer2.source.TrackGroupArray;
+import com.google.android.exoplayer2.trackselection.TrackSelection;
+import com.google.android.exoplayer2.upstream.Allocator;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ie.macinnes.htsp.HtspMessage;
+import ie.macinnes.htsp.HtspNotConnectedException;
+import ie.macinnes.htsp.SimpleHtspConnection;
+import ie.macinnes.htsp.tasks.Subscriber;
+import ie.macinnes.tvheadend.Application;
+import ie.macinnes.tvheadend.player.reader.Muxpkt;
+import ie.macinnes.tvheadend.player.reader.StreamReader;
+import ie.macinnes.tvheadend.player.reader.StreamReadersFactory;
+
+/**
+ * A MediaPeriod which feeds muxpkt's from a HTSP subscription directly into SampleQueues, using
+ * the same StreamReaders as the HtspExtractor, but without the round trip through bytes.
+ */
+class HtspMediaPeriod implements MediaPeriod, ExtractorOutput, Subscriber.Listener, HtspPlaybackControl {
+    private static final String TAG = HtspMediaPeriod.class.getName();
+    private static final AtomicInteger sMediaPeriodCount = new AtomicInteger();
+    private static final int INVALID_SUBSCRIPTION_ID = -1;
+
+    // Samples are pushed to us whether or not the player wants more, so the subscription is
+    // paused once the allocator nears our share of the memory budget, and resumed once playback
+    // has drained it down again
+    private static final float FLOW_CONTROL_PAUSE_LEVEL = 0.9f;
+    private static final float FLOW_CONTROL_RESUME_LEVEL = 0.5f;
+
+    private final Context mContext;
+    private final SimpleHtspConnection mConnection;
+    private final long mChannelId;
+    private final String mStreamProfile;
+    private final int mTimeshiftPeriod;
+    private final Allocator mAllocator;
+    private final Object mSession;
+    private final int mMediaPeriodNumber;
+
+    private final Handler mHandler;
+    private final Subscriber mSubscriber;
+
+    // Only touched from the HTSP dispatcher thread, or in prepare() before we subscribe
+    private final SparseArray<StreamReader> mStreamReaders = new SparseArray<>();
+    private final KeyframeGate mKeyframeGate;
+    private final PtsSplicer mPtsSplicer;
+
+    // Each muxpkt is passed on to the stream readers in this, as in the HtspExtractor
+    private final Muxpkt mMuxpkt = new Muxpkt();
+    private final KeyframeIndex mKeyframeIndex = new KeyframeIndex(KeyframeIndex.LIVE_MAX_ENTRIES);
+    private final SubscriptionStartCache mSubscriptionStartCache;
+    private HtspMessage mCachedSubscriptionStart;
+    private boolean mIsKeyframeOnly = false;
+
+    // Trick play, the speed is set from the player thread and applied to packets as they arrive
+    private volatile int mSubscriptionId = INVALID_SUBSCRIPTION_ID;
+    private volatile int mSpeed = TrickPlay.NORMAL_SPEED;
+
+    // SampleQueues only support a single writer. Samples are written on the HTSP dispatcher
+    // thread, while resets come from the playback thread, so both hold this lock.
+    private final Object mSampleQueueWriteLock = new Object();
+    private boolean mIsReleased = false;
+
+    // Built on the HTSP dispatcher thread, and only read from the playback thread once prepared
+    private final SparseArray<SampleQueue> mSampleQueuesById = new SparseArray<>();
+    private SampleQueue[] mSampleQueues = new SampleQueue[0];
+
+    private Callback mCallback;
+    private TrackGroupArray mTrackGroups;
+    private boolean[] mTrackEnabledStates;
+    private volatile boolean mPrepared = false;
+
+    private volatile boolean mLoadingFinished = false;
+    private volatile IOException mError;
+
+    private long mLastSeekPositionUs;
+
+    // Flow control. The share is refreshed on the playback thread, as other sessions come and go,
+    // and checked against on the HTSP dispatcher thread
+    private final Object mFlowControlLock = new Object();
+    private volatile long mMemoryShare;
+    private boolean mIsFlowControlPaused = false;
+    private boolean mIsPaused = false;
+
+    HtspMediaPeriod(Context context, SimpleHtspConnection connection, long channelId,
+                    String streamProfile, int timeshiftPeriod, Allocator allocator, Object session) {
+        mContext = context;
+        mConnection = connection;
+        mChannelId = channelId;
+        mStreamProfile = streamProfile;
+        mTimeshiftPeriod = timeshiftPeriod;
+        mAllocator = allocator;
+        mSession = session;
+
+        mMediaPeriodNumber = sMediaPeriodCount.incrementAndGet();
+
+        Log.d(TAG, "New HtspMediaPeriod instantiated ("+mMediaPeriodNumber+")");
+
+        mKeyframeGate = new KeyframeGate("HtspMediaPeriod " + mMediaPeriodNumber);
+        mPtsSplicer = new PtsSplicer("HtspMediaPeriod " + mMediaPeriodNumber);
+        mSubscriptionStartCache = new SubscriptionStartCache(mContext);
+
+        // MediaPeriods are created on the playback thread, which has a Looper
+        mHandler = new Handler();
+
+        mSubscriber = new Subscriber(mConnection);
+        mSubscriber.addSubscriptionListener(this);
+        mConnection.addAuthenticationListener(mSubscriber);
+    }
+
+    void release() {
+        Log.i(TAG, "Releasing HtspMediaPeriod ("+mMediaPeriodNumber+")");
+
+        mConnection.removeAuthenticationListener(mSubscriber);
+        mSubscriber.removeSubscriptionListener(this);
+        mSubscriber.unsubscribe();
+
+        mHandler.removeCallbacksAndMessages(null);
+
+        synchronized (mSampleQueueWriteLock) {
+            // A muxpkt may still be on its way from the dispatcher thread
+            mIsReleased = true;
+
+            for (SampleQueue sampleQueue : mSampleQueues) {
+                sampleQueue.reset();
+            }
+        }
+
+        // Watch for memory leaks
+        Application.getRefWatcher(mContext).watch(this);
+    }
+
+    // MediaPeriod Methods
+    @Override
+    public void prepare(Callback callback, long positionUs) {
+        mCallback = callback;
+        mLastSeekPositionUs = positionUs;
+        mMemoryShare = PlaybackSessions.getMemoryShare(mContext, mSession);
+
+        // Declare tracks from the last known streams, so the renderers can configure their
+        // decoders while we wait for the server
+        mCachedSubscriptionStart = mSubscriptionStartCache.get(mChannelId);
+        if (mCachedSubscriptionStart != null) {
+            Log.d(TAG, "Declaring tracks from cached subscriptionStart ("+mMediaPeriodNumber+")");
+            createStreamReaders(mCachedSubscriptionStart);
+        }
+
+        try {
+            mSubscriber.subscribe(mChannelId, mStreamProfile, mTimeshiftPeriod);
+        } catch (HtspNotConnectedException e) {
+            mError = new IOException("Failed to subscribe, HTSP not connected ("+mMediaPeriodNumber+")", e);
+        }
+    }
+
+    @Override
+    public void maybeThrowPrepareError() throws IOException {
+        maybeThrowError();
+    }
+
+    @Override
+    public TrackGroupArray getTrackGroups() {
+        return mTrackGroups;
+    }
+
+    @Override
+    public long selectTracks(TrackSelection[] selections, boolean[] mayRetainStreamFlags,
+                             SampleStream[] streams, boolean[] streamResetFlags, long positionUs) {
+        // Deselect old tracks.
+        for (int i = 0; i < selections.length; i++) {
+            if (streams[i] != null && (selections[i] == null || !mayRetainStreamFlags[i])) {
+                final int track = ((HtspSampleStream) streams[i]).mTrack;
+                mTrackEnabledStates[track] = false;
+                mSampleQueues[track].discardToEnd();
+                streams[i] = null;
+            }
+        }
+
+        // Select new tracks.
+        for (int i = 0; i < selections.length; i++) {
+            if (streams[i] == null && selections[i] != null) {
+                final int track = mTrackGroups.indexOf(selections[i].getTrackGroup());
+                mTrackEnabledStates[track] = true;
+                streams[i] = new HtspSampleStream(track);
+                streamResetFlags[i] = true;
+            }
+        }
+
+        return positionUs;
+    }
+
+    @Override
+    public void discardBuffer(long positionUs, boolean toKeyframe) {
+        for (int i = 0; i < mSampleQueues.length; i++) {
+            if (mTrackEnabledStates[i]) {
+                mSampleQueues[i].discardTo(positionUs, toKeyframe, true);
+            } else {
+                // Samples keep arriving for disabled tracks, don't let them build up.
+                mSampleQueues[i].discardToEnd();
+            }
+        }
+
+        mMemoryShare = PlaybackSessions.getMemoryShare(mContext, mSession);
+        maybeResumeFlowControl();
+    }
+
+    @Override
+    public long readDiscontinuity() {
+        return C.TIME_UNSET;
+    }
+
+    @Override
+    public long getBufferedPositionUs() {
+        if (mLoadingFinished) {
+            return C.TIME_END_OF_SOURCE;
+        }
+
+        long largestQueuedTimestampUs = Long.MAX_VALUE;
+
+        for (int i = 0; i < mSampleQueues.length; i++) {
+            if (mTrackEnabledStates[i]) {
+                largestQueuedTimestampUs = Math.min(largestQueuedTimestampUs,
+                        mSampleQueues[i].getLargestQueuedTimestampUs());
+            }
+        }
+
+        if (largestQueuedTimestampUs == Long.MAX_VALUE || largestQueuedTimestampUs == Long.MIN_VALUE) {
+            return mLastSeekPositionUs;
+        }
+
+        return largestQueuedTimestampUs;
+    }
+
+    @Override
+    public long seekToUs(long positionUs) {
+        mLastSeekPositionUs = positionUs;
+
+        if (mTimeshiftPeriod == 0) {
+            // There's nothing the server can seek in, stay within what's buffered, as near to
+            // positionUs as we can
+            for (int i = 0; i < mSampleQueues.length; i++) {
+                mSampleQueues[i].rewind();
+                mSampleQueues[i].advanceTo(positionUs, true, true);
+                mSampleQueues[i].discardToRead();
+            }
+
+            return positionUs;
+        }
+
+        // If the position is already buffered, we can skip the round trip to the server
+        boolean seekInsideBuffer = true;
+
+        for (int i = 0; i < mSampleQueues.length; i++) {
+            SampleQueue sampleQueue = mSampleQueues[i];
+            sampleQueue.rewind();
+
+            if (mTrackEnabledStates[i]
+                    && sampleQueue.advanceTo(positionUs, true, false) == SampleQueue.ADVANCE_FAILED) {
+                seekInsideBuffer = false;
+                break;
+            }
+
+            sampleQueue.discardToRead();
+        }
+
+        if (!seekInsideBuffer) {
+            synchronized (mSampleQueueWriteLock) {
+                for (SampleQueue sampleQueue : mSampleQueues) {
+                    sampleQueue.reset();
+                }
+            }
+
+            Log.d(TAG, "Seek to time PTS: " + positionUs);
+            mSubscriber.skip(positionUs);
+        }
+
+        return positionUs;
+    }
+
+    @Override
+    public long getAdjustedSeekPositionUs(long positionUs, SeekParameters seekParameters) {
+        return mKeyframeIndex.getAdjustedSeekPositionUs(positionUs, seekParameters);
+    }
+
+    @Override
+    public long getNextLoadPositionUs() {
+        // Data is pushed to us by the server, there is nothing to ask for.
+        return mLoadingFinished ? C.TIME_END_OF_SOURCE : getBufferedPositionUs();
+    }
+
+    @Override
+    public boolean continueLoading(long positionUs) {
+        // Nothing to start loading, but the player may have made room for the subscription
+        maybeResumeFlowControl();
+        return false;
+    }
+
+    // ExtractorOutput Methods
+    @Override
+    public TrackOutput track(int id, int type) {
+        SampleQueue sampleQueue = mSampleQueuesById.get(id);
+
+        if (sampleQueue == null) {
+            if (mPrepared) {
+                // ExoPlayer has no way to add tracks once prepared
+                Log.w(TAG, "Discarding new stream at index " + id + " after preparation");
+                return new DummyTrackOutput();
+            }
+
+            sampleQueue = new SampleQueue(mAllocator);
+            mSampleQueuesById.put(id, sampleQueue);
+        }
+
+        return sampleQueue;
+    }
+
+    @Override
+    public void endTracks() {
+        final SampleQueue[] sampleQueues = new SampleQueue[mSampleQueuesById.size()];
+
+        for (int i = 0; i < sampleQueues.length; i++) {
+            sampleQueues[i] = mSampleQueuesById.valueAt(i);
+        }
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                maybeFinishPrepare(sampleQueues);
+            }
+        });
+    }
+
+    @Override
+    public void seekMap(SeekMap seekMap) {
+        // Not used, seeking is handled by the Subscriber
+    }
+
+    // Subscription.Listener Methods
+    @Override
+    public void onSubscriptionStart(@NonNull HtspMessage message) {
+        Log.d(TAG, "Received subscriptionStart ("+mMediaPeriodNumber+")");
+
+        mSubscriptionId = message.getInteger("subscriptionId", INVALID_SUBSCRIPTION_ID);
+
+        // A resubscription, e.g. after a reconnect, starts again at a keyframe, and carries on
+        // from where the previous subscription left off
+        mKeyframeGate.onSubscriptionStart(message);
+        mPtsSplicer.onSubscriptionStart();
+        mSubscriptionStartCache.put(mChannelId, message);
+
+        if (mCachedSubscriptionStart != null) {
+            final HtspMessage cached = mCachedSubscriptionStart;
+            mCachedSubscriptionStart = null;
+
+            if (!SubscriptionStartCache.hasSameStreams(cached, message)) {
+                Log.w(TAG, "Streams differ from the cached subscriptionStart ("+mMediaPeriodNumber+")");
+                mError = new StreamsChangedException("Streams differ from the cached subscriptionStart");
+                return;
+            }
+        }
+
+        synchronized (mSampleQueueWriteLock) {
+            if (!mIsReleased) {
+                createStreamReaders(message);
+            }
+        }
+    }
+
+    @Override
+    public void onSubscriptionStatus(@NonNull HtspMessage message) {
+        // Don't care about this event here
+    }
+
+    @Override
+    public void onSubscriptionSkip(@NonNull HtspMessage message) {
+        // Data after the skip will start mid-GOP
+        mKeyframeGate.reset();
+    }
+
+    @Override
+    public void onSubscriptionSpeed(@NonNull HtspMessage message) {
+        // Don't care about this event here
+    }
+
+    @Override
+    public void onSubscriptionStop(@NonNull HtspMessage message) {
+        Log.d(TAG, "Received subscriptionStop ("+mMediaPeriodNumber+")");
+        mLoadingFinished = true;
+    }
+
+    @Override
+    public void onQueueStatus(@NonNull HtspMessage message) {
+        // Don't care about this event here
+    }
+
+    @Override
+    public void onSignalStatus(@NonNull HtspMessage message) {
+        // Don't care about this event here
+    }
+
+    @Override
+    public void onTimeshiftStatus(@NonNull HtspMessage message) {
+        if (message.containsKey("start")) {
+            // Anything before the start of the server's timeshift buffer can no longer be sought to
+            mKeyframeIndex.trimToPts(message.getLong("start"));
+        }
+    }
+
+    @Override
+    public void onMuxpkt(@NonNull HtspMessage message) {
+        final StreamReader streamReader = mStreamReaders.get(message.getInteger("stream"));
+        if (streamReader == null) {
+            // Not a stream we care about, move on.
+            return;
+        }
+
+        final Muxpkt muxpkt = mMuxpkt;
+        muxpkt.set(message);
+
+        final boolean isKeyframeOnly = TrickPlay.isKeyframeOnly(mSpeed);
+        if (isKeyframeOnly != mIsKeyframeOnly) {
+            mIsKeyframeOnly = isKeyframeOnly;
+
+            if (!isKeyframeOnly) {
+                // Back to normal speed, the frames which follow may reference ones we skipped
+                mKeyframeGate.reset();
+            }
+        }
+
+        if (mIsKeyframeOnly && !mKeyframeGate.isVideoKeyframe(muxpkt)) {
+            // Trick play, only keyframes are decoded and audio is muted
+            return;
+        }
+
+        if (!mKeyframeGate.accept(muxpkt)) {
+            return;
+        }
+
+        mPtsSplicer.adjust(muxpkt);
+
+        if (mKeyframeGate.isVideoKeyframe(muxpkt) && muxpkt.hasPts()) {
+            final long pts = muxpkt.getPts();
+            mKeyframeIndex.add(pts, pts);
+        }
+
+        synchronized (mSampleQueueWriteLock) {
+            if (!mIsReleased) {
+                streamReader.consume(muxpkt);
+            }
+        }
+
+        maybePauseFlowControl();
+    }
+
+    // HtspPlaybackControl Methods
+    @Override
+    public void pause() {
+        synchronized (mFlowControlLock) {
+            mIsPaused = true;
+            mSubscriber.pause();
+        }
+    }
+
+    @Override
+    public void resume() {
+        synchronized (mFlowControlLock) {
+            mIsPaused = false;
+
+            if (!mIsFlowControlPaused) {
+                resumeSubscriber();
+            }
+        }
+    }
+
+    @Override
+    public long getTimeshiftStartTime() {
+        return mSubscriber.getTimeshiftStartTime();
+    }
+
+    @Override
+    public long getTimeshiftStartPts() {
+        return mSubscriber.getTimeshiftStartPts();
+    }
+
+    @Override
+    public long getTimeshiftOffsetPts() {
+        return mSubscriber.getTimeshiftOffsetPts();
+    }
+
+    @Override
+    public boolean setSpeed(int speed) {
+        if (mTimeshiftPeriod == 0 || mSubscriptionId == INVALID_SUBSCRIPTION_ID || speed <= 0) {
+            // Reverse playback can't be decoded, and anything else needs a server side timeshift
+            return false;
+        }
+
+        try {
+            TrickPlay.sendSubscriptionSpeed(mConnection, mSubscriptionId, speed);
+        } catch (HtspNotConnectedException e) {
+            Log.w(TAG, "Failed to change subscription speed, HTSP not connected ("+mMediaPeriodNumber+")");
+            return false;
+        }
+
+        Log.d(TAG, "Subscription speed changed to " + speed + " ("+mMediaPeriodNumber+")");
+        mSpeed = speed;
+
+        return true;
+    }
+
+    // Misc Internal Methods
+    private void resumeSubscriber() {
+        mSubscriber.resume();
+
+        if (mSpeed != TrickPlay.NORMAL_SPEED && mSubscriptionId != INVALID_SUBSCRIPTION_ID) {
+            // Resuming puts the subscription back to normal speed
+            try {
+                TrickPlay.sendSubscriptionSpeed(mConnection, mSubscriptionId, mSpeed);
+            } catch (HtspNotConnectedException e) {
+                Log.w(TAG, "Failed to restore subscription speed, HTSP not connected ("+mMediaPeriodNumber+")");
+            }
+        }
+    }
+
+    private void maybePauseFlowControl() {
+        if (mAllocator.getTotalBytesAllocated() < mMemoryShare * FLOW_CONTROL_PAUSE_LEVEL) {
+            return;
+        }
+
+        synchronized (mFlowControlLock) {
+            if (!mIsFlowControlPaused) {
+                Log.d(TAG, "Memory share nearly used, pausing subscription ("+mMediaPeriodNumber+")");
+                mIsFlowControlPaused = true;
+                mSubscriber.pause();
+            }
+        }
+    }
+
+    private void maybeResumeFlowControl() {
+        synchronized (mFlowControlLock) {
+            if (!mIsFlowControlPaused
+                    || mAllocator.getTotalBytesAllocated() >= mMemoryShare * FLOW_CONTROL_RESUME_LEVEL) {
+                return;
+            }
+
+            Log.d(TAG, "Memory share drained, resuming subscription ("+mMediaPeriodNumber+")");
+            mIsFlowControlPaused = false;
+
+            if (!mIsPaused) {
+                resumeSubscriber();
+            }
+        }
+    }
+
+    private void createStreamReaders(@NonNull HtspMessage message) {
+        StreamReadersFactory streamReadersFactory = new StreamReadersFactory(mContext);
+
+        for (HtspMessage stream : message.getHtspMessageArray("streams")) {
+            final int streamIndex = stream.getInteger("index");
+            final String streamType = stream.getString("type");
+
+            final StreamReader existingStreamReader = mStreamReaders.get(streamIndex);
+            if (existingStreamReader != null) {
+                // Pass on the latest format, any differences are picked up as a format change
+                existingStreamReader.createTracks(stream, this);
+                continue;
+            }
+
+            final StreamReader streamReader = streamReadersFactory.createStreamReader(streamType);
+            if (streamReader != null) {
+                Log.d(TAG, "Creating StreamReader for " + streamType + " stream at index " + streamIndex);
+                streamReader.createTracks(stream, this);
+                mStreamReaders.put(streamIndex, streamReader);
+            } else {
+                Log.d(TAG, "Discarding stream at index " + streamIndex + ", no suitable StreamReader");
+            }
+        }
+
+        Log.d(TAG, "All streams have now been handled");
+        endTracks();
+    }
+
+    private void maybeFinishPrepare(SampleQueue[] sampleQueues) {
+        if (mPrepared) {
+            return;
+        }
+
+        TrackGroup[] trackGroups = new TrackGroup[sampleQueues.length];
+
+        for (int i = 0; i < sampleQueues.length; i++) {
+            trackGroups[i] = new TrackGroup(sampleQueues[i].getUpstreamFormat());
+        }
+
+        mSampleQueues = sampleQueues;
+        mTrackGroups = new TrackGroupArray(trackGroups);
+        mTrackEnabledStates = new boolean[sampleQueues.length];
+        mPrepared = true;
+
+        Log.d(TAG, "HtspMediaPeriod prepared with " + sampleQueues.length + " tracks ("+mMediaPeriodNumber+")");
+        mCallback.onPrepared(this);
+    }
+
+    private void maybeThrowError() throws IOException {
+        if (mError != null) {
+            throw mError;
+        }
+    }
+
+    // Inner Classes
+    private final class HtspSampleStream implements SampleStream {
+        private final int mTrack;
+
+        HtspSampleStream(int track) {
+            mTrack = track;
+        }
+
+        @Override
+        public boolean isReady() {
+            return mLoadingFinished || mSampleQueues[mTrack].hasNextSample();
+        }
+
+        @Override
+        public void maybeThrowError() throws IOException {
+            HtspMediaPeriod.this.maybeThrowError();
+        }
+
+        @Override
+        public int readData(FormatHolder formatHolder, DecoderInputBuffer buffer, boolean formatRequired) {
+            return mSampleQueues[mTrack].read(formatHolder, buffer, formatRequired, mLoadingFinished,
+                    mLastSeekPositionUs);
+        }
+
+        @Override
+        public int skipData(long positionUs) {
+            SampleQueue sampleQueue = mSampleQueues[mTrack];
+
+            if (mLoadingFinished && positionUs > sampleQueue.getLargestQueuedTimestampUs()) {
+                return sampleQueue.advanceToEnd();
+            }
+
+            final int skipCount = sampleQueue.advanceTo(positionUs, true, true);
+            return skipCount == SampleQueue.ADVANCE_FAILED ? 0 : skipCount;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.player;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.ExoPlayer;
+import com.google.android.exoplayer2.source.MediaPeriod;
+import com.google.android.exoplayer2.source.MediaSource;
+import com.google.android.exoplayer2.source.SinglePeriodTimeline;
+import com.google.android.exoplayer2.upstream.Allocator;
+
+import ie.macinnes.htsp.SimpleHtspConnection;
+
+/**
+ * A MediaSource for live channels, which subscribes directly rather than going through a
+ * HtspSubscriptionDataSource and HtspExtractor.
+ */
+class HtspMediaSource implements MediaSource, HtspPlaybackControl {
+    private static final String TAG = HtspMediaSource.class.getName();
+
+    private final Context mContext;
+    private final SimpleHtspConnection mConnection;
+    private final long mChannelId;
+    private final String mStreamProfile;
+    private final Object mSession;
+    private final int mTimeshiftPeriod;
+
+    private HtspMediaPeriod mMediaPeriod;
+
+    /**
+     * @param session the playback session the source belongs to, its share of the memory budget
+     *                bounds how much is buffered
+     */
+    HtspMediaSource(Context context, SimpleHtspConnection connection, Uri channelUri,
+                    String streamProfile, Object session) {
+        mContext = context;
+        mConnection = connection;
+        mChannelId = Long.parseLong(channelUri.getPath().substring(1));
+        mStreamProfile = streamProfile;
+        mSession = session;
+        mTimeshiftPeriod = HtspSubscriptionDataSource.getServerTimeshiftPeriod(mContext);
+    }
+
+    // MediaSource Methods
+    @Override
+    public void prepareSource(ExoPlayer player, boolean isTopLevelSource, Listener listener) {
+        Log.i(TAG, "Preparing HtspMediaSource for channel " + mChannelId);
+        listener.onSourceInfoRefreshed(
+                this, new SinglePeriodTimeline(C.TIME_UNSET, mTimeshiftPeriod > 0, true), null);
+    }
+
+    @Override
+    public void maybeThrowSourceInfoRefreshError() {
+        // Nothing to throw, the timeline is known up front
+    }
+
+    @Override
+    public MediaPeriod createPeriod(MediaPeriodId id, Allocator allocator) {
+        mMediaPeriod = new HtspMediaPeriod(
+                mContext, mConnection, mChannelId, mStreamProfile, mTimeshiftPeriod, allocator, mSession);
+        return mMediaPeriod;
+    }
+
+    @Override
+    public void releasePeriod(MediaPeriod mediaPeriod) {
+        ((HtspMediaPeriod) mediaPeriod).release();
+
+        if (mMediaPeriod == mediaPeriod) {
+            mMediaPeriod = null;
+        }
+    }
+
+    @Override
+    public void releaseSource() {
+        Log.i(TAG, "Releasing HtspMediaSource for channel " + mChannelId);
+    }
+
+    // HtspPlaybackControl Methods
+    @Override
+    public void pause() {
+        if (mMediaPeriod != null) {
+            mMediaPeriod.pause();
+        }
+    }
+
+    @Override
+    public void resume() {
+        if (mMediaPeriod != null) {
+            mMediaPeriod.resume();
+        }
+    }
+
+    @Override
+    public long getTimeshiftStartTime() {
+        if (mMediaPeriod != null) {
+            return mMediaPeriod.getTimeshiftStartTime();
+        }
+
+        return HtspDataSource.INVALID_TIMESHIFT_TIME;
+    }
+
+    @Override
+    public long getTimeshiftStartPts() {
+        if (mMediaPeriod != null) {
+            return mMediaPeriod.getTimeshiftStartPts();
+        }
+
+        return HtspDataSource.INVALID_TIMESHIFT_TIME;
+    }
+
+    @Override
+    public long getTimeshiftOffsetPts() {
+        if (mMediaPeriod != null) {
+            return mMediaPeriod.getTimeshiftOffsetPts();
+        }
+
+        return HtspDataSource.INVALID_TIMESHIFT_TIME;
+    }
+
+    @Override
+    public boolean setSpeed(int speed) {
+        return mMediaPeriod != null && mMediaPeriod.setSpeed(speed);
+    }
+
+    @Override
+    public long switchChannel(long channelId) {
+        // The channel is fixed for the lifetime of the source, it has to be opened afresh
+        return C.TIME_UNSET;
+    }
+}
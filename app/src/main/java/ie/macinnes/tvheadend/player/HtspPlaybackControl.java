@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.player;
+
+/**
+ * Methods used by the player, which need to be passed to the Subscriber (or file) backing the
+ * current playback.
+ */
+interface HtspPlaybackControl {
+    void pause();
+    void resume();
+    long getTimeshiftStartTime();
+    long getTimeshiftStartPts();
+    long getTimeshiftOffsetPts();
+
+    /**
+     * Changes the speed media is delivered at, as a percentage of normal speed. Above
+     * TrickPlay.MAX_FULL_DECODE_SPEED, only video keyframes are delivered.
+     *
+     * @return false if the speed can not be changed, e.g. for recordings or reverse playback
+     */
+    boolean setSpeed(int speed);
+
+    /**
+     * Replaces the live subscription with one for channelId, spliced on to the end of what has
+     * been received so far, so the player can carry on with the same renderers.
+     *
+     * @return the position the new channel starts at, in microseconds, for the player to seek to,
+     * or C.TIME_UNSET if the channel has to be opened afresh instead
+     */
+    long switchChannel(long channelId);
+}
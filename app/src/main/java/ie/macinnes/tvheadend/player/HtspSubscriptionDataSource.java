@@ -18,21 +18,26 @@ package ie.macinnes.tvheadend.player;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
+import android.util.SparseBooleanArray;
 
 import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.upstream.DataSpec;
 
 import org.acra.ACRA;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.nio.ByteBuffer;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.LockSupport;
 
+import ie.macinnes.htsp.HtspConnection;
 import ie.macinnes.htsp.HtspMessage;
 import ie.macinnes.htsp.HtspNotConnectedException;
 import ie.macinnes.htsp.SimpleHtspConnection;
@@ -44,81 +49,200 @@ import ie.macinnes.tvheadend.R;
 public class HtspSubscriptionDataSource extends HtspDataSource implements Subscriber.Listener {
     private static final String TAG = HtspSubscriptionDataSource.class.getName();
     private static final AtomicInteger sDataSourceCount = new AtomicInteger();
-    private static final int BUFFER_SIZE = 10*1024*1024;
+    private static final long DATA_TIMEOUT_MS = 10000;
+
+    // How long to wait for data while the connection is being re-established, before giving up
+    private static final long RECONNECT_TIMEOUT_MS = 30000;
     public static final byte[] HEADER = new byte[] {0,1,0,1,0,1,0,1};
 
+    static final String OVERFLOW_POLICY_DROP_TO_KEYFRAME = "drop_to_keyframe";
+    static final String OVERFLOW_POLICY_PAUSE_SUBSCRIPTION = "pause_subscription";
+
+    // Buffer fill levels at which the subscription is paused and resumed, when flow control is used
+    private static final float FLOW_CONTROL_PAUSE_LEVEL = 0.9f;
+    private static final float FLOW_CONTROL_RESUME_LEVEL = 0.5f;
+
+    static final String TIMESHIFT_STORAGE_SERVER = "server";
+    static final String TIMESHIFT_STORAGE_LOCAL = "local";
+
+    // TODO: Eventually, this should be a preference.
+    private static final int SERVER_TIMESHIFT_PERIOD = 3600;
+
+    private static final int INVALID_SUBSCRIPTION_ID = -1;
+
+    private static final long NO_PENDING_CHANNEL = -1;
+
+    // How long to hold back a switched to channel, waiting for the player's seek to re-open us
+    private static final long SWITCH_REOPEN_TIMEOUT_MS = 2000;
+
+    // How often to index frames for the client side timeshift when there is no video to index
+    private static final long TIMESHIFT_AUDIO_INDEX_INTERVAL_US = 1000000;
+
     public static class Factory extends HtspDataSource.Factory {
         private static final String TAG = Factory.class.getName();
 
         private final Context mContext;
         private final SimpleHtspConnection mConnection;
         private final String mStreamProfile;
+        private final StandbySubscriptionPool mStandbySubscriptionPool;
 
-        public Factory(Context context, SimpleHtspConnection connection, String streamProfile) {
+        public Factory(Context context, SimpleHtspConnection connection, String streamProfile,
+                       @Nullable StandbySubscriptionPool standbySubscriptionPool) {
             mContext = context;
             mConnection = connection;
             mStreamProfile = streamProfile;
+            mStandbySubscriptionPool = standbySubscriptionPool;
         }
 
         @Override
         public HtspDataSource createDataSourceInternal() {
-            return new HtspSubscriptionDataSource(mContext, mConnection, mStreamProfile);
+            return new HtspSubscriptionDataSource(mContext, mConnection, mStreamProfile, mStandbySubscriptionPool);
         }
 
     }
 
     private final String mStreamProfile;
+    private final StandbySubscriptionPool mStandbySubscriptionPool;
 
     private final SharedPreferences mSharedPreferences;
+    private final SubscriptionStartCache mSubscriptionStartCache;
     private int mTimeshiftPeriod = 0;
 
     private final int mDataSourceNumber;
-    private Subscriber mSubscriber;
 
-    private ByteBuffer mBuffer;
-    private final ReentrantLock mLock = new ReentrantLock();
+    // Guards the subscriber, and the writing end of the buffers. The subscriber is replaced on the
+    // loader thread, while the dispatcher thread writes what it delivers, and the player pauses and
+    // resumes it.
+    private final Object mLock = new Object();
+    private volatile Subscriber mSubscriber;
+    // Set when mSubscriber was promoted from the standby pool, it then delivers to us through this
+    private volatile StandbySubscription mStandbySubscription;
+
+    private RingBuffer mBuffer;
+
+    // Client side timeshift, used in place of mBuffer when enabled. Unlike mBuffer, reading from
+    // it does not consume anything, so the read position is tracked here, along with the start of
+    // the next frame, as the reader may only jump to another position on a frame boundary.
+    private TimeshiftStore mTimeshiftStore;
+    private volatile long mReadPosition = 0;
+    private long mNextFrameStart = HEADER.length;
+    private long mLastIndexedPts = Long.MIN_VALUE;
+    private volatile long mTimeshiftStartTime = INVALID_TIMESHIFT_TIME;
+
+    // Overflow handling. Frames are dropped until the next video keyframe whenever the buffer
+    // overflows, optionally the subscription is also paused before we reach that point.
+    private boolean mFlowControlEnabled = false;
+    private volatile boolean mIsFlowControlPaused = false;
+    private final SparseBooleanArray mVideoStreams = new SparseBooleanArray();
+    private boolean mIsDroppingToKeyframe = false;
+    private long mDroppedFrames = 0;
+    private long mDroppedBytes = 0;
+
+    // Used to estimate the stream bitrate, which sizes future buffers
+    private long mFirstMuxpktTime = 0;
+    private long mMuxpktBytes = 0;
+    private final byte[] mFrameHeader = new byte[HtspFraming.FRAME_LENGTH_SIZE + HtspFraming.MUXPKT_HEADER_SIZE];
+
+    // The loader thread, while it is parked waiting for data
+    private volatile Thread mReaderThread;
+
+    private volatile boolean mIsOpen = false;
+    private volatile boolean mIsPaused = false;
+
+    // Trick play, the speed is set from the player thread and applied to packets as they arrive
+    private volatile int mSubscriptionId = INVALID_SUBSCRIPTION_ID;
+    private volatile int mSpeed = TrickPlay.NORMAL_SPEED;
+    private boolean mIsKeyframeOnly = false;
+
+    private volatile boolean mIsSubscribed = false;
+    private volatile long mChannelId;
+
+    // Set by switchChannel() until the seek which follows it re-opens the data source, and the
+    // subscription is replaced. Packets of the old channel are dropped meanwhile.
+    private volatile long mPendingChannelId = NO_PENDING_CHANNEL;
+    private volatile long mSwitchTime;
+    private volatile HtspMessage mSubscriptionStart;
+
+    // The subscription replaced by the last switch, anything of it still in flight is ignored
+    private int mStaleSubscriptionId = INVALID_SUBSCRIPTION_ID;
+
+    // Set when the connection drops, until the resubscription starts delivering again
+    private volatile boolean mIsReconnecting = false;
+    private volatile long mReconnectStartTime;
+    private final PtsSplicer mPtsSplicer;
+
+    private final HtspConnection.Listener mConnectionListener = new HtspConnection.Listener() {
+        @Override
+        public Handler getHandler() {
+            return null;
+        }
 
-    private boolean mIsOpen = false;
-    private boolean mIsSubscribed = false;
+        @Override
+        public void setConnection(@NonNull HtspConnection connection) {
+            // Don't care about this event here
+        }
 
-    private HtspSubscriptionDataSource(Context context, SimpleHtspConnection connection, String streamProfile) {
+        @Override
+        public void onConnectionStateChange(@NonNull HtspConnection.State state) {
+            if ((state == HtspConnection.State.FAILED || state == HtspConnection.State.CLOSED)
+                    && mIsSubscribed && !mIsReconnecting) {
+                // The Subscriber resubscribes once the connection is re-authenticated
+                Log.w(TAG, "HTSP connection lost, waiting to resubscribe ("+mDataSourceNumber+")");
+                mReconnectStartTime = SystemClock.elapsedRealtime();
+                mIsReconnecting = true;
+            }
+        }
+    };
+
+    private HtspSubscriptionDataSource(Context context, SimpleHtspConnection connection, String streamProfile,
+                                       @Nullable StandbySubscriptionPool standbySubscriptionPool) {
         super(context, connection);
 
         mStreamProfile = streamProfile;
+        mStandbySubscriptionPool = standbySubscriptionPool;
 
         mSharedPreferences = mContext.getSharedPreferences(
                 Constants.PREFERENCE_TVHEADEND, Context.MODE_PRIVATE);
 
-        boolean timeshiftEnabled = mSharedPreferences.getBoolean(
-                Constants.KEY_TIMESHIFT_ENABLED,
-                mContext.getResources().getBoolean(R.bool.pref_default_timeshift_enabled));
+        mSubscriptionStartCache = new SubscriptionStartCache(mContext);
 
-        if (timeshiftEnabled) {
-            // TODO: Eventually, this should be a preference.
-            mTimeshiftPeriod = 3600;
-        }
+        mTimeshiftPeriod = getServerTimeshiftPeriod(mContext);
 
         mDataSourceNumber = sDataSourceCount.incrementAndGet();
+        mPtsSplicer = new PtsSplicer("HtspSubscriptionDataSource " + mDataSourceNumber);
 
         Log.d(TAG, "New HtspSubscriptionDataSource instantiated ("+mDataSourceNumber+")");
 
-        try {
-            // Create the buffer, and place the HtspSubscriptionDataSource header in place.
-            mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-            mBuffer.limit(HEADER.length);
-            mBuffer.put(HEADER);
-            mBuffer.position(0);
-        } catch (OutOfMemoryError e) {
-            // Since we're allocating a large buffer here, it's fairly safe to assume we'll have
-            // enough memory to catch and throw this exception. We do this, as each OOM exception
-            // message is unique (lots of #'s of bytes available/used/etc) and means crash reporting
-            // doesn't group things nicely.
-            throw new RuntimeException("OutOfMemoryError when allocating HtspSubscriptionDataSource buffer ("+mDataSourceNumber+")", e);
+        if (isLocalTimeshiftEnabled(mContext)) {
+            mTimeshiftStore = createTimeshiftStore();
+        } else {
+            // Nothing left to reuse them for
+            TimeshiftStore.releaseSpareSegments();
+        }
+
+        if (mTimeshiftStore != null) {
+            // Place the HtspSubscriptionDataSource header in place.
+            mTimeshiftStore.write(HEADER, HEADER.length, null, null);
+        } else {
+            final String overflowPolicy = mSharedPreferences.getString(
+                    Constants.KEY_BUFFER_OVERFLOW_POLICY,
+                    mContext.getResources().getString(R.string.pref_default_buffer_overflow_policy));
+
+            mFlowControlEnabled = OVERFLOW_POLICY_PAUSE_SUBSCRIPTION.equals(overflowPolicy);
+
+            try {
+                // Create the buffer, and place the HtspSubscriptionDataSource header in place.
+                mBuffer = new RingBuffer(BufferBackend.allocateBuffer(mContext));
+                mBuffer.write(HEADER, HEADER.length, null);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to allocate HtspSubscriptionDataSource buffer ("+mDataSourceNumber+")", e);
+            }
         }
 
         mSubscriber = new Subscriber(mConnection);
         mSubscriber.addSubscriptionListener(this);
         mConnection.addAuthenticationListener(mSubscriber);
+        mConnection.addConnectionListener(mConnectionListener);
     }
 
     @Override
@@ -150,10 +274,27 @@ public class HtspSubscriptionDataSource extends HtspDataSource implements Subscr
         Log.i(TAG, "Opening HtspSubscriptionDataSource ("+mDataSourceNumber+")");
         mDataSpec = dataSpec;
 
+        final long pendingChannelId = mPendingChannelId;
+
+        if (pendingChannelId != NO_PENDING_CHANNEL) {
+            // Re-opened by the seek which follows a channel switch. Whatever is left of the old
+            // channel is dropped, the new one starts at the position switchChannel() returned.
+            try {
+                switchSubscription(pendingChannelId, true);
+            } catch (HtspNotConnectedException e) {
+                throw new IOException("Failed to switch channel, HTSP not connected (" + mDataSourceNumber + ")", e);
+            }
+        }
+
         if (!mIsSubscribed) {
+            long channelId = Long.parseLong(dataSpec.uri.getPath().substring(1));
+            mChannelId = channelId;
+
             try {
-                long channelId = Long.parseLong(dataSpec.uri.getPath().substring(1));
-                mSubscriber.subscribe(channelId, mStreamProfile, mTimeshiftPeriod);
+                synchronized (mLock) {
+                    // Let the extractor declare tracks while we wait for the server
+                    subscribe(channelId, true);
+                }
                 mIsSubscribed = true;
             } catch (HtspNotConnectedException e) {
                 throw new IOException("Failed to open HtspSubscriptionDataSource, HTSP not connected (" + mDataSourceNumber + ")", e);
@@ -161,12 +302,24 @@ public class HtspSubscriptionDataSource extends HtspDataSource implements Subscr
         }
 
         long seekPosition = mDataSpec.position;
-        if (seekPosition > 0 && mTimeshiftPeriod > 0) {
+        if (pendingChannelId != NO_PENDING_CHANNEL) {
+            // The position is where the new channel gets spliced on, there is nothing to skip
+            Log.d(TAG, "Switched channel, starting at PTS: " + seekPosition);
+        } else if (seekPosition > 0 && mTimeshiftStore != null) {
+            // Served entirely from the client side timeshift, no need to involve the server
+            final long position = mTimeshiftStore.findPosition(seekPosition);
+            Log.d(TAG, "Seek to time PTS: " + seekPosition + ", local position: " + position);
+
+            mTimeshiftStore.endFrameRead();
+            mReadPosition = position;
+            mNextFrameStart = position;
+        } else if (seekPosition > 0 && mTimeshiftPeriod > 0) {
             Log.d(TAG, "Seek to time PTS: " + seekPosition);
 
-            mSubscriber.skip(seekPosition);
+            synchronized (mLock) {
+                mSubscriber.skip(seekPosition);
+            }
             mBuffer.clear();
-            mBuffer.limit(0);
         }
 
         mIsOpen = true;
@@ -181,34 +334,31 @@ public class HtspSubscriptionDataSource extends HtspDataSource implements Subscr
         }
 
         // If the buffer is empty, block until we have at least 1 byte
-        while (mIsOpen && mBuffer.remaining() == 0) {
-            try {
-                if (Constants.DEBUG)
-                    Log.v(TAG, "Blocking for more data ("+mDataSourceNumber+")");
-                Thread.sleep(250);
-            } catch (InterruptedException e) {
-                // Ignore.
-                Log.w(TAG, "Caught InterruptedException ("+mDataSourceNumber+")");
-                return 0;
-            }
+        if (getReadableBytes() == 0) {
+            waitForData();
         }
 
-        if (!mIsOpen && mBuffer.remaining() == 0) {
+        if (!mIsOpen && getReadableBytes() == 0) {
             return C.RESULT_END_OF_INPUT;
         }
 
-        int length;
+        if (mTimeshiftStore != null) {
+            return readFromTimeshiftStore(buffer, offset, readLength);
+        }
 
-        mLock.lock();
-        try {
-            int remaining = mBuffer.remaining();
-            length = remaining >= readLength ? readLength : remaining;
+        final int length = mBuffer.read(buffer, offset, Math.min(readLength, getReadableBytes()));
 
-            mBuffer.get(buffer, offset, length);
-            mBuffer.compact();
-            mBuffer.flip();
-        } finally {
-            mLock.unlock();
+        if (mIsFlowControlPaused
+                && mBuffer.getReadableBytes() < mBuffer.getCapacity() * FLOW_CONTROL_RESUME_LEVEL) {
+            Log.d(TAG, "Buffer drained, resuming subscription ("+mDataSourceNumber+")");
+
+            synchronized (mLock) {
+                mIsFlowControlPaused = false;
+
+                if (!mIsPaused && mSubscriber != null) {
+                    resumeSubscriber();
+                }
+            }
         }
 
         return length;
@@ -218,13 +368,52 @@ public class HtspSubscriptionDataSource extends HtspDataSource implements Subscr
     public void close() throws IOException {
         Log.i(TAG, "Closing HTSP DataSource ("+mDataSourceNumber+")");
         mIsOpen = false;
+        signalReader();
     }
 
     // Subscription.Listener Methods
     @Override
     public void onSubscriptionStart(@NonNull HtspMessage message) {
-        Log.d(TAG, "Received subscriptionStart ("+mDataSourceNumber+")");
-        serializeMessageToBuffer(message);
+        synchronized (mLock) {
+            if (isStale(message)) {
+                return;
+            }
+
+            Log.d(TAG, "Received subscriptionStart ("+mDataSourceNumber+")");
+
+            if (mIsReconnecting) {
+                final long elapsedMs = SystemClock.elapsedRealtime() - mReconnectStartTime;
+                Log.i(TAG, "Resubscribed after " + elapsedMs + "ms without a connection ("+mDataSourceNumber+")");
+                mIsReconnecting = false;
+            }
+
+            if (mSubscriptionId != INVALID_SUBSCRIPTION_ID) {
+                // A resubscription, which has to start cleanly at a keyframe, and carry on from
+                // where the previous subscription left off
+                mIsDroppingToKeyframe = true;
+            }
+            mPtsSplicer.onSubscriptionStart();
+
+            mSubscriptionId = message.getInteger("subscriptionId", INVALID_SUBSCRIPTION_ID);
+            mSubscriptionStart = message;
+
+            mVideoStreams.clear();
+            for (HtspMessage stream : message.getHtspMessageArray("streams")) {
+                if (KeyframeGate.isVideoStream(stream.getString("type"))) {
+                    mVideoStreams.put(stream.getInteger("index"), true);
+                }
+            }
+
+            // Before the frame is written, anything reading it back should see the same streams
+            mSubscriptionStartCache.put(mChannelId, message);
+
+            try {
+                final byte[] frame = HtspFraming.encodeSubscriptionStart(message, false);
+                writeFrameToBuffer(frame, frame.length, null, null);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to encode subscriptionStart, ignoring ("+mDataSourceNumber+")", e);
+            }
+        }
     }
 
     @Override
@@ -244,8 +433,15 @@ public class HtspSubscriptionDataSource extends HtspDataSource implements Subscr
 
     @Override
     public void onSubscriptionStop(@NonNull HtspMessage message) {
-        Log.d(TAG, "Received subscriptionStop ("+mDataSourceNumber+")");
-        mIsOpen = false;
+        synchronized (mLock) {
+            if (isStale(message)) {
+                return;
+            }
+
+            Log.d(TAG, "Received subscriptionStop ("+mDataSourceNumber+")");
+            mIsOpen = false;
+            signalReader();
+        }
     }
 
     @Override
@@ -260,25 +456,122 @@ public class HtspSubscriptionDataSource extends HtspDataSource implements Subscr
 
     @Override
     public void onTimeshiftStatus(@NonNull HtspMessage message) {
-        // Don't care about this event here
+        synchronized (mLock) {
+            if (isStale(message)) {
+                return;
+            }
+
+            if (mTimeshiftStore != null || !message.containsKey("start")) {
+                // The local store indexes itself, and we have nothing to pass on otherwise
+                return;
+            }
+
+            // Let the extractor drop seek points which have fallen out of the server's buffer
+            byte[] frame = new byte[HtspFraming.FRAME_LENGTH_SIZE + HtspFraming.TIMESHIFT_STATUS_HEADER_SIZE];
+            final int frameLength = HtspFraming.writeTimeshiftStatus(frame, message.getLong("start"));
+            writeFrameToBuffer(frame, frameLength, null, null);
+        }
     }
 
     @Override
     public void onMuxpkt(@NonNull HtspMessage message) {
-        serializeMessageToBuffer(message);
+        synchronized (mLock) {
+            if (isStale(message) || mPendingChannelId != NO_PENDING_CHANNEL) {
+                // Nothing more of the old channel should reach the buffer
+                return;
+            }
+
+            final byte[] payload = message.getByteArray("payload");
+
+            if (mFirstMuxpktTime == 0) {
+                mFirstMuxpktTime = SystemClock.elapsedRealtime();
+            }
+            mMuxpktBytes += payload.length;
+
+            final boolean isKeyframeOnly = TrickPlay.isKeyframeOnly(mSpeed);
+            if (isKeyframeOnly != mIsKeyframeOnly) {
+                mIsKeyframeOnly = isKeyframeOnly;
+
+                if (!isKeyframeOnly) {
+                    // Back to normal speed, the frames which follow may reference ones we skipped
+                    mIsDroppingToKeyframe = true;
+                }
+            }
+
+            if (mIsKeyframeOnly && !isKeyframe(message)) {
+                // Trick play, only keyframes are decoded and audio is muted
+                return;
+            }
+
+            if (mIsDroppingToKeyframe && !isKeyframe(message)) {
+                mDroppedFrames++;
+                mDroppedBytes += payload.length;
+                return;
+            }
+
+            mPtsSplicer.adjust(message);
+
+            final int headerLength = HtspFraming.writeMuxpktHeader(mFrameHeader, message, payload.length);
+
+            if (writeFrameToBuffer(mFrameHeader, headerLength, payload, getTimeshiftIndexPts(message))) {
+                if (mIsDroppingToKeyframe) {
+                    Log.i(TAG, "Resuming at keyframe, dropped " + mDroppedFrames + " frames / "
+                            + mDroppedBytes + " bytes in total ("+mDataSourceNumber+")");
+                    mIsDroppingToKeyframe = false;
+                }
+            } else {
+                if (!mIsDroppingToKeyframe) {
+                    Log.w(TAG, "Buffer full, dropping frames until the next keyframe ("+mDataSourceNumber+")");
+                    mIsDroppingToKeyframe = true;
+                }
+
+                mDroppedFrames++;
+                mDroppedBytes += payload.length;
+            }
+
+            if (mFlowControlEnabled && !mIsFlowControlPaused
+                    && mBuffer.getReadableBytes() > mBuffer.getCapacity() * FLOW_CONTROL_PAUSE_LEVEL) {
+                Log.d(TAG, "Buffer nearly full, pausing subscription ("+mDataSourceNumber+")");
+                mIsFlowControlPaused = true;
+                mSubscriber.pause();
+            }
+        }
     }
 
     // HtspDataSource Methods
     public void release() {
+        mIsOpen = false;
+        signalReader();
+
+        if (mDroppedFrames > 0) {
+            Log.w(TAG, "Buffer overflowed, dropping " + mDroppedFrames + " frames / "
+                    + mDroppedBytes + " bytes ("+mDataSourceNumber+")");
+        }
+
+        if (mFirstMuxpktTime != 0) {
+            final long elapsedMs = SystemClock.elapsedRealtime() - mFirstMuxpktTime;
+            if (elapsedMs > 5000) {
+                BufferBackend.setLastBitrate((int) (mMuxpktBytes * 8 * 1000 / elapsedMs));
+            }
+        }
+
+        if (mSubscriber != null) {
+            stopSubscriber();
+
+            synchronized (mLock) {
+                mSubscriber = null;
+                mStandbySubscription = null;
+            }
+        }
+
         if (mConnection != null) {
-            mConnection.removeAuthenticationListener(mSubscriber);
+            mConnection.removeConnectionListener(mConnectionListener);
             mConnection = null;
         }
 
-        if (mSubscriber != null) {
-            mSubscriber.removeSubscriptionListener(this);
-            mSubscriber.unsubscribe();
-            mSubscriber = null;
+        if (mTimeshiftStore != null) {
+            // Hands the segments on to the next data source, e.g. after a zap
+            mTimeshiftStore.release();
         }
 
         // Watch for memory leaks
@@ -287,20 +580,34 @@ public class HtspSubscriptionDataSource extends HtspDataSource implements Subscr
 
     @Override
     public void pause() {
-        if (mSubscriber != null) {
-            mSubscriber.pause();
+        mIsPaused = true;
+
+        // With the client side timeshift the server keeps streaming into the store while paused
+        synchronized (mLock) {
+            if (mSubscriber != null && mTimeshiftStore == null) {
+                mSubscriber.pause();
+            }
         }
     }
 
     @Override
     public void resume() {
-        if (mSubscriber != null) {
-            mSubscriber.resume();
+        mIsPaused = false;
+
+        synchronized (mLock) {
+            // While the buffer is too full, read() resumes the subscription once it has drained
+            if (mSubscriber != null && mTimeshiftStore == null && !mIsFlowControlPaused) {
+                resumeSubscriber();
+            }
         }
     }
 
     @Override
     public long getTimeshiftStartTime() {
+        if (mTimeshiftStore != null) {
+            return mTimeshiftStartTime;
+        }
+
         if (mSubscriber != null) {
             return mSubscriber.getTimeshiftStartTime();
         }
@@ -310,6 +617,10 @@ public class HtspSubscriptionDataSource extends HtspDataSource implements Subscr
 
     @Override
     public long getTimeshiftStartPts() {
+        if (mTimeshiftStore != null) {
+            return mTimeshiftStore.getStartPts();
+        }
+
         if (mSubscriber != null) {
             return mSubscriber.getTimeshiftStartPts();
         }
@@ -319,6 +630,17 @@ public class HtspSubscriptionDataSource extends HtspDataSource implements Subscr
 
     @Override
     public long getTimeshiftOffsetPts() {
+        if (mTimeshiftStore != null) {
+            final long readPts = mTimeshiftStore.findPts(mReadPosition);
+            final long endPts = mTimeshiftStore.getEndPts();
+
+            if (readPts == INVALID_TIMESHIFT_TIME || endPts == INVALID_TIMESHIFT_TIME) {
+                return INVALID_TIMESHIFT_TIME;
+            }
+
+            return readPts - endPts;
+        }
+
         if (mSubscriber != null) {
             return mSubscriber.getTimeshiftOffsetPts();
         }
@@ -327,37 +649,389 @@ public class HtspSubscriptionDataSource extends HtspDataSource implements Subscr
     }
 
     @Override
-    public void setSpeed(int speed) {
+    public boolean setSpeed(int speed) {
+        if (mSubscriber == null || mTimeshiftStore != null || mTimeshiftPeriod == 0
+                || mSubscriptionId == INVALID_SUBSCRIPTION_ID || speed <= 0) {
+            // Reverse playback can't be decoded, and anything else needs a server side timeshift
+            return false;
+        }
+
+        try {
+            TrickPlay.sendSubscriptionSpeed(mConnection, mSubscriptionId, speed);
+        } catch (HtspNotConnectedException e) {
+            Log.w(TAG, "Failed to change subscription speed, HTSP not connected ("+mDataSourceNumber+")");
+            return false;
+        }
+
+        Log.d(TAG, "Subscription speed changed to " + speed + " ("+mDataSourceNumber+")");
+        mSpeed = speed;
+
+        return true;
+    }
+
+    @Override
+    public long switchChannel(long channelId) {
+        if (mSubscriber == null || !mIsSubscribed || mIsPaused || mIsReconnecting
+                || mTimeshiftStore != null || mTimeshiftPeriod > 0 || mSpeed != TrickPlay.NORMAL_SPEED) {
+            // The timeshift buffers belong to the current channel, and with the rest it is
+            // simpler to start over
+            return C.TIME_UNSET;
+        }
+
+        final HtspMessage current = mSubscriptionStart;
+        final HtspMessage cached = mSubscriptionStartCache.get(channelId);
+
+        if (current == null || (cached != null && !SubscriptionStartCache.hasSameStreams(current, cached))) {
+            // The extractor would have to declare new tracks. If the streams only turn out to
+            // differ once subscribed, the extractor fails with a StreamsChangedException instead.
+            Log.d(TAG, "Channel " + channelId + " has different streams, not switching in place ("+mDataSourceNumber+")");
+            return C.TIME_UNSET;
+        }
 
+        final long positionUs = mPtsSplicer.prepareSplice();
+        if (positionUs == C.TIME_UNSET) {
+            return C.TIME_UNSET;
+        }
+
+        Log.i(TAG, "Switching from channel " + mChannelId + " to " + channelId + " ("+mDataSourceNumber+")");
+
+        // This runs on the player's thread. The subscription is replaced on the loader thread, once
+        // the seek which follows re-opens us, until then the old channel is simply dropped.
+        mSwitchTime = SystemClock.elapsedRealtime();
+        mPendingChannelId = channelId;
+        signalReader();
+
+        return positionUs;
     }
 
     // Misc Internal Methods
-    private void serializeMessageToBuffer(@NonNull HtspMessage message) {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    /**
+     * Replaces the current subscription with one for channelId. Must only be called from the
+     * loader thread.
+     *
+     * @param dropBuffered true to drop whatever is left of the old channel in the buffer
+     */
+    private void switchSubscription(long channelId, boolean dropBuffered) throws HtspNotConnectedException {
+        Log.d(TAG, "Subscribing to channel " + channelId + " in place of " + mChannelId + " ("+mDataSourceNumber+")");
+
+        // Not under mLock, the subscriber may be delivering to us at the same time
+        stopSubscriber();
+
+        synchronized (mLock) {
+            mStaleSubscriptionId = mSubscriptionId;
+            mPendingChannelId = NO_PENDING_CHANNEL;
+            mChannelId = channelId;
+
+            if (dropBuffered) {
+                mBuffer.clear();
+            }
 
-        mLock.lock();
-        try (
-                ObjectOutputStream objectOutput = new ObjectOutputStream(outputStream)
-        ) {
-            objectOutput.writeUnshared(message);
-            objectOutput.flush();
+            mStandbySubscription = null;
+            mSubscriber = new Subscriber(mConnection);
+            mSubscriber.addSubscriptionListener(this);
+            mConnection.addAuthenticationListener(mSubscriber);
 
-            mBuffer.position(mBuffer.limit());
-            mBuffer.limit(mBuffer.capacity());
+            try {
+                // The tracks are already declared, so there is no cached subscriptionStart to write
+                subscribe(channelId, false);
+            } catch (HtspNotConnectedException e) {
+                mIsSubscribed = false;
+                throw e;
+            }
+        }
+    }
 
-            mBuffer.put(outputStream.toByteArray());
+    /**
+     * Stops the current subscriber delivering to us, and unsubscribes it.
+     */
+    private void stopSubscriber() {
+        final StandbySubscription standbySubscription = mStandbySubscription;
+        if (standbySubscription != null) {
+            // We are not registered with a promoted subscriber, the standby subscription is
+            standbySubscription.release();
+            return;
+        }
 
-            mBuffer.flip();
-        } catch (IOException e) {
-            // Ignore?
-            Log.w(TAG, "Caught IOException, ignoring ("+mDataSourceNumber+")", e);
-        } finally {
-            mLock.unlock();
+        final Subscriber subscriber = mSubscriber;
+
+        mConnection.removeAuthenticationListener(subscriber);
+        subscriber.removeSubscriptionListener(this);
+        subscriber.unsubscribe();
+    }
+
+    /**
+     * Returns true if message belongs to a subscription which has since been replaced.
+     */
+    private boolean isStale(@NonNull HtspMessage message) {
+        return mStaleSubscriptionId != INVALID_SUBSCRIPTION_ID
+                && message.getInteger("subscriptionId", INVALID_SUBSCRIPTION_ID) == mStaleSubscriptionId;
+    }
+
+    private void subscribe(long channelId, boolean writeCachedSubscriptionStart) throws HtspNotConnectedException {
+        StandbySubscription standbySubscription = null;
+        if (mStandbySubscriptionPool != null) {
+            standbySubscription = mStandbySubscriptionPool.claim(channelId);
+        }
+
+        if (standbySubscription != null) {
+            Log.i(TAG, "Using standby subscription for channel " + channelId + " ("+mDataSourceNumber+")");
+
+            // Swap our own, unused, subscriber for the standby one
+            mConnection.removeAuthenticationListener(mSubscriber);
+            mSubscriber.removeSubscriptionListener(this);
+            mSubscriber = standbySubscription.promote(this);
+            mStandbySubscription = standbySubscription;
+            return;
+        }
+
+        if (writeCachedSubscriptionStart) {
+            writeCachedSubscriptionStart(channelId);
+        }
+        mSubscriber.subscribe(channelId, mStreamProfile, mTimeshiftPeriod);
+    }
+
+    private void resumeSubscriber() {
+        mSubscriber.resume();
+
+        if (mSpeed != TrickPlay.NORMAL_SPEED && mSubscriptionId != INVALID_SUBSCRIPTION_ID) {
+            // Resuming puts the subscription back to normal speed
             try {
-                outputStream.close();
-            } catch (IOException ex) {
-                // Ignore
+                TrickPlay.sendSubscriptionSpeed(mConnection, mSubscriptionId, mSpeed);
+            } catch (HtspNotConnectedException e) {
+                Log.w(TAG, "Failed to restore subscription speed, HTSP not connected ("+mDataSourceNumber+")");
+            }
+        }
+    }
+
+    private void waitForData() throws IOException {
+        long deadline = SystemClock.elapsedRealtime() + DATA_TIMEOUT_MS;
+
+        mReaderThread = Thread.currentThread();
+
+        try {
+            while (mIsOpen && getReadableBytes() == 0) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedIOException("Interrupted while waiting for data ("+mDataSourceNumber+")");
+                }
+
+                final long now = SystemClock.elapsedRealtime();
+
+                final long pendingChannelId = mPendingChannelId;
+                if (pendingChannelId != NO_PENDING_CHANNEL && now - mSwitchTime >= SWITCH_REOPEN_TIMEOUT_MS) {
+                    // The player's seek was resolved without re-opening us. The new channel is
+                    // spliced on to the old one, so simply carry on reading into it.
+                    Log.w(TAG, "Channel switch did not re-open the data source, playing on ("+mDataSourceNumber+")");
+                    try {
+                        switchSubscription(pendingChannelId, false);
+                    } catch (HtspNotConnectedException e) {
+                        throw new IOException("Failed to switch channel, HTSP not connected ("+mDataSourceNumber+")", e);
+                    }
+                    continue;
+                }
+
+                if (mIsPaused) {
+                    // No data is expected while paused, so don't time out.
+                    deadline = now + DATA_TIMEOUT_MS;
+                } else if (mIsReconnecting) {
+                    // Give the connection a chance to come back before failing playback
+                    deadline = Math.max(deadline, mReconnectStartTime + RECONNECT_TIMEOUT_MS);
+                }
+
+                if (now >= deadline) {
+                    throw new IOException("Timed out waiting for data ("+mDataSourceNumber+")");
+                }
+
+                if (Constants.DEBUG)
+                    Log.v(TAG, "Blocking for more data ("+mDataSourceNumber+")");
+
+                long parkMs = deadline - now;
+                if (mPendingChannelId != NO_PENDING_CHANNEL) {
+                    parkMs = Math.min(parkMs, mSwitchTime + SWITCH_REOPEN_TIMEOUT_MS - now);
+                }
+
+                // Woken by signalReader() once data is written, or the subscription stops.
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(parkMs));
+            }
+        } finally {
+            mReaderThread = null;
+        }
+    }
+
+    private void signalReader() {
+        final Thread readerThread = mReaderThread;
+
+        if (readerThread != null) {
+            LockSupport.unpark(readerThread);
+        }
+    }
+
+    /**
+     * @param indexPts if not null, the frame is added to the client side timeshift index
+     */
+    private boolean writeFrameToBuffer(@NonNull byte[] header, int headerLength, byte[] payload, Long indexPts) {
+        // Frames are written whole or not at all, a partial frame would cause the extractor to
+        // lose sync with the stream.
+        final boolean written;
+
+        if (mTimeshiftStore != null) {
+            written = mTimeshiftStore.write(header, headerLength, payload, indexPts);
+        } else {
+            written = mBuffer.write(header, headerLength, payload);
+        }
+
+        if (written) {
+            signalReader();
+        }
+
+        return written;
+    }
+
+    private int getReadableBytes() {
+        if (mTimeshiftStore != null) {
+            return (int) Math.min(Integer.MAX_VALUE, mTimeshiftStore.getWritePosition() - mReadPosition);
+        }
+
+        return mBuffer.getReadableBytes();
+    }
+
+    private int readFromTimeshiftStore(byte[] buffer, int offset, int readLength) {
+        if (mTimeshiftStore.isReleased()) {
+            return C.RESULT_END_OF_INPUT;
+        }
+
+        if (mReadPosition == mNextFrameStart) {
+            // We're on a frame boundary, and nothing is protected. Claim the next frame while we
+            // copy it.
+            if (!mTimeshiftStore.beginFrameRead(mReadPosition)) {
+                // We've been paused for longer than the timeshift window, and the frame has been
+                // overwritten. Skip ahead to the oldest frame we can still decode from.
+                final long position = mTimeshiftStore.findPosition(Long.MIN_VALUE);
+                Log.w(TAG, "Timeshift window overrun, skipping " + (position - mReadPosition)
+                        + " bytes ("+mDataSourceNumber+")");
+
+                mReadPosition = position;
+                mNextFrameStart = position;
+
+                if (getReadableBytes() == 0 || !mTimeshiftStore.beginFrameRead(mReadPosition)) {
+                    return 0;
+                }
             }
+
+            mNextFrameStart = mReadPosition + HtspFraming.FRAME_LENGTH_SIZE
+                    + mTimeshiftStore.peekFrameLength(mReadPosition);
+        }
+
+        // Never read past the end of the current frame, so we always know where the next starts
+        final int length = (int) Math.min(readLength, mNextFrameStart - mReadPosition);
+        final int read = mTimeshiftStore.read(mReadPosition, buffer, offset, length);
+
+        mReadPosition += read;
+
+        if (mReadPosition == mNextFrameStart) {
+            // Finished with the frame. The loader may now be parked for as long as playback is
+            // paused, so let the writer evict past us, rather than drop the live stream.
+            mTimeshiftStore.endFrameRead();
         }
+
+        return read;
+    }
+
+    /**
+     * Returns the PTS to index the muxpkt under in the client side timeshift, or null if it should
+     * not be indexed.
+     */
+    private Long getTimeshiftIndexPts(@NonNull HtspMessage message) {
+        if (mTimeshiftStore == null || !message.containsKey("pts") || !isKeyframe(message)) {
+            return null;
+        }
+
+        final long pts = message.getLong("pts");
+
+        if (mVideoStreams.size() == 0 && pts - mLastIndexedPts < TIMESHIFT_AUDIO_INDEX_INTERVAL_US) {
+            return null;
+        }
+
+        if (mTimeshiftStartTime == INVALID_TIMESHIFT_TIME) {
+            // The wall clock time of PTS 0, in microseconds
+            mTimeshiftStartTime = (System.currentTimeMillis() * 1000) - pts;
+        }
+
+        mLastIndexedPts = pts;
+
+        return pts;
+    }
+
+    private TimeshiftStore createTimeshiftStore() {
+        final long size = Long.parseLong(mSharedPreferences.getString(
+                Constants.KEY_LOCAL_TIMESHIFT_SIZE,
+                mContext.getResources().getString(R.string.pref_default_local_timeshift_size))) * 1024 * 1024;
+
+        try {
+            return new TimeshiftStore(new File(mContext.getCacheDir(), "timeshift"), size);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to create the client side timeshift, falling back to the server ("+mDataSourceNumber+")", e);
+            mTimeshiftPeriod = SERVER_TIMESHIFT_PERIOD;
+            return null;
+        }
+    }
+
+    /**
+     * Returns the timeshift period to request from the server, which is 0 when timeshift is
+     * disabled or handled client side.
+     */
+    static int getServerTimeshiftPeriod(@NonNull Context context) {
+        SharedPreferences sharedPreferences = context.getSharedPreferences(
+                Constants.PREFERENCE_TVHEADEND, Context.MODE_PRIVATE);
+
+        boolean timeshiftEnabled = sharedPreferences.getBoolean(
+                Constants.KEY_TIMESHIFT_ENABLED,
+                context.getResources().getBoolean(R.bool.pref_default_timeshift_enabled));
+
+        if (timeshiftEnabled && !isLocalTimeshiftEnabled(context)) {
+            return SERVER_TIMESHIFT_PERIOD;
+        }
+
+        return 0;
+    }
+
+    static boolean isLocalTimeshiftEnabled(@NonNull Context context) {
+        SharedPreferences sharedPreferences = context.getSharedPreferences(
+                Constants.PREFERENCE_TVHEADEND, Context.MODE_PRIVATE);
+
+        boolean timeshiftEnabled = sharedPreferences.getBoolean(
+                Constants.KEY_TIMESHIFT_ENABLED,
+                context.getResources().getBoolean(R.bool.pref_default_timeshift_enabled));
+
+        final String timeshiftStorage = sharedPreferences.getString(
+                Constants.KEY_TIMESHIFT_STORAGE,
+                context.getResources().getString(R.string.pref_default_timeshift_storage));
+
+        return timeshiftEnabled && TIMESHIFT_STORAGE_LOCAL.equals(timeshiftStorage);
+    }
+
+    private void writeCachedSubscriptionStart(long channelId) {
+        final HtspMessage cached = mSubscriptionStartCache.get(channelId);
+
+        if (cached == null) {
+            return;
+        }
+
+        Log.d(TAG, "Using cached subscriptionStart for channel " + channelId + " ("+mDataSourceNumber+")");
+
+        try {
+            final byte[] frame = HtspFraming.encodeSubscriptionStart(cached, true);
+            writeFrameToBuffer(frame, frame.length, null, null);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to encode cached subscriptionStart, ignoring ("+mDataSourceNumber+")", e);
+        }
+    }
+
+    private boolean isKeyframe(@NonNull HtspMessage message) {
+        if (mVideoStreams.size() == 0) {
+            // No video, e.g. a radio channel, every frame is a safe place to resume.
+            return true;
+        }
+
+        return mVideoStreams.get(message.getInteger("stream")) && KeyframeGate.isKeyframe(message);
     }
 }
@@ -0,0 +1,516 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.player;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.extractor.Extractor;
+import com.google.android.exoplayer2.extractor.ExtractorInput;
+import com.google.android.exoplayer2.extractor.ExtractorOutput;
+import com.google.android.exoplayer2.extractor.PositionHolder;
+import com.google.android.exoplayer2.extractor.SeekMap;
+import com.google.android.exoplayer2.extractor.TrackOutput;
+import com.google.android.exoplayer2.extractor.ts.DefaultTsPayloadReaderFactory;
+import com.google.android.exoplayer2.extractor.ts.TsExtractor;
+import com.google.android.exoplayer2.util.MimeTypes;
+import com.google.android.exoplayer2.util.ParsableByteArray;
+import com.google.android.exoplayer2.util.TimestampAdjuster;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Wraps a TsExtractor for a recording, making it seekable with a RecordingIndex.
+ *
+ * The TsExtractor on its own is unseekable, and rebases timestamps to zero from wherever it
+ * starts reading. Here it is left to output the PTS as found in the recording, and we rebase
+ * against the recording's first PTS ourselves, so timestamps stay consistent after a seek. That
+ * PTS is looked up with a small read at the start of the recording, wherever playback starts.
+ *
+ * The byte offset of the TS packet each video keyframe's PES packet started in is recorded in the
+ * index as it is seen, and the index is saved when the extractor is released, so later playback
+ * can seek straight to it. To know those offsets, the input handed to the TsExtractor notes where
+ * in the recording each read into its packet buffer came from.
+ */
+class IndexedTsExtractor implements Extractor {
+    private static final String TAG = IndexedTsExtractor.class.getName();
+
+    private static final int TS_PACKET_SIZE = 188;
+    private static final int TS_SYNC_BYTE = 0x47;
+
+    // How much of the start of the recording to search for its first PTS. Every stream starts
+    // with a PES packet carrying one, and 600 packets, about 110KB, comfortably covers the PAT,
+    // PMT and the start of the first few PES packets of even a high bitrate recording.
+    private static final int BASE_PTS_SEARCH_BYTES = 600 * TS_PACKET_SIZE;
+
+    private final TsExtractor mTsExtractor;
+    private final RecordingIndex mIndex;
+
+    private ExtractorOutput mOutput;
+    private final PositionTrackingInput mTrackingInput = new PositionTrackingInput();
+    private final List<IndexingTrackOutput> mTrackOutputs = new ArrayList<>();
+
+    private long mStartPosition = 0;
+    private long mBasePts;
+
+    private boolean mHasSearchedBasePts = false;
+    private long mBasePtsResumePosition = C.POSITION_UNSET;
+
+    private final SeekMap mSeekMap = new SeekMap() {
+        @Override
+        public boolean isSeekable() {
+            return mIndex.isSeekable();
+        }
+
+        @Override
+        public long getDurationUs() {
+            return C.TIME_UNSET;
+        }
+
+        @Override
+        public SeekPoints getSeekPoints(long timeUs) {
+            return mIndex.getSeekPoints(timeUs);
+        }
+    };
+
+    IndexedTsExtractor(@NonNull Context context, @NonNull String dvrEntryId) {
+        mTsExtractor = new TsExtractor(
+                TsExtractor.MODE_SINGLE_PMT,
+                new TimestampAdjuster(TimestampAdjuster.DO_NOT_OFFSET),
+                new DefaultTsPayloadReaderFactory(DefaultTsPayloadReaderFactory.FLAG_ALLOW_NON_IDR_KEYFRAMES));
+        mIndex = new RecordingIndex(context, dvrEntryId);
+        mBasePts = mIndex.getBasePts();
+    }
+
+    // Extractor Methods
+    @Override
+    public boolean sniff(ExtractorInput input) throws IOException, InterruptedException {
+        return mTsExtractor.sniff(input);
+    }
+
+    @Override
+    public void init(ExtractorOutput output) {
+        mOutput = output;
+        mTsExtractor.init(new IndexingExtractorOutput());
+    }
+
+    @Override
+    public int read(ExtractorInput input, PositionHolder seekPosition) throws IOException, InterruptedException {
+        if (mBasePts == C.TIME_UNSET && !mHasSearchedBasePts) {
+            final int result = readBasePts(input, seekPosition);
+            if (result != RESULT_CONTINUE) {
+                return result;
+            }
+        }
+
+        mTrackingInput.setInput(input);
+
+        try {
+            return mTsExtractor.read(mTrackingInput, seekPosition);
+        } finally {
+            mTrackingInput.setInput(null);
+        }
+    }
+
+    @Override
+    public void seek(long position, long timeUs) {
+        Log.d(TAG, "Seeking to position:" + position + " and timeUs:" + timeUs);
+
+        mStartPosition = position;
+
+        // Whatever was buffered before the seek is discarded, along with where it came from
+        mTrackingInput.reset();
+        for (IndexingTrackOutput trackOutput : mTrackOutputs) {
+            trackOutput.reset();
+        }
+
+        mTsExtractor.seek(position, timeUs);
+    }
+
+    @Override
+    public void release() {
+        mIndex.save();
+        mTsExtractor.release();
+    }
+
+    // Misc Internal Methods
+    /**
+     * Finds the recording's first PTS. If reading didn't start at the beginning of the recording,
+     * this seeks there to look, and then back to where reading started.
+     */
+    private int readBasePts(ExtractorInput input, PositionHolder seekPosition) throws IOException, InterruptedException {
+        if (input.getLength() == C.LENGTH_UNSET) {
+            // Without a length we can't tell how much there is to search, fall back to the first
+            // sample we see
+            mHasSearchedBasePts = true;
+            return RESULT_CONTINUE;
+        }
+
+        if (input.getPosition() != 0) {
+            mBasePtsResumePosition = input.getPosition();
+            seekPosition.position = 0;
+            return RESULT_SEEK;
+        }
+
+        final int searchLength = (int) Math.min(BASE_PTS_SEARCH_BYTES, input.getLength());
+        final ParsableByteArray data = new ParsableByteArray(searchLength);
+
+        input.peekFully(data.data, 0, searchLength);
+        input.resetPeekPosition();
+
+        mHasSearchedBasePts = true;
+
+        final long basePts = findFirstPts(data);
+        if (basePts != C.TIME_UNSET) {
+            Log.d(TAG, "Found the recording's base PTS: " + basePts);
+            mBasePts = basePts;
+            mIndex.setBasePts(basePts);
+        } else {
+            Log.w(TAG, "Failed to find the recording's base PTS");
+        }
+
+        if (mBasePtsResumePosition != C.POSITION_UNSET) {
+            seekPosition.position = mBasePtsResumePosition;
+            mBasePtsResumePosition = C.POSITION_UNSET;
+            return RESULT_SEEK;
+        }
+
+        return RESULT_CONTINUE;
+    }
+
+    /**
+     * Returns the PTS of the first audio or video PES packet in data, in microseconds, or
+     * C.TIME_UNSET if there isn't one.
+     */
+    private static long findFirstPts(@NonNull ParsableByteArray data) {
+        final byte[] bytes = data.data;
+        final int limit = data.limit();
+
+        int packetStart = 0;
+        while (packetStart < limit && bytes[packetStart] != TS_SYNC_BYTE) {
+            packetStart++;
+        }
+
+        for (; packetStart + TS_PACKET_SIZE <= limit; packetStart += TS_PACKET_SIZE) {
+            final boolean payloadUnitStart = (bytes[packetStart + 1] & 0x40) != 0;
+            final int adaptationFieldControl = (bytes[packetStart + 3] >> 4) & 0x03;
+
+            if (bytes[packetStart] != TS_SYNC_BYTE || !payloadUnitStart
+                    || (adaptationFieldControl & 0x01) == 0) {
+                continue;
+            }
+
+            int offset = packetStart + 4;
+            if ((adaptationFieldControl & 0x02) != 0) {
+                offset += 1 + (bytes[offset] & 0xFF);
+            }
+
+            // The PES header, up to and including the PTS, must fit in this packet
+            if (offset + 14 > packetStart + TS_PACKET_SIZE) {
+                continue;
+            }
+
+            final boolean isPesStart = bytes[offset] == 0 && bytes[offset + 1] == 0 && bytes[offset + 2] == 1;
+            final int streamId = bytes[offset + 3] & 0xFF;
+            final boolean hasPts = (bytes[offset + 7] & 0x80) != 0;
+
+            // Private stream 1, which carries AC-3 amongst others, and then the audio and video
+            // stream IDs
+            final boolean isMediaStream = streamId == 0xBD || (streamId >= 0xC0 && streamId <= 0xEF);
+
+            if (isPesStart && isMediaStream && hasPts) {
+                final long pts = ((long) (bytes[offset + 9] & 0x0E) << 29)
+                        | ((bytes[offset + 10] & 0xFF) << 22)
+                        | ((bytes[offset + 11] & 0xFE) << 14)
+                        | ((bytes[offset + 12] & 0xFF) << 7)
+                        | ((bytes[offset + 13] & 0xFE) >> 1);
+
+                return TimestampAdjuster.ptsToUs(pts);
+            }
+        }
+
+        return C.TIME_UNSET;
+    }
+
+    /**
+     * Returns the position in the recording of the TS packet data is currently in, if data is the
+     * TsExtractor's packet buffer and the packet starts a PES packet, or C.POSITION_UNSET.
+     */
+    private long getPesStartPosition(@NonNull ParsableByteArray data) {
+        final long bufferPosition = mTrackingInput.getBufferPosition(data.data);
+        if (bufferPosition == C.POSITION_UNSET) {
+            return C.POSITION_UNSET;
+        }
+
+        // The TsExtractor limits its buffer to the end of the packet being consumed. A PES packet
+        // with padding limits it further, but then can't be starting in this packet.
+        final int packetStart = data.limit() - TS_PACKET_SIZE;
+        if (packetStart < 0 || data.data[packetStart] != TS_SYNC_BYTE
+                || (data.data[packetStart + 1] & 0x40) == 0) {
+            return C.POSITION_UNSET;
+        }
+
+        return bufferPosition + packetStart;
+    }
+
+    private long onSampleMetadata(long pts, int flags, boolean isVideo, long pesStartPosition) {
+        if (mBasePts == C.TIME_UNSET) {
+            // The search for the recording's first PTS came up empty. Behave as the TsExtractor
+            // would, and start from zero, which is only the recording's base if we started there.
+            mBasePts = pts;
+
+            if (mStartPosition == 0) {
+                mIndex.setBasePts(pts);
+            }
+        }
+
+        if (isVideo && (flags & C.BUFFER_FLAG_KEY_FRAME) != 0 && pesStartPosition != C.POSITION_UNSET) {
+            mIndex.add(pts, pesStartPosition);
+        }
+
+        return pts - mBasePts;
+    }
+
+    // Inner Classes
+    private class IndexingExtractorOutput implements ExtractorOutput {
+        @Override
+        public TrackOutput track(int id, int type) {
+            final IndexingTrackOutput trackOutput = new IndexingTrackOutput(mOutput.track(id, type));
+            mTrackOutputs.add(trackOutput);
+            return trackOutput;
+        }
+
+        @Override
+        public void endTracks() {
+            mOutput.endTracks();
+        }
+
+        @Override
+        public void seekMap(SeekMap seekMap) {
+            // The TsExtractor's own is always unseekable, offer ours instead
+            mOutput.seekMap(mSeekMap);
+        }
+    }
+
+    private class IndexingTrackOutput implements TrackOutput {
+        private final TrackOutput mTrackOutput;
+        private boolean mIsVideo = false;
+
+        // The total sample data written, and for each PES packet which may still hold the start
+        // of a sample, the position of the TS packet it started in and the data written before it
+        private long mBytesWritten = 0;
+        private long[] mPesStartPositions = new long[16];
+        private long[] mPesStartBytes = new long[16];
+        private int mPesStartCount = 0;
+
+        IndexingTrackOutput(@NonNull TrackOutput trackOutput) {
+            mTrackOutput = trackOutput;
+        }
+
+        void reset() {
+            mPesStartCount = 0;
+        }
+
+        @Override
+        public void format(Format format) {
+            mIsVideo = MimeTypes.isVideo(format.sampleMimeType);
+            mTrackOutput.format(format);
+        }
+
+        @Override
+        public int sampleData(ExtractorInput input, int length, boolean allowEndOfInput) throws IOException, InterruptedException {
+            final int bytesWritten = mTrackOutput.sampleData(input, length, allowEndOfInput);
+            if (bytesWritten != C.RESULT_END_OF_INPUT) {
+                mBytesWritten += bytesWritten;
+            }
+            return bytesWritten;
+        }
+
+        @Override
+        public void sampleData(ParsableByteArray data, int length) {
+            if (mIsVideo) {
+                addPesStart(getPesStartPosition(data));
+            }
+
+            mTrackOutput.sampleData(data, length);
+            mBytesWritten += length;
+        }
+
+        @Override
+        public void sampleMetadata(long timeUs, int flags, int size, int offset, CryptoData cryptoData) {
+            final long pesStartPosition = takePesStart(mBytesWritten - offset - size);
+            mTrackOutput.sampleMetadata(onSampleMetadata(timeUs, flags, mIsVideo, pesStartPosition), flags, size, offset, cryptoData);
+        }
+
+        private void addPesStart(long position) {
+            if (position == C.POSITION_UNSET
+                    || (mPesStartCount > 0 && mPesStartPositions[mPesStartCount - 1] == position)) {
+                return;
+            }
+
+            if (mPesStartCount == mPesStartPositions.length) {
+                mPesStartPositions = Arrays.copyOf(mPesStartPositions, mPesStartCount * 2);
+                mPesStartBytes = Arrays.copyOf(mPesStartBytes, mPesStartCount * 2);
+            }
+
+            mPesStartPositions[mPesStartCount] = position;
+            mPesStartBytes[mPesStartCount] = mBytesWritten;
+            mPesStartCount++;
+        }
+
+        /**
+         * Returns the position of the TS packet the PES packet holding the start of a sample
+         * started in, or C.POSITION_UNSET if it wasn't seen. Samples come in order, so the PES
+         * packets before that one are forgotten.
+         */
+        private long takePesStart(long sampleStartBytes) {
+            int found = mPesStartCount - 1;
+            while (found >= 0 && mPesStartBytes[found] > sampleStartBytes) {
+                found--;
+            }
+
+            if (found < 0) {
+                return C.POSITION_UNSET;
+            }
+
+            if (found > 0) {
+                mPesStartCount -= found;
+                System.arraycopy(mPesStartPositions, found, mPesStartPositions, 0, mPesStartCount);
+                System.arraycopy(mPesStartBytes, found, mPesStartBytes, 0, mPesStartCount);
+            }
+
+            return mPesStartPositions[0];
+        }
+    }
+
+    /**
+     * Passes everything on to the current input, noting where in the recording the data of the
+     * latest read came from. The TsExtractor reads into a single packet buffer, and only ever
+     * moves its unread data to the front of that buffer just before reading more, so that note
+     * holds for every packet it consumes.
+     */
+    private static class PositionTrackingInput implements ExtractorInput {
+        private ExtractorInput mInput;
+
+        private byte[] mBuffer;
+        private long mBufferPosition = C.POSITION_UNSET;
+
+        void setInput(ExtractorInput input) {
+            mInput = input;
+        }
+
+        void reset() {
+            mBuffer = null;
+            mBufferPosition = C.POSITION_UNSET;
+        }
+
+        /**
+         * Returns the position in the recording of the start of buffer, or C.POSITION_UNSET if it
+         * is not the buffer last read into.
+         */
+        long getBufferPosition(byte[] buffer) {
+            return buffer == mBuffer ? mBufferPosition : C.POSITION_UNSET;
+        }
+
+        @Override
+        public int read(byte[] target, int offset, int length) throws IOException, InterruptedException {
+            final long position = mInput.getPosition();
+            final int bytesRead = mInput.read(target, offset, length);
+
+            mBuffer = target;
+            mBufferPosition = position - offset;
+
+            return bytesRead;
+        }
+
+        @Override
+        public boolean readFully(byte[] target, int offset, int length, boolean allowEndOfInput) throws IOException, InterruptedException {
+            return mInput.readFully(target, offset, length, allowEndOfInput);
+        }
+
+        @Override
+        public void readFully(byte[] target, int offset, int length) throws IOException, InterruptedException {
+            mInput.readFully(target, offset, length);
+        }
+
+        @Override
+        public int skip(int length) throws IOException, InterruptedException {
+            return mInput.skip(length);
+        }
+
+        @Override
+        public boolean skipFully(int length, boolean allowEndOfInput) throws IOException, InterruptedException {
+            return mInput.skipFully(length, allowEndOfInput);
+        }
+
+        @Override
+        public void skipFully(int length) throws IOException, InterruptedException {
+            mInput.skipFully(length);
+        }
+
+        @Override
+        public boolean peekFully(byte[] target, int offset, int length, boolean allowEndOfInput) throws IOException, InterruptedException {
+            return mInput.peekFully(target, offset, length, allowEndOfInput);
+        }
+
+        @Override
+        public void peekFully(byte[] target, int offset, int length) throws IOException, InterruptedException {
+            mInput.peekFully(target, offset, length);
+        }
+
+        @Override
+        public boolean advancePeekPosition(int length, boolean allowEndOfInput) throws IOException, InterruptedException {
+            return mInput.advancePeekPosition(length, allowEndOfInput);
+        }
+
+        @Override
+        public void advancePeekPosition(int length) throws IOException, InterruptedException {
+            mInput.advancePeekPosition(length);
+        }
+
+        @Override
+        public void resetPeekPosition() {
+            mInput.resetPeekPosition();
+        }
+
+        @Override
+        public long getPeekPosition() {
+            return mInput.getPeekPosition();
+        }
+
+        @Override
+        public long getPosition() {
+            return mInput.getPosition();
+        }
+
+        @Override
+        public long getLength() {
+            return mInput.getLength();
+        }
+
+        @Override
+        public <E extends Throwable> void setRetryPosition(long position, E e) throws E {
+            mInput.setRetryPosition(position, e);
+        }
+    }
+}
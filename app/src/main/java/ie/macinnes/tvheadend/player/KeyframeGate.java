@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.player;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+import android.util.SparseBooleanArray;
+
+import ie.macinnes.htsp.HtspMessage;
+import ie.macinnes.tvheadend.player.reader.Muxpkt;
+import ie.macinnes.tvheadend.player.reader.StreamReadersFactory;
+
+/**
+ * Holds back packets at the start of a subscription (or after a skip) until the first video
+ * keyframe arrives, so the decoders are never fed P/B frames they have no reference for. Audio
+ * is discarded until then too, and afterwards until it catches up with the keyframe PTS, so both
+ * start together.
+ *
+ * Not thread safe, all methods must be called from the thread which delivers the packets.
+ */
+class KeyframeGate {
+    private static final String TAG = KeyframeGate.class.getName();
+
+    // Type -1 = TVHeadend has not provided us a frame type, so everything "is a keyframe"
+    // Type 73 = I - Intra-coded picture - Full Picture
+    private static final int FRAME_TYPE_UNKNOWN = -1;
+    private static final int FRAME_TYPE_I = 73;
+
+    private final String mName;
+    private final SparseBooleanArray mVideoStreams = new SparseBooleanArray();
+
+    private boolean mIsOpen = false;
+    private long mGatePts = Long.MIN_VALUE;
+    private long mStartTime;
+    private int mDiscardedPackets = 0;
+
+    /**
+     * @param name Used to identify this gate in logs
+     */
+    KeyframeGate(@NonNull String name) {
+        mName = name;
+    }
+
+    /**
+     * Returns true if streams of the given HTSP stream type carry video.
+     */
+    static boolean isVideoStream(@NonNull String streamType) {
+        return StreamReadersFactory.getVideoMimeType(streamType) != null;
+    }
+
+    /**
+     * Returns true if the muxpkt is a frame decoding can start from.
+     */
+    static boolean isKeyframe(@NonNull HtspMessage message) {
+        return isKeyframe(message.getInteger("frametype", FRAME_TYPE_UNKNOWN));
+    }
+
+    private static boolean isKeyframe(int frameType) {
+        return frameType == FRAME_TYPE_UNKNOWN || frameType == FRAME_TYPE_I;
+    }
+
+    /**
+     * Returns true if the muxpkt is a keyframe on one of the subscription's video streams.
+     */
+    boolean isVideoKeyframe(@NonNull Muxpkt muxpkt) {
+        return mVideoStreams.get(muxpkt.getStream()) && isKeyframe(muxpkt.getFrameType());
+    }
+
+    /**
+     * Learns the video streams of a new subscription, and closes the gate.
+     */
+    void onSubscriptionStart(@NonNull HtspMessage message) {
+        mVideoStreams.clear();
+
+        for (HtspMessage stream : message.getHtspMessageArray("streams")) {
+            if (isVideoStream(stream.getString("type"))) {
+                mVideoStreams.put(stream.getInteger("index"), true);
+            }
+        }
+
+        reset();
+    }
+
+    /**
+     * Closes the gate, e.g. after a skip, as the packets which follow will start mid-GOP.
+     */
+    void reset() {
+        mIsOpen = false;
+        mGatePts = Long.MIN_VALUE;
+        mStartTime = SystemClock.elapsedRealtime();
+        mDiscardedPackets = 0;
+    }
+
+    /**
+     * Returns true if the muxpkt should be passed on to the decoders.
+     */
+    boolean accept(@NonNull Muxpkt muxpkt) {
+        final boolean isVideo = mVideoStreams.get(muxpkt.getStream());
+
+        if (!mIsOpen) {
+            if (mVideoStreams.size() > 0 && !(isVideo && isKeyframe(muxpkt.getFrameType()))) {
+                mDiscardedPackets++;
+                return false;
+            }
+
+            mIsOpen = true;
+            mGatePts = muxpkt.hasPts() ? muxpkt.getPts() : Long.MIN_VALUE;
+
+            Log.i(TAG, "Keyframe gate opened after " + (SystemClock.elapsedRealtime() - mStartTime)
+                    + "ms, discarded " + mDiscardedPackets + " packets (" + mName + ")");
+
+            return true;
+        }
+
+        if (!isVideo && muxpkt.hasPts() && muxpkt.getPts() < mGatePts) {
+            // Audio (or subtitles) from before the first picture
+            return false;
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.player;
+
+import android.support.annotation.NonNull;
+
+import com.google.android.exoplayer2.SeekParameters;
+import com.google.android.exoplayer2.extractor.SeekMap;
+import com.google.android.exoplayer2.extractor.SeekPoint;
+
+import java.util.Arrays;
+
+/**
+ * An index of the frames decoding can start from, mapping each frame's PTS to a position. Entries
+ * must be added in order, and the oldest can be trimmed as they fall out of the timeshift window.
+ *
+ * Thread safe, entries are typically added by the loader or HTSP dispatcher thread and looked up
+ * from the playback thread.
+ */
+class KeyframeIndex {
+    // Enough for an hour long timeshift window with a keyframe every 250ms
+    static final int LIVE_MAX_ENTRIES = 4 * 60 * 60;
+
+    private final int mMaxEntries;
+
+    private long[] mPts = new long[256];
+    private long[] mPositions = new long[256];
+    private int mStart = 0;
+    private int mEnd = 0;
+
+    /**
+     * @param maxEntries The oldest entries are dropped once there are more than this
+     */
+    KeyframeIndex(int maxEntries) {
+        mMaxEntries = maxEntries;
+    }
+
+    synchronized void add(long pts, long position) {
+        while (mEnd > mStart && pts <= mPts[mEnd - 1]) {
+            // Going backwards, e.g. after a skip back into the timeshift buffer. Anything we had
+            // from here on will be seen again.
+            mEnd--;
+        }
+
+        if (mEnd - mStart == mMaxEntries) {
+            mStart++;
+        }
+
+        if (mEnd == mPts.length) {
+            final int count = mEnd - mStart;
+
+            if (count * 2 > mPts.length) {
+                mPts = Arrays.copyOf(mPts, mPts.length * 2);
+                mPositions = Arrays.copyOf(mPositions, mPositions.length * 2);
+            }
+
+            // Compact the live entries back to the start of the arrays
+            System.arraycopy(mPts, mStart, mPts, 0, count);
+            System.arraycopy(mPositions, mStart, mPositions, 0, count);
+            mStart = 0;
+            mEnd = count;
+        }
+
+        mPts[mEnd] = pts;
+        mPositions[mEnd] = position;
+        mEnd++;
+    }
+
+    /**
+     * Drops entries with a position before the given position.
+     */
+    synchronized void trimToPosition(long position) {
+        while (mStart < mEnd && mPositions[mStart] < position) {
+            mStart++;
+        }
+    }
+
+    /**
+     * Drops entries with a PTS before the given PTS.
+     */
+    synchronized void trimToPts(long pts) {
+        while (mStart < mEnd && mPts[mStart] < pts) {
+            mStart++;
+        }
+    }
+
+    synchronized void clear() {
+        mStart = 0;
+        mEnd = 0;
+    }
+
+    synchronized boolean isEmpty() {
+        return mStart == mEnd;
+    }
+
+    /**
+     * Returns the position of the last entry at or before pts, the oldest entry if pts is before
+     * all of them, or defaultPosition if the index is empty.
+     */
+    synchronized long findPosition(long pts, long defaultPosition) {
+        if (mStart == mEnd) {
+            return defaultPosition;
+        }
+
+        return mPositions[Math.max(find(mPts, pts), mStart)];
+    }
+
+    /**
+     * Returns the PTS of the last entry at or before position, or defaultPts if there is none.
+     */
+    synchronized long findPts(long position, long defaultPts) {
+        final int index = find(mPositions, position);
+        return index >= mStart ? mPts[index] : defaultPts;
+    }
+
+    synchronized long getFirstPts(long defaultPts) {
+        return mStart < mEnd ? mPts[mStart] : defaultPts;
+    }
+
+    synchronized long getLastPts(long defaultPts) {
+        return mStart < mEnd ? mPts[mEnd - 1] : defaultPts;
+    }
+
+    /**
+     * Returns the seek points either side of timeUs, using the PTS as the position. If the index
+     * is empty, the requested time is returned as is.
+     */
+    @NonNull
+    synchronized SeekMap.SeekPoints getSeekPoints(long timeUs) {
+        final int index = find(mPts, timeUs);
+
+        if (index < mStart) {
+            if (mStart == mEnd) {
+                return new SeekMap.SeekPoints(new SeekPoint(timeUs, timeUs));
+            }
+
+            // Before the first keyframe we know of, the best we can do is the first one
+            return new SeekMap.SeekPoints(new SeekPoint(mPts[mStart], mPositions[mStart]));
+        }
+
+        final SeekPoint first = new SeekPoint(mPts[index], mPositions[index]);
+
+        if (mPts[index] == timeUs || index + 1 == mEnd) {
+            return new SeekMap.SeekPoints(first);
+        }
+
+        return new SeekMap.SeekPoints(first, new SeekPoint(mPts[index + 1], mPositions[index + 1]));
+    }
+
+    /**
+     * Resolves a seek to positionUs to a keyframe, within the tolerances of seekParameters.
+     */
+    long getAdjustedSeekPositionUs(long positionUs, @NonNull SeekParameters seekParameters) {
+        if (SeekParameters.EXACT.equals(seekParameters)) {
+            return positionUs;
+        }
+
+        final SeekMap.SeekPoints seekPoints = getSeekPoints(positionUs);
+        final long firstSyncUs = seekPoints.first.timeUs;
+        final long secondSyncUs = seekPoints.second.timeUs;
+
+        // Tolerances are often Long.MAX_VALUE, clamp rather than overflow
+        final long toleranceBeforeUs = seekParameters.toleranceBeforeUs;
+        final long toleranceAfterUs = seekParameters.toleranceAfterUs;
+        final long minPositionUs = positionUs >= Long.MIN_VALUE + toleranceBeforeUs
+                ? positionUs - toleranceBeforeUs : Long.MIN_VALUE;
+        final long maxPositionUs = positionUs <= Long.MAX_VALUE - toleranceAfterUs
+                ? positionUs + toleranceAfterUs : Long.MAX_VALUE;
+
+        final boolean firstSyncPositionValid = minPositionUs <= firstSyncUs && firstSyncUs <= maxPositionUs;
+        final boolean secondSyncPositionValid = minPositionUs <= secondSyncUs && secondSyncUs <= maxPositionUs;
+
+        if (firstSyncPositionValid && secondSyncPositionValid) {
+            // Both are valid, pick the closest
+            if (Math.abs(firstSyncUs - positionUs) <= Math.abs(secondSyncUs - positionUs)) {
+                return firstSyncUs;
+            }
+            return secondSyncUs;
+        } else if (firstSyncPositionValid) {
+            return firstSyncUs;
+        } else if (secondSyncPositionValid) {
+            return secondSyncUs;
+        }
+
+        return positionUs;
+    }
+
+    /**
+     * Returns the index of the last entry in values which is <= value, or mStart - 1
+     */
+    private int find(long[] values, long value) {
+        int index = Arrays.binarySearch(values, mStart, mEnd, value);
+
+        if (index < 0) {
+            // Not an exact match, binarySearch returns -(insertion point) - 1
+            index = -index - 2;
+        }
+
+        return index;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.player;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps track of the players which are alive in the process, e.g. the main session and a PIP
+ * session, so they can share the memory available to them.
+ *
+ * The oldest player is the primary one, and gets the larger share of the memory budget. Any
+ * others are secondary, and get an equal share of what remains.
+ */
+final class PlaybackSessions {
+    private static final String TAG = PlaybackSessions.class.getName();
+
+    private PlaybackSessions() {
+        throw new IllegalAccessError("Utility class");
+    }
+
+    // Never let the players buffer more than 1/4th of the memory class between them
+    private static final int MEMORY_CLASS_DIVISOR = 4;
+
+    // The primary session counts as this many secondary sessions when sharing out the budget
+    private static final int PRIMARY_SESSION_WEIGHT = 2;
+
+    private static final List<Object> sSessions = new ArrayList<>();
+
+    static synchronized void register(@NonNull Object session) {
+        if (!sSessions.contains(session)) {
+            sSessions.add(session);
+            Log.d(TAG, "Registered playback session, " + sSessions.size() + " active");
+        }
+    }
+
+    static synchronized void unregister(@NonNull Object session) {
+        if (sSessions.remove(session)) {
+            Log.d(TAG, "Unregistered playback session, " + sSessions.size() + " active");
+        }
+    }
+
+    static synchronized boolean isEmpty() {
+        return sSessions.isEmpty();
+    }
+
+    static synchronized int getSessionCount() {
+        return Math.max(1, sSessions.size());
+    }
+
+    /**
+     * Returns true if session is the primary session, or isn't registered at all.
+     */
+    static synchronized boolean isPrimary(@NonNull Object session) {
+        return sSessions.isEmpty() || sSessions.get(0) == session || !sSessions.contains(session);
+    }
+
+    /**
+     * Returns the number of bytes session may use for buffering media, out of the budget shared
+     * by all sessions.
+     */
+    static synchronized long getMemoryShare(@NonNull Context context, @NonNull Object session) {
+        final int secondarySessions = getSessionCount() - 1;
+        final long totalWeight = PRIMARY_SESSION_WEIGHT + secondarySessions;
+        final long weight = isPrimary(session) ? PRIMARY_SESSION_WEIGHT : 1;
+
+        return getMemoryBudget(context) * weight / totalWeight;
+    }
+
+    // Misc Internal Methods
+    private static long getMemoryBudget(@NonNull Context context) {
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+
+        long budget = ((long) activityManager.getMemoryClass() * 1024 * 1024) / MEMORY_CLASS_DIVISOR;
+
+        if (activityManager.isLowRamDevice()) {
+            budget /= 2;
+        }
+
+        return budget;
+    }
+}
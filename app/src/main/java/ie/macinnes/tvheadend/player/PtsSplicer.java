@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.player;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.google.android.exoplayer2.C;
+
+import ie.macinnes.htsp.HtspMessage;
+import ie.macinnes.tvheadend.player.reader.Muxpkt;
+
+/**
+ * Keeps muxpkt timestamps continuous across a resubscription, e.g. after a reconnect, or when
+ * switching channel.
+ *
+ * The server starts the timestamps of each new subscription from scratch, so the packets of a
+ * resubscription are offset to carry on from where the previous subscription left off. Playback
+ * then continues as though the stream had never been interrupted, with no jump in position for
+ * the player to deal with.
+ */
+class PtsSplicer {
+    private static final String TAG = PtsSplicer.class.getName();
+
+    private final String mName;
+
+    private long mOffset = 0;
+    private long mEndPts = Long.MIN_VALUE;
+    private boolean mIsSplicePending = false;
+
+    PtsSplicer(@NonNull String name) {
+        mName = name;
+    }
+
+    /**
+     * Called for each subscriptionStart. Any after the first mark a resubscription, and the next
+     * muxpkt is spliced on to the end of the stream so far.
+     */
+    synchronized void onSubscriptionStart() {
+        if (mEndPts != Long.MIN_VALUE) {
+            mIsSplicePending = true;
+        }
+    }
+
+    /**
+     * Offsets the pts and dts of message, in place, as needed to keep them continuous.
+     */
+    synchronized void adjust(@NonNull HtspMessage message) {
+        if (!message.containsKey("pts")) {
+            return;
+        }
+
+        final long pts = message.getLong("pts");
+        final long offset = updateOffset(pts, message.getInteger("duration", 0));
+
+        if (offset != 0) {
+            message.put("pts", pts + offset);
+
+            if (message.containsKey("dts")) {
+                message.put("dts", message.getLong("dts") + offset);
+            }
+        }
+    }
+
+    /**
+     * Offsets the pts and dts of muxpkt, in place, as needed to keep them continuous.
+     */
+    synchronized void adjust(@NonNull Muxpkt muxpkt) {
+        if (!muxpkt.hasPts()) {
+            return;
+        }
+
+        final long offset = updateOffset(muxpkt.getPts(), muxpkt.getDuration());
+
+        if (offset != 0) {
+            muxpkt.set(muxpkt.getStream(), muxpkt.getFrameType(), muxpkt.getPts() + offset,
+                    muxpkt.hasDts() ? muxpkt.getDts() + offset : Muxpkt.NO_TIMESTAMP,
+                    muxpkt.getDuration());
+        }
+    }
+
+    /**
+     * Called before the current subscription is replaced by one for another channel. Returns the
+     * position the replacement will be spliced on at, rounded up to a whole millisecond so the
+     * player can seek straight to it, or C.TIME_UNSET if nothing has been received yet.
+     */
+    synchronized long prepareSplice() {
+        if (mEndPts == Long.MIN_VALUE) {
+            return C.TIME_UNSET;
+        }
+
+        mEndPts = ((mEndPts + 999) / 1000) * 1000;
+
+        return mEndPts;
+    }
+
+    // Misc Internal Methods
+    /**
+     * Splices on to the end of the stream so far if a splice is pending, and returns the offset to
+     * apply to a packet at pts.
+     */
+    private long updateOffset(long pts, int duration) {
+        if (mIsSplicePending) {
+            mIsSplicePending = false;
+            mOffset = mEndPts - pts;
+            Log.i(TAG, "Splicing resubscription on to the previous stream, offsetting timestamps by "
+                    + mOffset + "us (" + mName + ")");
+        }
+
+        mEndPts = Math.max(mEndPts, pts + mOffset + duration);
+
+        return mOffset;
+    }
+}
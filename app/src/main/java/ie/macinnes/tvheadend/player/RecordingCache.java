@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.player;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.FileDataSourceFactory;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import com.google.android.exoplayer2.upstream.cache.Cache;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSinkFactory;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSourceFactory;
+import com.google.android.exoplayer2.upstream.cache.CacheUtil;
+import com.google.android.exoplayer2.upstream.cache.LeastRecentlyUsedCacheEvictor;
+import com.google.android.exoplayer2.upstream.cache.SimpleCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ie.macinnes.tvheadend.Constants;
+import ie.macinnes.tvheadend.R;
+
+/**
+ * A read-through disk cache for recordings, so replaying a recording (or seeking back within
+ * one) is served from local storage rather than the server.
+ *
+ * Data is cached per DVR entry in the app's cache storage, the least recently used data being
+ * evicted once the configured size is reached. Recordings which are still running keep growing,
+ * so the length the cache stores for a recording is forgotten each time it is opened, and learnt
+ * afresh from the server. Also acts as a listener on both the cache and the
+ * upstream data source, to keep track of how much is served from each.
+ */
+class RecordingCache implements CacheDataSource.EventListener, TransferListener<Object> {
+    private static final String TAG = RecordingCache.class.getName();
+    private static final String DIRECTORY_NAME = "recordings";
+
+    // SimpleCache requires exclusive access to its directory, so there is only ever one
+    private static SimpleCache sCache;
+
+    private final Cache mCache;
+
+    private final AtomicLong mCachedBytesRead = new AtomicLong();
+    private final AtomicLong mUpstreamBytesRead = new AtomicLong();
+
+    RecordingCache(@NonNull Context context) {
+        mCache = getCache(context);
+    }
+
+    /**
+     * Returns the key data for the recording at recordingUri, e.g. htsp://dvrfile/123, is cached
+     * under. Query parameters are ignored, they have no effect on the data.
+     */
+    @NonNull
+    static String getCacheKey(@NonNull Uri recordingUri) {
+        return "dvrfile" + recordingUri.getPath();
+    }
+
+    /**
+     * Wraps upstreamFactory in a caching factory, or returns it as is if caching is disabled.
+     */
+    @NonNull
+    DataSource.Factory buildDataSourceFactory(@NonNull DataSource.Factory upstreamFactory) {
+        if (mCache == null) {
+            return upstreamFactory;
+        }
+
+        final DataSource.Factory cacheDataSourceFactory = new CacheDataSourceFactory(
+                mCache,
+                upstreamFactory,
+                new FileDataSourceFactory(),
+                new CacheDataSinkFactory(mCache, CacheDataSource.DEFAULT_MAX_CACHE_FILE_SIZE),
+                CacheDataSource.FLAG_IGNORE_CACHE_ON_ERROR,
+                this);
+
+        return new DataSource.Factory() {
+            @Override
+            public DataSource createDataSource() {
+                return new LengthResettingDataSource(mCache, cacheDataSourceFactory.createDataSource());
+            }
+        };
+    }
+
+    // CacheDataSource.EventListener Methods
+    @Override
+    public void onCachedBytesRead(long cacheSizeBytes, long cachedBytesRead) {
+        final long cached = mCachedBytesRead.addAndGet(cachedBytesRead);
+        final long upstream = mUpstreamBytesRead.get();
+
+        Log.d(TAG, "Read " + cachedBytesRead + " bytes from the recording cache, " + cached
+                + " bytes cached / " + upstream + " bytes from the server in total ("
+                + (cached * 100 / Math.max(1, cached + upstream)) + "% hit rate, cache size "
+                + cacheSizeBytes + " bytes)");
+    }
+
+    // TransferListener Methods
+    @Override
+    public void onTransferStart(Object source, DataSpec dataSpec) {
+        // Don't care about this event here
+    }
+
+    @Override
+    public void onBytesTransferred(Object source, int bytesTransferred) {
+        mUpstreamBytesRead.addAndGet(bytesTransferred);
+    }
+
+    @Override
+    public void onTransferEnd(Object source) {
+        // Don't care about this event here
+    }
+
+    // Misc Internal Methods
+    @Nullable
+    private static synchronized Cache getCache(@NonNull Context context) {
+        SharedPreferences sharedPreferences = context.getSharedPreferences(
+                Constants.PREFERENCE_TVHEADEND, Context.MODE_PRIVATE);
+
+        final long size = Long.parseLong(sharedPreferences.getString(
+                Constants.KEY_RECORDING_CACHE_SIZE,
+                context.getResources().getString(R.string.pref_default_recording_cache_size))) * 1024 * 1024;
+
+        if (size == 0) {
+            return null;
+        }
+
+        if (sCache == null) {
+            // The size is fixed for the life of the process, changes apply on the next start
+            Log.d(TAG, "Creating " + size + " byte recording cache");
+            sCache = new SimpleCache(
+                    new File(context.getCacheDir(), DIRECTORY_NAME),
+                    new LeastRecentlyUsedCacheEvictor(size));
+        }
+
+        return sCache;
+    }
+
+    // Inner Classes
+    /**
+     * Forgets the content length stored in the cache before opening the wrapped CacheDataSource.
+     * Otherwise, for a recording which is still running, it would stop at the first length stored,
+     * and seeks past it would fail. With nothing stored, the length comes from
+     * HtspFileInputStreamDataSource, which reports the recording's current size.
+     */
+    static class LengthResettingDataSource implements DataSource {
+        private final Cache mCache;
+        private final DataSource mDataSource;
+
+        LengthResettingDataSource(@NonNull Cache cache, @NonNull DataSource dataSource) {
+            mCache = cache;
+            mDataSource = dataSource;
+        }
+
+        @Override
+        public long open(DataSpec dataSpec) throws IOException {
+            mCache.setContentLength(CacheUtil.getKey(dataSpec), C.LENGTH_UNSET);
+            return mDataSource.open(dataSpec);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int readLength) throws IOException {
+            return mDataSource.read(buffer, offset, readLength);
+        }
+
+        @Override
+        public Uri getUri() {
+            return mDataSource.getUri();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mDataSource.close();
+        }
+    }
+}
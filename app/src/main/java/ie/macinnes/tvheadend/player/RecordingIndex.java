@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.player;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.extractor.SeekMap;
+import com.google.android.exoplayer2.extractor.SeekPoint;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A persistent index of keyframe PTS to byte offset for a single recording, built up as the
+ * recording is played. Entries can be added in any order, e.g. after seeking around.
+ *
+ * PTS values are as found in the recording. The PTS of the first sample in the recording is kept
+ * too, as the base all playback positions are relative to.
+ *
+ * Thread safe, entries are added by the loader thread and looked up from the playback thread.
+ */
+class RecordingIndex {
+    private static final String TAG = RecordingIndex.class.getName();
+    private static final String DIRECTORY_NAME = "recording_index";
+    private static final int FILE_VERSION = 1;
+
+    // Keyframes closer than this to an existing entry are not worth indexing
+    private static final long MIN_ENTRY_INTERVAL_US = 500000;
+
+    private final File mFile;
+    private final TreeMap<Long, Long> mEntries = new TreeMap<>();
+    private long mBasePts = C.TIME_UNSET;
+    private boolean mIsDirty = false;
+
+    /**
+     * Loads the index for the given DVR entry, if one has been saved before.
+     */
+    RecordingIndex(@NonNull Context context, @NonNull String dvrEntryId) {
+        mFile = new File(new File(context.getCacheDir(), DIRECTORY_NAME), dvrEntryId);
+        load();
+    }
+
+    synchronized long getBasePts() {
+        return mBasePts;
+    }
+
+    synchronized void setBasePts(long basePts) {
+        if (mBasePts != basePts) {
+            mBasePts = basePts;
+            mIsDirty = true;
+        }
+    }
+
+    /**
+     * Returns true if the index can be used to seek, i.e. the base PTS is known.
+     */
+    synchronized boolean isSeekable() {
+        return mBasePts != C.TIME_UNSET;
+    }
+
+    synchronized void add(long pts, long position) {
+        final Long floor = mEntries.floorKey(pts);
+        final Long ceiling = mEntries.ceilingKey(pts);
+
+        if ((floor != null && pts - floor < MIN_ENTRY_INTERVAL_US)
+                || (ceiling != null && ceiling - pts < MIN_ENTRY_INTERVAL_US)) {
+            return;
+        }
+
+        mEntries.put(pts, position);
+        mIsDirty = true;
+    }
+
+    /**
+     * Returns the seek points either side of timeUs, which is relative to the base PTS.
+     */
+    @NonNull
+    synchronized SeekMap.SeekPoints getSeekPoints(long timeUs) {
+        final Map.Entry<Long, Long> floor = mBasePts != C.TIME_UNSET ? mEntries.floorEntry(timeUs + mBasePts) : null;
+
+        if (floor == null) {
+            // Nothing indexed before timeUs, the start of the recording is the safe bet
+            return new SeekMap.SeekPoints(new SeekPoint(0, 0));
+        }
+
+        final SeekPoint first = new SeekPoint(floor.getKey() - mBasePts, floor.getValue());
+        final Map.Entry<Long, Long> higher = mEntries.higherEntry(floor.getKey());
+
+        if (floor.getKey() == timeUs + mBasePts || higher == null) {
+            return new SeekMap.SeekPoints(first);
+        }
+
+        return new SeekMap.SeekPoints(first, new SeekPoint(higher.getKey() - mBasePts, higher.getValue()));
+    }
+
+    /**
+     * Writes the index out, if anything has changed since it was loaded.
+     */
+    synchronized void save() {
+        if (!mIsDirty || mBasePts == C.TIME_UNSET) {
+            return;
+        }
+
+        final File directory = mFile.getParentFile();
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.w(TAG, "Failed to create recording index directory");
+            return;
+        }
+
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile)))) {
+            output.writeInt(FILE_VERSION);
+            output.writeLong(mBasePts);
+            output.writeInt(mEntries.size());
+
+            for (Map.Entry<Long, Long> entry : mEntries.entrySet()) {
+                output.writeLong(entry.getKey());
+                output.writeLong(entry.getValue());
+            }
+
+            mIsDirty = false;
+            Log.d(TAG, "Saved " + mEntries.size() + " index entries to " + mFile);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to save recording index " + mFile, e);
+            delete();
+        }
+    }
+
+    // Misc Internal Methods
+    private void load() {
+        if (!mFile.exists()) {
+            return;
+        }
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)))) {
+            if (input.readInt() != FILE_VERSION) {
+                throw new IOException("Unknown recording index version");
+            }
+
+            mBasePts = input.readLong();
+
+            final int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                mEntries.put(input.readLong(), input.readLong());
+            }
+
+            Log.d(TAG, "Loaded " + count + " index entries from " + mFile);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to load recording index " + mFile, e);
+            mBasePts = C.TIME_UNSET;
+            mEntries.clear();
+            delete();
+        }
+    }
+
+    private void delete() {
+        if (mFile.exists() && !mFile.delete()) {
+            Log.w(TAG, "Failed to delete recording index " + mFile);
+        }
+    }
+}
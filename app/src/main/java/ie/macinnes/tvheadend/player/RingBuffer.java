@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.player;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free single producer, single consumer ring buffer.
+ *
+ * Exactly one thread may call the write methods (the HTSP dispatcher thread), and exactly one
+ * thread may call the read methods (the ExoPlayer loader thread). Positions are tracked as the
+ * total number of bytes ever written and read, so the amount of readable data is simply the
+ * difference between the two and no compaction is ever required.
+ *
+ * Writes are all or nothing, if there is not enough free space for the whole write, nothing is
+ * written and the overflow counters are updated instead.
+ */
+class RingBuffer {
+    private static final String TAG = RingBuffer.class.getName();
+
+    private final int mCapacity;
+
+    // Each thread gets its own view of the storage, as ByteBuffer positions are not thread safe
+    private final ByteBuffer mWriteBuffer;
+    private final ByteBuffer mReadBuffer;
+
+    private final AtomicLong mWritePosition = new AtomicLong();
+    private final AtomicLong mReadPosition = new AtomicLong();
+
+    private final AtomicLong mOverflowCount = new AtomicLong();
+    private final AtomicLong mOverflowBytes = new AtomicLong();
+
+    RingBuffer(@NonNull ByteBuffer storage) {
+        mCapacity = storage.capacity();
+        mWriteBuffer = storage.duplicate();
+        mReadBuffer = storage.duplicate();
+    }
+
+    int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Returns the number of bytes available to be read.
+     */
+    int getReadableBytes() {
+        return (int) (mWritePosition.get() - mReadPosition.get());
+    }
+
+    /**
+     * Returns the number of bytes which can currently be written.
+     */
+    int getWritableBytes() {
+        return mCapacity - getReadableBytes();
+    }
+
+    /**
+     * Returns the total number of bytes ever written, i.e. where the next write will start.
+     */
+    long getWritePosition() {
+        return mWritePosition.get();
+    }
+
+    /**
+     * Returns the total number of bytes ever read, i.e. where the next read will start.
+     */
+    long getReadPosition() {
+        return mReadPosition.get();
+    }
+
+    long getOverflowCount() {
+        return mOverflowCount.get();
+    }
+
+    long getOverflowBytes() {
+        return mOverflowBytes.get();
+    }
+
+    // Producer Methods
+    /**
+     * Writes headerLength bytes of header, followed by the entire payload (if any), as a single
+     * unit. Must only be called from the producer thread.
+     *
+     * @return true if the data was written, false if there was insufficient space
+     */
+    boolean write(@NonNull byte[] header, int headerLength, @Nullable byte[] payload) {
+        final int payloadLength = payload != null ? payload.length : 0;
+        final int length = headerLength + payloadLength;
+
+        if (length > getWritableBytes()) {
+            mOverflowCount.incrementAndGet();
+            mOverflowBytes.addAndGet(length);
+            return false;
+        }
+
+        long writePosition = mWritePosition.get();
+
+        writePosition = put(writePosition, header, headerLength);
+
+        if (payload != null) {
+            writePosition = put(writePosition, payload, payloadLength);
+        }
+
+        // Publish the data to the consumer
+        mWritePosition.set(writePosition);
+
+        return true;
+    }
+
+    // Consumer Methods
+    /**
+     * Reads up to length bytes into target. Must only be called from the consumer thread.
+     *
+     * @return the number of bytes read, which may be 0 if the buffer is empty
+     */
+    int read(@NonNull byte[] target, int offset, int length) {
+        long readPosition = mReadPosition.get();
+
+        length = Math.min(length, (int) (mWritePosition.get() - readPosition));
+
+        if (length == 0) {
+            return 0;
+        }
+
+        final int index = (int) (readPosition % mCapacity);
+        final int firstLength = Math.min(length, mCapacity - index);
+
+        mReadBuffer.position(index);
+        mReadBuffer.get(target, offset, firstLength);
+
+        if (firstLength < length) {
+            mReadBuffer.position(0);
+            mReadBuffer.get(target, offset + firstLength, length - firstLength);
+        }
+
+        // Release the space back to the producer
+        mReadPosition.set(readPosition + length);
+
+        return length;
+    }
+
+    /**
+     * Discards all currently readable data. Must only be called from the consumer thread.
+     */
+    void clear() {
+        mReadPosition.set(mWritePosition.get());
+    }
+
+    // Internal Methods
+    private long put(long writePosition, byte[] source, int length) {
+        final int index = (int) (writePosition % mCapacity);
+        final int firstLength = Math.min(length, mCapacity - index);
+
+        mWriteBuffer.position(index);
+        mWriteBuffer.put(source, 0, firstLength);
+
+        if (firstLength < length) {
+            mWriteBuffer.position(0);
+            mWriteBuffer.put(source, firstLength, length - firstLength);
+        }
+
+        return writePosition + length;
+    }
+}
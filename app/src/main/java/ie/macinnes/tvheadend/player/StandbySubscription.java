@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.player;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+import android.util.SparseBooleanArray;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ie.macinnes.htsp.HtspMessage;
+import ie.macinnes.htsp.HtspNotConnectedException;
+import ie.macinnes.htsp.SimpleHtspConnection;
+import ie.macinnes.htsp.tasks.Subscriber;
+
+/**
+ * A subscription to a channel which is not currently being watched, kept warm so it can be
+ * handed to a HtspSubscriptionDataSource the moment the user tunes to the channel.
+ *
+ * Only the subscriptionStart message and the packets since the most recent video keyframe are
+ * retained. Once promoted, those are replayed to the new listener, and all later messages are
+ * forwarded to it until the subscription is released.
+ */
+class StandbySubscription implements Subscriber.Listener {
+    private static final String TAG = StandbySubscription.class.getName();
+
+    // Stop retaining packets if a single GOP grows beyond this, we'll wait for the next keyframe
+    private static final int MAX_GOP_BYTES = 8 * 1024 * 1024;
+
+    private final SimpleHtspConnection mConnection;
+    private final long mChannelId;
+    private final Subscriber mSubscriber;
+
+    private final SparseBooleanArray mVideoStreams = new SparseBooleanArray();
+    private final List<HtspMessage> mGop = new ArrayList<>();
+    private int mGopBytes = 0;
+    private boolean mHasKeyframe = false;
+
+    private HtspMessage mSubscriptionStart;
+    private Subscriber.Listener mListener;
+    private boolean mIsStopped = false;
+    private boolean mIsReleased = false;
+
+    StandbySubscription(@NonNull SimpleHtspConnection connection, long channelId) {
+        mConnection = connection;
+        mChannelId = channelId;
+
+        mSubscriber = new Subscriber(mConnection);
+        mSubscriber.addSubscriptionListener(this);
+        mConnection.addAuthenticationListener(mSubscriber);
+    }
+
+    long getChannelId() {
+        return mChannelId;
+    }
+
+    void subscribe(String streamProfile, int timeshiftPeriod) throws HtspNotConnectedException {
+        Log.d(TAG, "Subscribing to standby channel " + mChannelId);
+        mSubscriber.subscribe(mChannelId, streamProfile, timeshiftPeriod);
+    }
+
+    /**
+     * Returns true if this subscription can still be promoted, i.e. it has received a
+     * subscriptionStart and has not been stopped by the server.
+     */
+    synchronized boolean isReady() {
+        return mSubscriptionStart != null && !mIsStopped;
+    }
+
+    /**
+     * Hands the subscription over to listener, replaying the buffered GOP first. The caller takes
+     * over ownership of the subscription, and is responsible for releasing it.
+     */
+    @NonNull
+    synchronized Subscriber promote(@NonNull Subscriber.Listener listener) {
+        Log.d(TAG, "Promoting standby channel " + mChannelId + " with " + mGop.size()
+                + " buffered packets / " + mGopBytes + " bytes");
+
+        listener.onSubscriptionStart(mSubscriptionStart);
+
+        for (HtspMessage message : mGop) {
+            listener.onMuxpkt(message);
+        }
+
+        mGop.clear();
+        mGopBytes = 0;
+
+        // Rather than swapping listeners on the Subscriber, which could lose or duplicate a packet
+        // in flight, we remain the registered listener and forward everything until released.
+        // Forwarding happens outside our lock, the listener may hold its own lock while promoting.
+        mListener = listener;
+
+        return mSubscriber;
+    }
+
+    /**
+     * Stops forwarding to the listener given to promote(), if any, and unsubscribes. Removing the
+     * listener from the Subscriber itself does nothing, as only we are registered with it.
+     */
+    void release() {
+        Log.d(TAG, "Releasing standby channel " + mChannelId);
+
+        synchronized (this) {
+            mListener = null;
+            mIsReleased = true;
+            mGop.clear();
+            mGopBytes = 0;
+        }
+
+        mConnection.removeAuthenticationListener(mSubscriber);
+        mSubscriber.removeSubscriptionListener(this);
+        mSubscriber.unsubscribe();
+    }
+
+    // Subscriber.Listener Methods
+    @Override
+    public void onSubscriptionStart(@NonNull HtspMessage message) {
+        final Subscriber.Listener listener;
+
+        synchronized (this) {
+            listener = mListener;
+
+            if (listener == null) {
+                if (!mIsReleased) {
+                    retainSubscriptionStart(message);
+                }
+                return;
+            }
+        }
+
+        listener.onSubscriptionStart(message);
+    }
+
+
+    @Override
+    public void onSubscriptionStatus(@NonNull HtspMessage message) {
+        final Subscriber.Listener listener = getListener();
+        if (listener != null) {
+            listener.onSubscriptionStatus(message);
+        }
+    }
+
+    @Override
+    public void onSubscriptionSkip(@NonNull HtspMessage message) {
+        final Subscriber.Listener listener = getListener();
+        if (listener != null) {
+            listener.onSubscriptionSkip(message);
+        }
+    }
+
+    @Override
+    public void onSubscriptionSpeed(@NonNull HtspMessage message) {
+        final Subscriber.Listener listener = getListener();
+        if (listener != null) {
+            listener.onSubscriptionSpeed(message);
+        }
+    }
+
+    @Override
+    public void onSubscriptionStop(@NonNull HtspMessage message) {
+        final Subscriber.Listener listener;
+
+        synchronized (this) {
+            listener = mListener;
+
+            if (listener == null) {
+                Log.d(TAG, "Standby channel " + mChannelId + " stopped by the server");
+                mIsStopped = true;
+                mGop.clear();
+                mGopBytes = 0;
+                return;
+            }
+        }
+
+        listener.onSubscriptionStop(message);
+    }
+
+    @Override
+    public void onQueueStatus(@NonNull HtspMessage message) {
+        final Subscriber.Listener listener = getListener();
+        if (listener != null) {
+            listener.onQueueStatus(message);
+        }
+    }
+
+    @Override
+    public void onSignalStatus(@NonNull HtspMessage message) {
+        final Subscriber.Listener listener = getListener();
+        if (listener != null) {
+            listener.onSignalStatus(message);
+        }
+    }
+
+    @Override
+    public void onTimeshiftStatus(@NonNull HtspMessage message) {
+        final Subscriber.Listener listener = getListener();
+        if (listener != null) {
+            listener.onTimeshiftStatus(message);
+        }
+    }
+
+    @Override
+    public void onMuxpkt(@NonNull HtspMessage message) {
+        final Subscriber.Listener listener;
+
+        synchronized (this) {
+            listener = mListener;
+
+            if (listener == null) {
+                if (!mIsReleased) {
+                    retainMuxpkt(message);
+                }
+                return;
+            }
+        }
+
+        listener.onMuxpkt(message);
+    }
+
+    // Misc Internal Methods
+    /**
+     * Returns the listener to forward to, or null if there is none yet. Reading it under our lock
+     * ensures a message is never forwarded ahead of the GOP replayed by promote().
+     */
+    private synchronized Subscriber.Listener getListener() {
+        return mListener;
+    }
+
+    private void retainSubscriptionStart(@NonNull HtspMessage message) {
+        mSubscriptionStart = message;
+
+        mVideoStreams.clear();
+        for (HtspMessage stream : message.getHtspMessageArray("streams")) {
+            if (KeyframeGate.isVideoStream(stream.getString("type"))) {
+                mVideoStreams.put(stream.getInteger("index"), true);
+            }
+        }
+
+        mGop.clear();
+        mGopBytes = 0;
+        mHasKeyframe = false;
+    }
+
+    private void retainMuxpkt(@NonNull HtspMessage message) {
+        if (isKeyframe(message)) {
+            mGop.clear();
+            mGopBytes = 0;
+            mHasKeyframe = true;
+        } else if (!mHasKeyframe) {
+            // Nothing before the first keyframe is decodable
+            return;
+        }
+
+        mGopBytes += message.getByteArray("payload").length;
+
+        if (mGopBytes > MAX_GOP_BYTES) {
+            Log.w(TAG, "GOP for standby channel " + mChannelId + " too large, discarding");
+            mGop.clear();
+            mGopBytes = 0;
+            mHasKeyframe = false;
+            return;
+        }
+
+        mGop.add(message);
+    }
+
+    private boolean isKeyframe(@NonNull HtspMessage message) {
+        if (!mVideoStreams.get(message.getInteger("stream"))) {
+            // No video, e.g. a radio channel, only keep the most recent audio packet around
+            return mVideoStreams.size() == 0;
+        }
+
+        return KeyframeGate.isKeyframe(message);
+    }
+}
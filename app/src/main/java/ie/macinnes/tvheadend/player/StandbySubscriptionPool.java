@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.player;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import ie.macinnes.htsp.HtspNotConnectedException;
+import ie.macinnes.htsp.SimpleHtspConnection;
+import ie.macinnes.tvheadend.Constants;
+import ie.macinnes.tvheadend.R;
+import ie.macinnes.tvheadend.TvContractUtils;
+
+/**
+ * Keeps standby subscriptions to the channels either side of the one being watched, so channel
+ * up/down can start playback without waiting for a new subscription and keyframe.
+ *
+ * Every live or recording session which holds a tuner must acquire it here, standby subscriptions
+ * only ever use the tuners left over, and are dropped as soon as a session needs one.
+ */
+public class StandbySubscriptionPool {
+    private static final String TAG = StandbySubscriptionPool.class.getName();
+
+    private final Context mContext;
+    private final SimpleHtspConnection mConnection;
+    private final SharedPreferences mSharedPreferences;
+
+    private final List<StandbySubscription> mStandbySubscriptions = new ArrayList<>();
+    private int mAcquiredTuners = 0;
+
+    public StandbySubscriptionPool(Context context, SimpleHtspConnection connection) {
+        mContext = context;
+        mConnection = connection;
+
+        mSharedPreferences = mContext.getSharedPreferences(
+                Constants.PREFERENCE_TVHEADEND, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Reserves a tuner for a session, dropping a standby subscription if needed.
+     */
+    public synchronized void acquireTuner() {
+        mAcquiredTuners++;
+        trim(getStandbyLimit());
+    }
+
+    public synchronized void releaseTuner() {
+        if (mAcquiredTuners > 0) {
+            mAcquiredTuners--;
+        }
+    }
+
+    /**
+     * Updates the standby subscriptions to follow the channel which has just been tuned. Callers
+     * should allow the new channel time to claim its standby subscription first, otherwise it
+     * will be released as it is not a neighbour of itself.
+     */
+    public void update(@NonNull Uri channelUri) {
+        final int standbyCount = getStandbyCount();
+
+        if (standbyCount == 0) {
+            release();
+            return;
+        }
+
+        final List<Integer> neighbours = TvContractUtils.getNeighbouringTvhChannelIds(
+                mContext, channelUri, standbyCount);
+
+        final String streamProfile = mSharedPreferences.getString(
+                Constants.KEY_HTSP_STREAM_PROFILE,
+                mContext.getResources().getString(R.string.pref_default_htsp_stream_profile));
+
+        synchronized (this) {
+            // Drop any standby subscriptions which are no longer neighbours
+            Iterator<StandbySubscription> iterator = mStandbySubscriptions.iterator();
+            while (iterator.hasNext()) {
+                StandbySubscription standbySubscription = iterator.next();
+
+                if (!neighbours.contains((int) standbySubscription.getChannelId())) {
+                    standbySubscription.release();
+                    iterator.remove();
+                }
+            }
+
+            final int limit = getStandbyLimit();
+
+            for (Integer channelId : neighbours) {
+                if (mStandbySubscriptions.size() >= limit) {
+                    break;
+                }
+
+                if (find(channelId) != null) {
+                    continue;
+                }
+
+                StandbySubscription standbySubscription = new StandbySubscription(mConnection, channelId);
+
+                try {
+                    // Must match HtspSubscriptionDataSource, as the subscription is handed over to it
+                    standbySubscription.subscribe(
+                            streamProfile, HtspSubscriptionDataSource.getServerTimeshiftPeriod(mContext));
+                    mStandbySubscriptions.add(standbySubscription);
+                } catch (HtspNotConnectedException e) {
+                    Log.w(TAG, "Failed to subscribe to standby channel " + channelId + ", HTSP not connected");
+                    standbySubscription.release();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes and returns the standby subscription for the given channel, if one is ready.
+     */
+    @Nullable
+    synchronized StandbySubscription claim(long channelId) {
+        StandbySubscription standbySubscription = find(channelId);
+
+        if (standbySubscription == null) {
+            return null;
+        }
+
+        mStandbySubscriptions.remove(standbySubscription);
+
+        if (!standbySubscription.isReady()) {
+            standbySubscription.release();
+            return null;
+        }
+
+        return standbySubscription;
+    }
+
+    /**
+     * Releases all standby subscriptions.
+     */
+    public synchronized void release() {
+        trim(0);
+    }
+
+    // Misc Internal Methods
+    private StandbySubscription find(long channelId) {
+        for (StandbySubscription standbySubscription : mStandbySubscriptions) {
+            if (standbySubscription.getChannelId() == channelId) {
+                return standbySubscription;
+            }
+        }
+
+        return null;
+    }
+
+    private void trim(int limit) {
+        while (mStandbySubscriptions.size() > limit) {
+            // The furthest neighbours were added last, so drop those first
+            mStandbySubscriptions.remove(mStandbySubscriptions.size() - 1).release();
+        }
+    }
+
+    private int getStandbyLimit() {
+        return Math.max(0, Math.min(getStandbyCount(), getTunerCount() - mAcquiredTuners));
+    }
+
+    private int getStandbyCount() {
+        try {
+            return Integer.parseInt(mSharedPreferences.getString(
+                    Constants.KEY_STANDBY_SUBSCRIPTION_COUNT,
+                    mContext.getResources().getString(R.string.pref_default_standby_subscription_count)));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private int getTunerCount() {
+        try {
+            return Integer.parseInt(mSharedPreferences.getString(
+                    Constants.KEY_TUNER_COUNT,
+                    mContext.getResources().getString(R.string.pref_default_tuner_count)));
+        } catch (NumberFormatException e) {
+            return 10;
+        }
+    }
+}
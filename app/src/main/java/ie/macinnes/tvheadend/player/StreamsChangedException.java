@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.player;
+
+import com.google.android.exoplayer2.ParserException;
+
+/**
+ * Thrown when tracks were declared from a cached subscriptionStart, but the server has since
+ * reported a different set of streams. The cache has already been updated, so opening the channel
+ * again will succeed.
+ */
+class StreamsChangedException extends ParserException {
+    StreamsChangedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.player;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import ie.macinnes.htsp.HtspMessage;
+
+/**
+ * A persistent, per-channel cache of the most recent subscriptionStart message. This lets us
+ * declare tracks, and have the renderers configure their decoders, before the server has replied
+ * to a subscribe.
+ *
+ * get() and put() are called from the HTSP dispatcher and playback threads, so they only touch an
+ * in-memory copy. The files are loaded once, and written, on a background thread.
+ */
+class SubscriptionStartCache {
+    private static final String TAG = SubscriptionStartCache.class.getName();
+    private static final String DIRECTORY_NAME = "subscription_start";
+
+    // Shared by every instance, keyed by channel ID
+    private static final Map<Long, HtspMessage> sMessages = new HashMap<>();
+    private static boolean sIsLoaded = false;
+    private static HandlerThread sIoThread;
+    private static Handler sIoHandler;
+
+    private final File mDirectory;
+
+    SubscriptionStartCache(@NonNull Context context) {
+        mDirectory = new File(context.getCacheDir(), DIRECTORY_NAME);
+
+        synchronized (sMessages) {
+            if (sIoHandler == null) {
+                sIoThread = new HandlerThread(
+                        "SubscriptionStartCache IO Thread", Process.THREAD_PRIORITY_BACKGROUND);
+                sIoThread.start();
+                sIoHandler = new Handler(sIoThread.getLooper());
+                sIoHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        load();
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Returns the cached subscriptionStart for the channel, or null if there isn't one.
+     */
+    @Nullable
+    HtspMessage get(long channelId) {
+        synchronized (sMessages) {
+            if (sIsLoaded || sMessages.containsKey(channelId)) {
+                return sMessages.get(channelId);
+            }
+        }
+
+        // Only until the background load has finished, shortly after the first player started
+        final HtspMessage message = readFile(channelId);
+
+        synchronized (sMessages) {
+            if (!sMessages.containsKey(channelId)) {
+                sMessages.put(channelId, message);
+            }
+            return sMessages.get(channelId);
+        }
+    }
+
+    /**
+     * Stores the subscriptionStart for the channel, unless the cached copy describes the same
+     * streams already.
+     */
+    void put(final long channelId, @NonNull final HtspMessage message) {
+        final HtspMessage cached = get(channelId);
+
+        if (cached != null && hasSameStreams(cached, message)) {
+            return;
+        }
+
+        synchronized (sMessages) {
+            sMessages.put(channelId, message);
+        }
+
+        sIoHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                writeFile(channelId, message);
+            }
+        });
+    }
+
+    void remove(final long channelId) {
+        synchronized (sMessages) {
+            sMessages.put(channelId, null);
+        }
+
+        sIoHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                deleteFile(channelId);
+            }
+        });
+    }
+
+    /**
+     * Returns true if both subscriptionStart messages describe the same streams, i.e. tracks
+     * declared from one are valid for the other. Stream details such as the codec configuration
+     * may differ, these are handled as format changes.
+     */
+    static boolean hasSameStreams(@NonNull HtspMessage a, @NonNull HtspMessage b) {
+        final HtspMessage[] aStreams = a.getHtspMessageArray("streams");
+        final HtspMessage[] bStreams = b.getHtspMessageArray("streams");
+
+        if (aStreams.length != bStreams.length) {
+            return false;
+        }
+
+        for (int i = 0; i < aStreams.length; i++) {
+            if (aStreams[i].getInteger("index") != bStreams[i].getInteger("index")
+                    || !aStreams[i].getString("type").equals(bStreams[i].getString("type"))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // Misc Internal Methods
+    private void load() {
+        final File[] files = mDirectory.listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+                final long channelId;
+                try {
+                    channelId = Long.parseLong(file.getName());
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+
+                final HtspMessage message = readFile(channelId);
+
+                synchronized (sMessages) {
+                    // Anything put() in the meantime is newer than the file
+                    if (!sMessages.containsKey(channelId)) {
+                        sMessages.put(channelId, message);
+                    }
+                }
+            }
+        }
+
+        synchronized (sMessages) {
+            sIsLoaded = true;
+        }
+    }
+
+    @Nullable
+    private HtspMessage readFile(long channelId) {
+        final File file = getFile(channelId);
+
+        if (!file.exists()) {
+            return null;
+        }
+
+        try (ObjectInputStream objectInput = new ObjectInputStream(new FileInputStream(file))) {
+            return (HtspMessage) objectInput.readObject();
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            Log.w(TAG, "Failed to read cached subscriptionStart for channel " + channelId, e);
+            deleteFile(channelId);
+            return null;
+        }
+    }
+
+    private void writeFile(long channelId, @NonNull HtspMessage message) {
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "Failed to create subscriptionStart cache directory");
+            return;
+        }
+
+        try (ObjectOutputStream objectOutput = new ObjectOutputStream(new FileOutputStream(getFile(channelId)))) {
+            objectOutput.writeObject(message);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to cache subscriptionStart for channel " + channelId, e);
+            deleteFile(channelId);
+        }
+    }
+
+    private void deleteFile(long channelId) {
+        final File file = getFile(channelId);
+
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Failed to remove cached subscriptionStart for channel " + channelId);
+        }
+    }
+
+    private File getFile(long channelId) {
+        return new File(mDirectory, Long.toString(channelId));
+    }
+}
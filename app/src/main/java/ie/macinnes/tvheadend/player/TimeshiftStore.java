@@ -0,0 +1,404 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.player;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A client side timeshift window, stored in a set of memory-mapped segment files.
+ *
+ * Framed subscription data is appended by a single writer thread, the oldest data being evicted
+ * once the window is full. Unlike the RingBuffer, reading does not consume anything, the single
+ * reader thread can read from any position still in the window. An index of PTS to frame position
+ * is kept for frames decoding can start from, which is used to serve seeks locally.
+ *
+ * Positions are the total number of bytes ever written, as in the RingBuffer.
+ *
+ * Mapping the segments is expensive, and each one holds on to disk space until the garbage
+ * collector unmaps it, so released stores hand their segments on to the next store created, e.g.
+ * after a zap.
+ */
+class TimeshiftStore {
+    private static final String TAG = TimeshiftStore.class.getName();
+
+    static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    // A 32-bit process has a few GB of address space, shared with the heap, the code and every
+    // other mapping, so the largest windows would fail to map, or starve everything else
+    static final long MAX_32_BIT_SIZE = 256 * 1024 * 1024;
+
+    private static final long NO_POSITION = Long.MAX_VALUE;
+
+    // Segments released by a previous store, waiting to be reused
+    private static final List<ByteBuffer> sSpareSegments = new ArrayList<>();
+
+    private final long mCapacity;
+    private final ByteBuffer[] mSegments;
+    private final ByteBuffer[] mWriteSegments;
+    private final ByteBuffer[] mReadSegments;
+
+    // Reads and writes hold the read lock while touching the segments, release() the write lock,
+    // so the segments are never handed on while a reader or writer is still using them
+    private final ReentrantReadWriteLock mReleaseLock = new ReentrantReadWriteLock();
+    private volatile boolean mIsReleased = false;
+
+    private volatile long mWritePosition = 0;
+
+    // Guarded by this. Everything before mEvictedPosition may have been overwritten, and the
+    // reader must not read it. mProtectedPosition is the start of the frame the reader is copying,
+    // which the writer must not evict. Between frames nothing is protected, so a reader parked
+    // there, e.g. while paused, never stops the writer.
+    private long mEvictedPosition = 0;
+    private long mProtectedPosition = NO_POSITION;
+
+    // PTS and position of each frame decoding can start from
+    private final KeyframeIndex mIndex = new KeyframeIndex(Integer.MAX_VALUE);
+
+    /**
+     * @param directory Where to create the segment files. They are deleted straight away, the
+     *                  mappings remain valid until released.
+     * @param size The size of the window, rounded down to a whole number of segments, and bounded
+     *             by the address space of the process
+     */
+    TimeshiftStore(@NonNull File directory, long size) throws IOException {
+        final long boundedSize = boundSize(size, is64BitProcess());
+        if (boundedSize < size) {
+            Log.i(TAG, "Limiting the timeshift window to " + boundedSize + " bytes, 32-bit process");
+        }
+
+        final int segmentCount = (int) Math.max(1, boundedSize / SEGMENT_SIZE);
+
+        mCapacity = (long) segmentCount * SEGMENT_SIZE;
+        mSegments = new ByteBuffer[segmentCount];
+        mWriteSegments = new ByteBuffer[segmentCount];
+        mReadSegments = new ByteBuffer[segmentCount];
+
+        final int reused = takeSpareSegments(mSegments);
+        Log.d(TAG, "Creating " + segmentCount + " timeshift segments in " + directory + ", "
+                + reused + " reused");
+
+        if (reused < segmentCount && !directory.exists() && !directory.mkdirs()) {
+            returnSpareSegments(mSegments, 0);
+            throw new IOException("Failed to create timeshift directory " + directory);
+        }
+
+        for (int i = 0; i < segmentCount; i++) {
+            if (mSegments[i] == null) {
+                try {
+                    mSegments[i] = mapSegment(directory);
+                } catch (IOException e) {
+                    returnSpareSegments(mSegments, 0);
+                    throw e;
+                }
+            }
+
+            // Each thread gets its own view of the storage, as ByteBuffer positions are not thread safe
+            mWriteSegments[i] = mSegments[i].duplicate();
+            mReadSegments[i] = mSegments[i].duplicate();
+        }
+    }
+
+    /**
+     * Stops all reads and writes, and hands the segments on to the next store created. Blocks
+     * until any read or write in progress has finished.
+     */
+    void release() {
+        mReleaseLock.writeLock().lock();
+        try {
+            if (mIsReleased) {
+                return;
+            }
+            mIsReleased = true;
+
+            mIndex.clear();
+            returnSpareSegments(mSegments, mSegments.length);
+        } finally {
+            mReleaseLock.writeLock().unlock();
+        }
+    }
+
+    boolean isReleased() {
+        return mIsReleased;
+    }
+
+    /**
+     * Drops any segments left over from released stores, leaving the garbage collector to unmap
+     * them and free their memory and disk space.
+     */
+    static void releaseSpareSegments() {
+        synchronized (sSpareSegments) {
+            if (!sSpareSegments.isEmpty()) {
+                Log.d(TAG, "Dropping " + sSpareSegments.size() + " spare timeshift segments");
+            }
+
+            sSpareSegments.clear();
+        }
+    }
+
+    /**
+     * Returns size, bounded to MAX_32_BIT_SIZE unless the process is 64-bit.
+     */
+    static long boundSize(long size, boolean is64Bit) {
+        return is64Bit ? size : Math.min(size, MAX_32_BIT_SIZE);
+    }
+
+    long getCapacity() {
+        return mCapacity;
+    }
+
+    long getWritePosition() {
+        return mWritePosition;
+    }
+
+    // Writer Methods
+    /**
+     * Appends headerLength bytes of header, followed by the entire payload (if any), as a single
+     * frame. If pts is not null, the frame is added to the index. Must only be called from the
+     * writer thread.
+     *
+     * @return true if the frame was written, false if it would have evicted the frame the reader
+     * is part way through
+     */
+    boolean write(@NonNull byte[] header, int headerLength, @Nullable byte[] payload, @Nullable Long pts) {
+        mReleaseLock.readLock().lock();
+        try {
+            return mIsReleased ? false : writeFrame(header, headerLength, payload, pts);
+        } finally {
+            mReleaseLock.readLock().unlock();
+        }
+    }
+
+    private boolean writeFrame(@NonNull byte[] header, int headerLength, @Nullable byte[] payload, @Nullable Long pts) {
+        final int payloadLength = payload != null ? payload.length : 0;
+        final long frameStart = mWritePosition;
+        final long frameEnd = frameStart + headerLength + payloadLength;
+
+        synchronized (this) {
+            final long evictedPosition = frameEnd - mCapacity;
+
+            if (evictedPosition > mProtectedPosition) {
+                return false;
+            }
+
+            if (evictedPosition > mEvictedPosition) {
+                mEvictedPosition = evictedPosition;
+
+                // Drop any index entries for frames which are about to be overwritten
+                mIndex.trimToPosition(mEvictedPosition);
+            }
+        }
+
+        long writePosition = put(frameStart, header, headerLength);
+
+        if (payload != null) {
+            put(writePosition, payload, payloadLength);
+        }
+
+        if (pts != null) {
+            mIndex.add(pts, frameStart);
+        }
+
+        // Publish the data to the reader
+        mWritePosition = frameEnd;
+
+        return true;
+    }
+
+    // Reader Methods
+    /**
+     * Claims the frame starting at position, so the writer will not evict it until endFrameRead
+     * is called. The claim should only be held while the frame is being read.
+     *
+     * @return false if the frame has already been evicted
+     */
+    synchronized boolean beginFrameRead(long position) {
+        if (mIsReleased || position < mEvictedPosition) {
+            return false;
+        }
+
+        mProtectedPosition = position;
+        return true;
+    }
+
+    synchronized void endFrameRead() {
+        mProtectedPosition = NO_POSITION;
+    }
+
+    /**
+     * Reads the 4 byte length prefix of the frame at position.
+     */
+    int peekFrameLength(long position) {
+        byte[] length = new byte[HtspFraming.FRAME_LENGTH_SIZE];
+        read(position, length, 0, length.length);
+
+        return ((length[0] & 0xFF) << 24) | ((length[1] & 0xFF) << 16)
+                | ((length[2] & 0xFF) << 8) | (length[3] & 0xFF);
+    }
+
+    /**
+     * Reads up to length bytes from position into target. Must only be called from the reader
+     * thread, for data which is not yet evicted.
+     *
+     * @return the number of bytes read, which may be 0 if there is no data at position yet, or
+     * the store has been released
+     */
+    int read(long position, @NonNull byte[] target, int offset, int length) {
+        mReleaseLock.readLock().lock();
+        try {
+            return mIsReleased ? 0 : readFrame(position, target, offset, length);
+        } finally {
+            mReleaseLock.readLock().unlock();
+        }
+    }
+
+    private int readFrame(long position, @NonNull byte[] target, int offset, int length) {
+        length = (int) Math.min(length, mWritePosition - position);
+
+        int read = 0;
+
+        while (read < length) {
+            final int segment = (int) ((position / SEGMENT_SIZE) % mReadSegments.length);
+            final int index = (int) (position % SEGMENT_SIZE);
+            final int chunkLength = Math.min(length - read, SEGMENT_SIZE - index);
+
+            mReadSegments[segment].position(index);
+            mReadSegments[segment].get(target, offset + read, chunkLength);
+
+            position += chunkLength;
+            read += chunkLength;
+        }
+
+        return read;
+    }
+
+    // Index Methods
+    /**
+     * Returns the position of the last indexed frame at or before pts, the oldest indexed frame if
+     * pts is before the window, or the write position if nothing is indexed.
+     */
+    long findPosition(long pts) {
+        return mIndex.findPosition(pts, mWritePosition);
+    }
+
+    /**
+     * Returns the PTS of the last indexed frame at or before position, or
+     * HtspDataSource.INVALID_TIMESHIFT_TIME if there is none.
+     */
+    long findPts(long position) {
+        return mIndex.findPts(position, HtspDataSource.INVALID_TIMESHIFT_TIME);
+    }
+
+    /**
+     * Returns the PTS of the oldest indexed frame, or HtspDataSource.INVALID_TIMESHIFT_TIME
+     */
+    long getStartPts() {
+        return mIndex.getFirstPts(HtspDataSource.INVALID_TIMESHIFT_TIME);
+    }
+
+    /**
+     * Returns the PTS of the newest indexed frame, or HtspDataSource.INVALID_TIMESHIFT_TIME
+     */
+    long getEndPts() {
+        return mIndex.getLastPts(HtspDataSource.INVALID_TIMESHIFT_TIME);
+    }
+
+    // Internal Methods
+    private long put(long position, byte[] source, int length) {
+        int written = 0;
+
+        while (written < length) {
+            final int segment = (int) ((position / SEGMENT_SIZE) % mWriteSegments.length);
+            final int index = (int) (position % SEGMENT_SIZE);
+            final int chunkLength = Math.min(length - written, SEGMENT_SIZE - index);
+
+            mWriteSegments[segment].position(index);
+            mWriteSegments[segment].put(source, written, chunkLength);
+
+            position += chunkLength;
+            written += chunkLength;
+        }
+
+        return position;
+    }
+
+    /**
+     * Fills segments with spare segments, as far as there are any.
+     *
+     * @return the number of segments reused
+     */
+    private static int takeSpareSegments(ByteBuffer[] segments) {
+        synchronized (sSpareSegments) {
+            int count = 0;
+
+            while (count < segments.length && !sSpareSegments.isEmpty()) {
+                segments[count++] = sSpareSegments.remove(sSpareSegments.size() - 1);
+            }
+
+            return count;
+        }
+    }
+
+    /**
+     * Keeps up to maxSpare of segments for reuse, and drops the rest.
+     */
+    private static void returnSpareSegments(ByteBuffer[] segments, int maxSpare) {
+        synchronized (sSpareSegments) {
+            for (int i = 0; i < segments.length; i++) {
+                if (segments[i] == null) {
+                    continue;
+                }
+
+                if (sSpareSegments.size() < maxSpare) {
+                    sSpareSegments.add(segments[i]);
+                }
+                segments[i] = null;
+            }
+        }
+    }
+
+    private static boolean is64BitProcess() {
+        // os.arch describes the process, e.g. armv8l for a 32-bit process on a 64-bit device.
+        // Process.is64Bit() would be clearer, but needs API 23.
+        final String arch = System.getProperty("os.arch", "");
+        return arch.contains("64");
+    }
+
+    private static ByteBuffer mapSegment(File directory) throws IOException {
+        File file = File.createTempFile("timeshift", ".segment", directory);
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(SEGMENT_SIZE);
+            // The mapping remains valid after the channel is closed and the file is deleted
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        } finally {
+            if (!file.delete()) {
+                Log.w(TAG, "Failed to delete timeshift segment " + file);
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.player;
+
+import android.support.annotation.NonNull;
+
+import ie.macinnes.htsp.HtspMessage;
+import ie.macinnes.htsp.HtspNotConnectedException;
+import ie.macinnes.htsp.SimpleHtspConnection;
+
+/**
+ * Helpers shared by the sources which implement trick play on the server, by changing the speed
+ * of their subscription.
+ */
+final class TrickPlay {
+    private TrickPlay() {
+        throw new IllegalAccessError("Utility class");
+    }
+
+    // HTSP speeds are a percentage of normal speed
+    static final int NORMAL_SPEED = 100;
+
+    // Above this, decoding every frame is too much work, only video keyframes are delivered
+    static final int MAX_FULL_DECODE_SPEED = 200;
+
+    static boolean isKeyframeOnly(int speed) {
+        return speed > MAX_FULL_DECODE_SPEED;
+    }
+
+    /**
+     * Changes the speed the server delivers the subscription's packets at.
+     */
+    static void sendSubscriptionSpeed(@NonNull SimpleHtspConnection connection, int subscriptionId, int speed)
+            throws HtspNotConnectedException {
+        HtspMessage subscriptionSpeed = new HtspMessage();
+        subscriptionSpeed.put("method", "subscriptionSpeed");
+        subscriptionSpeed.put("subscriptionId", subscriptionId);
+        subscriptionSpeed.put("speed", speed);
+
+        connection.sendMessage(subscriptionSpeed);
+    }
+}
@@ -17,9 +17,15 @@
 package ie.macinnes.tvheadend.player;
 
 import android.content.Context;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
 
 import com.google.android.exoplayer2.extractor.Extractor;
+import com.google.android.exoplayer2.extractor.ExtractorInput;
+import com.google.android.exoplayer2.extractor.ExtractorOutput;
 import com.google.android.exoplayer2.extractor.ExtractorsFactory;
+import com.google.android.exoplayer2.extractor.PositionHolder;
 import com.google.android.exoplayer2.extractor.flv.FlvExtractor;
 import com.google.android.exoplayer2.extractor.mkv.MatroskaExtractor;
 import com.google.android.exoplayer2.extractor.mp3.Mp3Extractor;
@@ -32,32 +38,176 @@ import com.google.android.exoplayer2.extractor.ts.PsExtractor;
 import com.google.android.exoplayer2.extractor.ts.TsExtractor;
 import com.google.android.exoplayer2.extractor.wav.WavExtractor;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import ie.macinnes.tvheadend.TvContractUtils;
+
+/**
+ * Produces the extractors for a single kind of source. Live channels only ever carry HTSP framed
+ * data, so only the HtspExtractor is offered. Recordings are offered every container ExoPlayer
+ * supports, with the one the DVR entry is expected to be in first, so sniffing (and the fileRead
+ * round trips it costs) usually stops at the first attempt.
+ */
 class TvheadendExtractorsFactory implements ExtractorsFactory {
     private static final String TAG = TvheadendExtractorsFactory.class.getName();
 
     private final Context mContext;
+    private final boolean mIsLive;
+    private final int mContainer;
+    private final String mDvrEntryId;
 
-    public TvheadendExtractorsFactory(Context context) {
+    private TvheadendExtractorsFactory(Context context, boolean isLive, int container, String dvrEntryId) {
         mContext = context;
+        mIsLive = isLive;
+        mContainer = container;
+        mDvrEntryId = dvrEntryId;
+    }
+
+    static TvheadendExtractorsFactory forLive(Context context) {
+        return new TvheadendExtractorsFactory(context, true, TvContractUtils.RECORDING_CONTAINER_UNKNOWN, null);
+    }
+
+    /**
+     * @param container One of the TvContractUtils.RECORDING_CONTAINER_* values
+     * @param dvrEntryId Used to find the RecordingIndex for TS recordings, may be null
+     */
+    static TvheadendExtractorsFactory forRecording(Context context, int container, String dvrEntryId) {
+        return new TvheadendExtractorsFactory(context, false, container, dvrEntryId);
     }
 
     @Override
     public Extractor[] createExtractors() {
-        Extractor[] extractors = new Extractor[12];
-
-        extractors[0] = new HtspExtractor(mContext);
-        extractors[1] = new MatroskaExtractor(0);
-        extractors[2] = new FragmentedMp4Extractor(0);
-        extractors[3] = new Mp4Extractor();
-        extractors[4] = new Mp3Extractor(0);
-        extractors[5] = new AdtsExtractor();
-        extractors[6] = new Ac3Extractor();
-        extractors[7] = new TsExtractor(0);
-        extractors[8] = new FlvExtractor();
-        extractors[9] = new OggExtractor();
-        extractors[10] = new PsExtractor();
-        extractors[11] = new WavExtractor();
-
-        return extractors;
+        List<Extractor> extractors = new ArrayList<>(11);
+
+        if (mIsLive) {
+            extractors.add(new HtspExtractor(mContext));
+        } else {
+            // Most likely first, TVHeadend writes TS unless the profile says otherwise
+            switch (mContainer) {
+                case TvContractUtils.RECORDING_CONTAINER_MATROSKA:
+                    extractors.add(new MatroskaExtractor(0));
+                    break;
+                case TvContractUtils.RECORDING_CONTAINER_MP4:
+                    extractors.add(new Mp4Extractor());
+                    extractors.add(new FragmentedMp4Extractor(0));
+                    break;
+                default:
+                    extractors.add(createTsExtractor());
+                    break;
+            }
+
+            if (mContainer != TvContractUtils.RECORDING_CONTAINER_TS
+                    && mContainer != TvContractUtils.RECORDING_CONTAINER_UNKNOWN) {
+                extractors.add(createTsExtractor());
+            }
+            if (mContainer != TvContractUtils.RECORDING_CONTAINER_MATROSKA) {
+                extractors.add(new MatroskaExtractor(0));
+            }
+            if (mContainer != TvContractUtils.RECORDING_CONTAINER_MP4) {
+                extractors.add(new FragmentedMp4Extractor(0));
+                extractors.add(new Mp4Extractor());
+            }
+
+            extractors.add(new PsExtractor());
+            extractors.add(new Mp3Extractor(0));
+            extractors.add(new AdtsExtractor());
+            extractors.add(new Ac3Extractor());
+            extractors.add(new FlvExtractor());
+            extractors.add(new OggExtractor());
+            extractors.add(new WavExtractor());
+        }
+
+        // Wrap them all up, so we can tell how long it took to find the right one
+        final SniffTimer sniffTimer = new SniffTimer(extractors.size());
+        Extractor[] timedExtractors = new Extractor[extractors.size()];
+
+        for (int i = 0; i < timedExtractors.length; i++) {
+            timedExtractors[i] = new SniffTimingExtractor(extractors.get(i), sniffTimer);
+        }
+
+        return timedExtractors;
+    }
+
+    // Misc Internal Methods
+    private Extractor createTsExtractor() {
+        if (mDvrEntryId != null) {
+            return new IndexedTsExtractor(mContext, mDvrEntryId);
+        }
+
+        return new TsExtractor(0);
+    }
+
+    // Inner Classes
+    private static class SniffTimer {
+        private final int mExtractorCount;
+        private long mStartTime = 0;
+        private int mAttempts = 0;
+
+        SniffTimer(int extractorCount) {
+            mExtractorCount = extractorCount;
+        }
+
+        synchronized void onSniffStarted() {
+            if (mStartTime == 0) {
+                mStartTime = SystemClock.elapsedRealtime();
+            }
+            mAttempts++;
+        }
+
+        synchronized void onSniffFinished(@NonNull Extractor extractor, boolean sniffed) {
+            if (sniffed) {
+                Log.i(TAG, "Selected " + extractor.getClass().getSimpleName() + " after sniffing "
+                        + mAttempts + " of " + mExtractorCount + " extractors in "
+                        + (SystemClock.elapsedRealtime() - mStartTime) + "ms");
+            } else if (mAttempts == mExtractorCount) {
+                Log.w(TAG, "No extractor recognised the input after "
+                        + (SystemClock.elapsedRealtime() - mStartTime) + "ms");
+            }
+        }
+    }
+
+    private static class SniffTimingExtractor implements Extractor {
+        private final Extractor mExtractor;
+        private final SniffTimer mSniffTimer;
+
+        SniffTimingExtractor(@NonNull Extractor extractor, @NonNull SniffTimer sniffTimer) {
+            mExtractor = extractor;
+            mSniffTimer = sniffTimer;
+        }
+
+        @Override
+        public boolean sniff(ExtractorInput input) throws IOException, InterruptedException {
+            mSniffTimer.onSniffStarted();
+
+            boolean sniffed = false;
+            try {
+                sniffed = mExtractor.sniff(input);
+                return sniffed;
+            } finally {
+                mSniffTimer.onSniffFinished(mExtractor, sniffed);
+            }
+        }
+
+        @Override
+        public void init(ExtractorOutput output) {
+            mExtractor.init(output);
+        }
+
+        @Override
+        public int read(ExtractorInput input, PositionHolder seekPosition) throws IOException, InterruptedException {
+            return mExtractor.read(input, seekPosition);
+        }
+
+        @Override
+        public void seek(long position, long timeUs) {
+            mExtractor.seek(position, timeUs);
+        }
+
+        @Override
+        public void release() {
+            mExtractor.release();
+        }
     }
 }
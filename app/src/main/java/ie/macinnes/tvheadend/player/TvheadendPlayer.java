@@ -26,6 +26,8 @@ import android.media.tv.TvTrackInfo;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.annotation.RequiresApi;
 import android.util.Log;
 import android.util.SparseArray;
@@ -50,9 +52,9 @@ import com.google.android.exoplayer2.PlaybackParameters;
 import com.google.android.exoplayer2.Player;
 import com.google.android.exoplayer2.RendererCapabilities;
 import com.google.android.exoplayer2.RenderersFactory;
+import com.google.android.exoplayer2.SeekParameters;
 import com.google.android.exoplayer2.SimpleExoPlayer;
 import com.google.android.exoplayer2.Timeline;
-import com.google.android.exoplayer2.extractor.ExtractorsFactory;
 import com.google.android.exoplayer2.source.ExtractorMediaSource;
 import com.google.android.exoplayer2.source.MediaSource;
 import com.google.android.exoplayer2.source.TrackGroup;
@@ -72,18 +74,26 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 
+import ie.macinnes.htsp.HtspMessage;
 import ie.macinnes.htsp.SimpleHtspConnection;
 import ie.macinnes.tvheadend.Constants;
 import ie.macinnes.tvheadend.R;
 import ie.macinnes.tvheadend.TvContractUtils;
+import ie.macinnes.tvheadend.player.reader.StreamReadersFactory;
 
 public class TvheadendPlayer implements Player.EventListener {
     private static final String TAG = TvheadendPlayer.class.getName();
 
+    // Query parameter on htsp://dvrfile/ URIs, holding a TvContractUtils.RECORDING_CONTAINER_* value
+    public static final String QUERY_PARAMETER_CONTAINER = "container";
+
     private static final float CAPTION_LINE_HEIGHT_RATIO = 0.0533f;
     private static final int TEXT_UNIT_PIXELS = 0;
     private static final long INVALID_TIMESHIFT_TIME = HtspDataSource.INVALID_TIMESHIFT_TIME;
 
+    // How often we seek to the next keyframe, when trick play can't be done by the server
+    private static final long TRICK_PLAY_STEP_INTERVAL_MS = 500;
+
     public interface Listener {
         /**
          * Called when ther player state changes.
@@ -111,6 +121,7 @@ public class TvheadendPlayer implements Player.EventListener {
 
     private final Context mContext;
     private final SimpleHtspConnection mConnection;
+    private final StandbySubscriptionPool mStandbySubscriptionPool;
     private final Listener mListener;
 
     private final Handler mHandler;
@@ -123,8 +134,9 @@ public class TvheadendPlayer implements Player.EventListener {
     private EventLogger mEventLogger;
     private HtspDataSource.Factory mHtspSubscriptionDataSourceFactory;
     private HtspDataSource.Factory mHtspFileInputStreamDataSourceFactory;
-    private HtspDataSource mDataSource;
-    private ExtractorsFactory mExtractorsFactory;
+    private RecordingCache mRecordingCache;
+    private HtspPlaybackControl mPlaybackControl;
+    private String mStreamProfile;
 
     private View mOverlayView;
     private DebugTextViewHelper mDebugViewHelper;
@@ -134,32 +146,59 @@ public class TvheadendPlayer implements Player.EventListener {
     private MediaSource mMediaSource;
 
     private Uri mCurrentChannelUri;
+    private boolean mHasRetriedOpen = false;
+
+    private int mTunnelingAudioSessionId = C.AUDIO_SESSION_ID_UNSET;
+    private boolean mIsAudioTunnelingEnabled = false;
+    private boolean mIsVideoTunnelingEnabled = false;
+    private boolean mIsVideoTunneling = false;
+
+    private long mTrickPlayStepMs = 0;
+    private final Runnable mTrickPlayStepRunnable = new Runnable() {
+        @Override
+        public void run() {
+            stepTrickPlay();
+        }
+    };
 
-    public TvheadendPlayer(Context context, SimpleHtspConnection connection, Listener listener) {
+    public TvheadendPlayer(Context context, SimpleHtspConnection connection,
+                           StandbySubscriptionPool standbySubscriptionPool, Listener listener) {
         mContext = context;
         mConnection = connection;
+        mStandbySubscriptionPool = standbySubscriptionPool;
         mListener = listener;
 
         mHandler = new Handler();
         mSharedPreferences = mContext.getSharedPreferences(
                 Constants.PREFERENCE_TVHEADEND, Context.MODE_PRIVATE);
 
+        PlaybackSessions.register(this);
         buildExoPlayer();
     }
 
     public void open(Uri channelUri) {
+        if (switchChannel(channelUri)) {
+            return;
+        }
+
         // Stop any existing playback
         stop();
 
         mCurrentChannelUri = channelUri;
+        mHasRetriedOpen = false;
 
         // Create the media source
         if (channelUri.getHost().equals("channel")) {
+            updateStreamProfile();
             buildHtspChannelMediaSource(channelUri);
         } else {
             buildHtspRecordingMediaSource(channelUri);
         }
 
+        // Settle tunneling before the renderers are configured, rather than reconfiguring them
+        // once the tracks are known
+        updateVideoTunneling(getCachedVideoMimeType(channelUri));
+
         // Prepare the media source
         mExoPlayer.prepare(mMediaSource);
     }
@@ -179,6 +218,13 @@ public class TvheadendPlayer implements Player.EventListener {
         // Release ExoPlayer
         mExoPlayer.removeListener(this);
         mExoPlayer.release();
+
+        PlaybackSessions.unregister(this);
+
+        if (PlaybackSessions.isEmpty()) {
+            // The last session is gone, free the client side timeshift's memory and disk space
+            TimeshiftStore.releaseSpareSegments();
+        }
     }
 
     public void setSurface(Surface surface) {
@@ -189,6 +235,13 @@ public class TvheadendPlayer implements Player.EventListener {
         mExoPlayer.setVolume(volume);
     }
 
+    /**
+     * Returns true if this is the main player, rather than e.g. a PIP session.
+     */
+    public boolean isPrimarySession() {
+        return PlaybackSessions.isPrimary(this);
+    }
+
     public boolean selectTrack(int type, String trackId) {
         return mTrackSelector.selectTrack(type, trackId);
     }
@@ -201,88 +254,80 @@ public class TvheadendPlayer implements Player.EventListener {
     public void resume() {
         mExoPlayer.setPlayWhenReady(true);
 
-        if (mDataSource != null) {
-            Log.d(TAG, "Resuming HtspDataSource");
-            mDataSource.resume();
+        if (mPlaybackControl != null) {
+            Log.d(TAG, "Resuming playback");
+            mPlaybackControl.resume();
         } else {
-            Log.w(TAG, "Unable to resume, no HtspDataSource available");
+            Log.w(TAG, "Unable to resume, no playback control available");
         }
     }
 
     public void pause() {
         mExoPlayer.setPlayWhenReady(false);
 
-        if (mDataSource != null) {
-            Log.d(TAG, "Pausing HtspDataSource");
-            mDataSource.pause();
+        if (mPlaybackControl != null) {
+            Log.d(TAG, "Pausing playback");
+            mPlaybackControl.pause();
         } else {
-            Log.w(TAG, "Unable to pause, no HtspDataSource available");
+            Log.w(TAG, "Unable to pause, no playback control available");
         }
     }
 
     public void seek(long timeMs) {
-        if (mDataSource != null) {
+        if (mPlaybackControl != null) {
             Log.d(TAG, "Seeking to time: " + timeMs);
 
-            long seekPts = (timeMs * 1000) - mDataSource.getTimeshiftStartTime();
-            seekPts = Math.max(seekPts, mDataSource.getTimeshiftStartPts()) / 1000;
+            long seekPts = (timeMs * 1000) - mPlaybackControl.getTimeshiftStartTime();
+            seekPts = Math.max(seekPts, mPlaybackControl.getTimeshiftStartPts()) / 1000;
             Log.d(TAG, "Seeking to PTS: " + seekPts);
 
             mExoPlayer.seekTo(seekPts);
         } else {
-            Log.w(TAG, "Unable to seek, no HtspDataSource available");
+            Log.w(TAG, "Unable to seek, no playback control available");
         }
     }
 
     @RequiresApi(api = Build.VERSION_CODES.M)
     public void setPlaybackParams(PlaybackParams params) {
-        float rawSpeed = params.getSpeed();
-        int speed = (int) rawSpeed;
-        int translatedSpeed;
-
-        switch(speed) {
-            case 0:
-                translatedSpeed = 100;
-                break;
-            case -2:
-                translatedSpeed = -200;
-                break;
-            case -4:
-                translatedSpeed = -300;
-                break;
-            case -12:
-                translatedSpeed = -400;
-                break;
-            case -48:
-                translatedSpeed = -500;
-                break;
-            case 2:
-                translatedSpeed = 200;
-                break;
-            case 4:
-                translatedSpeed = 300;
-                break;
-            case 12:
-                translatedSpeed = 400;
-                break;
-            case 48:
-                translatedSpeed = 500;
-                break;
-            default:
-                Log.d(TAG, "Unknown speed??? " + rawSpeed);
+        final float speed = params.getSpeed();
+        Log.d(TAG, "Setting playback speed: " + speed);
+
+        stopTrickPlayStepping();
+
+        if (speed == 1f) {
+            if (mPlaybackControl != null) {
+                mPlaybackControl.setSpeed(TrickPlay.NORMAL_SPEED);
+            }
+            setAudioRenderersDisabled(false);
+            mExoPlayer.setPlaybackParameters(PlaybackParameters.DEFAULT);
             return;
         }
 
-        Log.d(TAG, "Speed: " + params.getSpeed() + " / " + translatedSpeed);
+        final int htspSpeed = Math.round(speed * TrickPlay.NORMAL_SPEED);
 
-        if (mDataSource != null) {
-            mDataSource.setSpeed(translatedSpeed);
-            mExoPlayer.setPlaybackParameters(new PlaybackParameters(translatedSpeed, 0));
+        if (speed > 0 && mPlaybackControl != null && mPlaybackControl.setSpeed(htspSpeed)) {
+            // The server delivers faster, and we play out as fast as it arrives
+            setAudioRenderersDisabled(TrickPlay.isKeyframeOnly(htspSpeed));
+            mExoPlayer.setPlaybackParameters(new PlaybackParameters(speed, 1f));
+            return;
         }
+
+        // Reverse, or a recording, step through keyframes by seeking instead
+        Log.d(TAG, "Stepping through keyframes at speed: " + speed);
+        setAudioRenderersDisabled(true);
+        mExoPlayer.setPlaybackParameters(PlaybackParameters.DEFAULT);
+
+        mTrickPlayStepMs = (long) (speed * TRICK_PLAY_STEP_INTERVAL_MS);
+        mHandler.postDelayed(mTrickPlayStepRunnable, TRICK_PLAY_STEP_INTERVAL_MS);
     }
 
     private void stop() {
+        stopTrickPlayStepping();
+        setAudioRenderersDisabled(false);
+        mExoPlayer.setPlaybackParameters(PlaybackParameters.DEFAULT);
+
         mExoPlayer.stop();
+        mPlaybackControl = null;
         mTrackSelector.clearSelectionOverrides();
         mHtspSubscriptionDataSourceFactory.releaseCurrentDataSource();
         mHtspFileInputStreamDataSourceFactory.releaseCurrentDataSource();
@@ -292,8 +337,8 @@ public class TvheadendPlayer implements Player.EventListener {
         }
     }
     public long getTimeshiftStartPosition() {
-        if (mDataSource != null) {
-            long startTime = mDataSource.getTimeshiftStartTime();
+        if (mPlaybackControl != null) {
+            long startTime = mPlaybackControl.getTimeshiftStartTime();
             if (startTime != INVALID_TIMESHIFT_TIME) {
                 // For live content
                 return startTime / 1000;
@@ -302,15 +347,15 @@ public class TvheadendPlayer implements Player.EventListener {
                 return 0;
             }
         } else {
-            Log.w(TAG, "Unable to getTimeshiftStartPosition, no HtspDataSource available");
+            Log.w(TAG, "Unable to getTimeshiftStartPosition, no playback control available");
         }
 
         return INVALID_TIMESHIFT_TIME;
     }
 
     public long getTimeshiftCurrentPosition() {
-        if (mDataSource != null) {
-            long offset = mDataSource.getTimeshiftOffsetPts();
+        if (mPlaybackControl != null) {
+            long offset = mPlaybackControl.getTimeshiftOffsetPts();
             if (offset != INVALID_TIMESHIFT_TIME) {
                 // For live content
                 return System.currentTimeMillis() + (offset / 1000);
@@ -319,7 +364,7 @@ public class TvheadendPlayer implements Player.EventListener {
                 mExoPlayer.getCurrentPosition();
             }
         } else {
-            Log.w(TAG, "Unable to getTimeshiftCurrentPosition, no HtspDataSource available");
+            Log.w(TAG, "Unable to getTimeshiftCurrentPosition, no playback control available");
         }
 
         return INVALID_TIMESHIFT_TIME;
@@ -393,6 +438,46 @@ public class TvheadendPlayer implements Player.EventListener {
     }
 
     // Misc Internal Methods
+    private void stepTrickPlay() {
+        long lowerBoundMs = 0;
+        if (mPlaybackControl != null && mPlaybackControl.getTimeshiftStartPts() != INVALID_TIMESHIFT_TIME) {
+            lowerBoundMs = mPlaybackControl.getTimeshiftStartPts() / 1000;
+        }
+
+        long upperBoundMs = mExoPlayer.getDuration();
+        if (upperBoundMs == C.TIME_UNSET) {
+            upperBoundMs = mExoPlayer.getBufferedPosition();
+        }
+
+        final long targetMs = mExoPlayer.getCurrentPosition() + mTrickPlayStepMs;
+
+        if (targetMs <= lowerBoundMs || targetMs >= upperBoundMs) {
+            Log.d(TAG, "Trick play reached the edge of the seekable range, resuming normal playback");
+            mExoPlayer.seekTo(Math.max(lowerBoundMs, Math.min(targetMs, upperBoundMs)));
+            stopTrickPlayStepping();
+            setAudioRenderersDisabled(false);
+            return;
+        }
+
+        // With SeekParameters.CLOSEST_SYNC, this lands on the nearest keyframe
+        mExoPlayer.seekTo(targetMs);
+        mHandler.postDelayed(mTrickPlayStepRunnable, TRICK_PLAY_STEP_INTERVAL_MS);
+    }
+
+    private void stopTrickPlayStepping() {
+        mHandler.removeCallbacks(mTrickPlayStepRunnable);
+        mTrickPlayStepMs = 0;
+    }
+
+    private void setAudioRenderersDisabled(boolean disabled) {
+        // Audio is muted during trick play, and keeping it away from the decoder saves work too
+        for (int i = 0; i < mExoPlayer.getRendererCount(); i++) {
+            if (mExoPlayer.getRendererType(i) == C.TRACK_TYPE_AUDIO) {
+                mTrackSelector.setRendererDisabled(i, disabled);
+            }
+        }
+    }
+
     private void buildExoPlayer() {
         mRenderersFactory = new TvheadendRenderersFactory(mContext);
         mTrackSelector = buildTrackSelector();
@@ -401,23 +486,102 @@ public class TvheadendPlayer implements Player.EventListener {
         mExoPlayer = ExoPlayerFactory.newSimpleInstance(mRenderersFactory, mTrackSelector, mLoadControl);
         mExoPlayer.addListener(this);
 
+        // Snap seeks to the nearest keyframe, so playback can resume without decoding (and
+        // discarding) part of a GOP first
+        mExoPlayer.setSeekParameters(SeekParameters.CLOSEST_SYNC);
+
         // Add the EventLogger
         mEventLogger = new EventLogger(mTrackSelector);
         mExoPlayer.addListener(mEventLogger);
         mExoPlayer.addAudioDebugListener(mEventLogger);
         mExoPlayer.addVideoDebugListener(mEventLogger);
 
-        final String streamProfile = mSharedPreferences.getString(
+        // Produces DataSource instances through which media data is loaded.
+        updateStreamProfile();
+        mRecordingCache = new RecordingCache(mContext);
+        mHtspFileInputStreamDataSourceFactory = new HtspFileInputStreamDataSource.Factory(
+                mContext, mConnection, mRecordingCache);
+    }
+
+    /**
+     * Swaps the subscription behind the current live playback over to channelUri, keeping
+     * ExoPlayer, its renderers and their decoders alive. The data source subscribes to the new
+     * channel itself, the seek which follows flushes the decoders, rather than releasing them,
+     * and drops whatever was buffered of the old channel.
+     *
+     * @return false if the channel has to be opened afresh instead
+     */
+    private boolean switchChannel(Uri channelUri) {
+        final boolean enabled = mSharedPreferences.getBoolean(
+                Constants.KEY_SEAMLESS_CHANNEL_SWITCH_ENABLED,
+                mContext.getResources().getBoolean(R.bool.pref_default_seamless_channel_switch_enabled)
+        );
+
+        if (!enabled || mPlaybackControl == null || mCurrentChannelUri == null
+                || !"channel".equals(mCurrentChannelUri.getHost()) || !"channel".equals(channelUri.getHost())
+                || mExoPlayer.getPlaybackState() == Player.STATE_IDLE || mTrickPlayStepMs != 0
+                || !mExoPlayer.getPlaybackParameters().equals(PlaybackParameters.DEFAULT)
+                || !getStreamProfile().equals(mStreamProfile)) {
+            return false;
+        }
+
+        final long channelId = Long.parseLong(channelUri.getPath().substring(1));
+        final long positionUs = mPlaybackControl.switchChannel(channelId);
+
+        if (positionUs == C.TIME_UNSET) {
+            return false;
+        }
+
+        Log.i(TAG, "Switching to channel " + channelId + " without re-preparing the player");
+
+        mCurrentChannelUri = channelUri;
+        mHasRetriedOpen = false;
+        mTrackSelector.clearSelectionOverrides();
+
+        // The position is past everything buffered of the old channel. An exact seek there can't be
+        // resolved inside the buffer, so the loader restarts and re-opens the data source, which
+        // drops the rest of the old channel. Snapping to a keyframe would land back in the buffer.
+        mExoPlayer.setSeekParameters(SeekParameters.EXACT);
+        mExoPlayer.seekTo(positionUs / 1000);
+        mExoPlayer.setSeekParameters(SeekParameters.CLOSEST_SYNC);
+
+        return true;
+    }
+
+    private String getStreamProfile() {
+        String streamProfile = mSharedPreferences.getString(
                 Constants.KEY_HTSP_STREAM_PROFILE,
                 mContext.getResources().getString(R.string.pref_default_htsp_stream_profile)
         );
 
-        // Produces DataSource instances through which media data is loaded.
-        mHtspSubscriptionDataSourceFactory = new HtspSubscriptionDataSource.Factory(mContext, mConnection, streamProfile);
-        mHtspFileInputStreamDataSourceFactory = new HtspFileInputStreamDataSource.Factory(mContext, mConnection);
+        if (!isPrimarySession()) {
+            // Secondary sessions, e.g. PIP, are small on screen, and share the memory budget
+            final String pipStreamProfile = mSharedPreferences.getString(
+                    Constants.KEY_HTSP_PIP_STREAM_PROFILE,
+                    mContext.getResources().getString(R.string.pref_default_htsp_pip_stream_profile)
+            );
+
+            if (!pipStreamProfile.isEmpty()) {
+                streamProfile = pipStreamProfile;
+            }
+        }
+
+        return streamProfile;
+    }
+
+    private void updateStreamProfile() {
+        final String streamProfile = getStreamProfile();
+
+        if (streamProfile.equals(mStreamProfile)) {
+            return;
+        }
+
+        Log.d(TAG, "Using stream profile: " + streamProfile);
+        mStreamProfile = streamProfile;
 
-        // Produces Extractor instances for parsing the media data.
-        mExtractorsFactory = new TvheadendExtractorsFactory(mContext);
+        // The factory is only ever used after stop(), so there's no current data source to keep
+        mHtspSubscriptionDataSourceFactory = new HtspSubscriptionDataSource.Factory(
+                mContext, mConnection, mStreamProfile, mStandbySubscriptionPool);
     }
 
     private TvheadendTrackSelector buildTrackSelector() {
@@ -431,8 +595,27 @@ public class TvheadendPlayer implements Player.EventListener {
             mContext.getResources().getBoolean(R.bool.pref_default_audio_tunneling_enabled)
         );
 
-        if (enableAudioTunneling) {
-            trackSelector.setTunnelingAudioSessionId(C.generateAudioSessionIdV21(mContext));
+        final boolean enableVideoTunneling = mSharedPreferences.getBoolean(
+            Constants.KEY_VIDEO_TUNNELING_ENABLED,
+            mContext.getResources().getBoolean(R.bool.pref_default_video_tunneling_enabled)
+        );
+
+        mIsAudioTunnelingEnabled = false;
+        mIsVideoTunnelingEnabled = false;
+        mIsVideoTunneling = false;
+
+        if (enableAudioTunneling || enableVideoTunneling) {
+            if (CodecCapabilityCache.getInstance(mContext).hasTunnelingVideoDecoder()) {
+                mTunnelingAudioSessionId = C.generateAudioSessionIdV21(mContext);
+                mIsAudioTunnelingEnabled = enableAudioTunneling;
+                mIsVideoTunnelingEnabled = enableVideoTunneling;
+            } else {
+                Log.i(TAG, "Not enabling tunneling, no video decoder supports it");
+            }
+        }
+
+        if (mIsAudioTunnelingEnabled) {
+            trackSelector.setTunnelingAudioSessionId(mTunnelingAudioSessionId);
         }
 
         return trackSelector;
@@ -446,7 +629,9 @@ public class TvheadendPlayer implements Player.EventListener {
                 )
         );
 
-        return new DefaultLoadControl(
+        return new BudgetedLoadControl(
+                mContext,
+                this,
                 new DefaultAllocator(true, C.DEFAULT_BUFFER_SEGMENT_SIZE),
                 DefaultLoadControl.DEFAULT_MIN_BUFFER_MS,
                 DefaultLoadControl.DEFAULT_MAX_BUFFER_MS,
@@ -458,16 +643,43 @@ public class TvheadendPlayer implements Player.EventListener {
     }
 
     private void buildHtspChannelMediaSource(Uri channelUri) {
+        final boolean enableDirectMediaSource = mSharedPreferences.getBoolean(
+                Constants.KEY_HTSP_DIRECT_MEDIA_SOURCE_ENABLED,
+                mContext.getResources().getBoolean(R.bool.pref_default_htsp_direct_media_source_enabled)
+        );
+
         // This is the MediaSource representing the media to be played.
-        mMediaSource = new ExtractorMediaSource.Factory(mHtspSubscriptionDataSourceFactory)
-                .setExtractorsFactory(mExtractorsFactory)
-                .createMediaSource(channelUri, mHandler, mEventLogger);
+        if (enableDirectMediaSource) {
+            Log.d(TAG, "Using direct HtspMediaSource");
+            HtspMediaSource mediaSource = new HtspMediaSource(
+                    mContext, mConnection, channelUri, mStreamProfile, this);
+            mPlaybackControl = mediaSource;
+            mMediaSource = mediaSource;
+        } else {
+            mMediaSource = new ExtractorMediaSource.Factory(mHtspSubscriptionDataSourceFactory)
+                    .setExtractorsFactory(TvheadendExtractorsFactory.forLive(mContext))
+                    .createMediaSource(channelUri, mHandler, mEventLogger);
+        }
     }
 
     private void buildHtspRecordingMediaSource(Uri recordingUri) {
+        int container = TvContractUtils.RECORDING_CONTAINER_UNKNOWN;
+
+        final String containerParameter = recordingUri.getQueryParameter(QUERY_PARAMETER_CONTAINER);
+        if (containerParameter != null) {
+            try {
+                container = Integer.parseInt(containerParameter);
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Ignoring invalid recording container: " + containerParameter);
+            }
+        }
+
         // This is the MediaSource representing the media to be played.
-        mMediaSource = new ExtractorMediaSource.Factory(mHtspFileInputStreamDataSourceFactory)
-                .setExtractorsFactory(mExtractorsFactory)
+        mMediaSource = new ExtractorMediaSource.Factory(
+                        mRecordingCache.buildDataSourceFactory(mHtspFileInputStreamDataSourceFactory))
+                .setExtractorsFactory(TvheadendExtractorsFactory.forRecording(
+                        mContext, container, recordingUri.getLastPathSegment()))
+                .setCustomCacheKey(RecordingCache.getCacheKey(recordingUri))
                 .createMediaSource(recordingUri, mHandler, mEventLogger);
     }
 
@@ -516,6 +728,7 @@ public class TvheadendPlayer implements Player.EventListener {
 
         // Keep track of weather we have a video track available
         boolean hasVideoTrack = false;
+        String videoMimeType = null;
 
         for (int rendererIndex = 0; rendererIndex < mappedTrackInfo.length; rendererIndex++) {
             TrackGroupArray rendererTrackGroups = mappedTrackInfo.getTrackGroups(rendererIndex);
@@ -541,6 +754,7 @@ public class TvheadendPlayer implements Player.EventListener {
                                     switch (trackType) {
                                         case C.TRACK_TYPE_VIDEO:
                                             hasVideoTrack = true;
+                                            videoMimeType = format.sampleMimeType;
                                             selectedTracks.put(TvTrackInfo.TYPE_VIDEO, format.id);
                                             break;
                                         case C.TRACK_TYPE_AUDIO:
@@ -565,6 +779,62 @@ public class TvheadendPlayer implements Player.EventListener {
         }
 
         mListener.onTracksChanged(tracks, selectedTracks);
+
+        updateVideoTunneling(videoMimeType);
+    }
+
+    /**
+     * Switches tunneled playback on for live channels, unless their video is known to be a codec
+     * the decoder can't tunnel, and off again for everything else. Changing it makes the track
+     * selector reselect, and the renderers are reconfigured, so it is decided before preparing
+     * where possible, and only changes again when the codec of the stream does.
+     *
+     * A null videoMimeType, either not known yet or no video at all, doesn't rule tunneling out.
+     * The track selector only tunnels when the renderers support it for the selected formats.
+     */
+    private void updateVideoTunneling(@Nullable String videoMimeType) {
+        if (!mIsVideoTunnelingEnabled || mIsAudioTunnelingEnabled) {
+            // Either never tunneling, or always tunneling whatever the stream
+            return;
+        }
+
+        final boolean isLive = mCurrentChannelUri != null && "channel".equals(mCurrentChannelUri.getHost());
+
+        final boolean tunnel = isLive && (videoMimeType == null
+                || CodecCapabilityCache.getInstance(mContext).mayTunnel(videoMimeType));
+
+        if (tunnel != mIsVideoTunneling) {
+            Log.i(TAG, (tunnel ? "Enabling" : "Disabling") + " tunneled playback for " + videoMimeType);
+            mIsVideoTunneling = tunnel;
+            mTrackSelector.setTunnelingAudioSessionId(tunnel ? mTunnelingAudioSessionId : C.AUDIO_SESSION_ID_UNSET);
+        }
+    }
+
+    /**
+     * Returns the MIME type of the video in the channel's cached subscriptionStart, or null if
+     * there isn't one, or it isn't a channel.
+     */
+    @Nullable
+    private String getCachedVideoMimeType(@NonNull Uri channelUri) {
+        if (!"channel".equals(channelUri.getHost())) {
+            return null;
+        }
+
+        final long channelId = Long.parseLong(channelUri.getPath().substring(1));
+        final HtspMessage subscriptionStart = new SubscriptionStartCache(mContext).get(channelId);
+
+        if (subscriptionStart == null) {
+            return null;
+        }
+
+        for (HtspMessage stream : subscriptionStart.getHtspMessageArray("streams")) {
+            final String mimeType = StreamReadersFactory.getVideoMimeType(stream.getString("type"));
+            if (mimeType != null) {
+                return mimeType;
+            }
+        }
+
+        return null;
     }
 
     private void enableRadioInfoScreen() {
@@ -599,14 +869,15 @@ public class TvheadendPlayer implements Player.EventListener {
 
     @Override
     public void onLoadingChanged(boolean isLoading) {
-        if (isLoading) {
+        if (isLoading && !(mMediaSource instanceof HtspMediaSource)) {
             // Fetch the current DataSource for later use
             // TODO: Hold a WeakReference to the DataSource instead...
             // TODO: We should know if we're playing a channel or a recording...
-            mDataSource = mHtspSubscriptionDataSourceFactory.getCurrentDataSource();
-            if (mDataSource == null) {
-                mDataSource = mHtspFileInputStreamDataSourceFactory.getCurrentDataSource();
+            HtspDataSource dataSource = mHtspSubscriptionDataSourceFactory.getCurrentDataSource();
+            if (dataSource == null) {
+                dataSource = mHtspFileInputStreamDataSourceFactory.getCurrentDataSource();
             }
+            mPlaybackControl = dataSource;
         }
     }
 
@@ -617,6 +888,19 @@ public class TvheadendPlayer implements Player.EventListener {
 
     @Override
     public void onPlayerError(ExoPlaybackException error) {
+        if (error.type == ExoPlaybackException.TYPE_SOURCE
+                && error.getSourceException() instanceof StreamsChangedException
+                && !mHasRetriedOpen) {
+            // Tracks were declared from a stale cached subscriptionStart, or the streams changed
+            // when resubscribing after a reconnect or channel switch. Either way, start over with
+            // the new streams.
+            Log.i(TAG, "Channel streams have changed, reopening");
+            open(mCurrentChannelUri);
+            mHasRetriedOpen = true;
+            play();
+            return;
+        }
+
         mListener.onPlayerError(error);
     }
 
@@ -31,9 +31,7 @@ import com.google.android.exoplayer2.audio.MediaCodecAudioRenderer;
 import com.google.android.exoplayer2.drm.DrmSessionManager;
 import com.google.android.exoplayer2.drm.FrameworkMediaCrypto;
 import com.google.android.exoplayer2.ext.ffmpeg.FfmpegAudioRenderer;
-import com.google.android.exoplayer2.mediacodec.MediaCodecInfo;
 import com.google.android.exoplayer2.mediacodec.MediaCodecSelector;
-import com.google.android.exoplayer2.mediacodec.MediaCodecUtil;
 import com.google.android.exoplayer2.video.MediaCodecVideoRenderer;
 import com.google.android.exoplayer2.video.VideoRendererEventListener;
 
@@ -45,8 +43,12 @@ import ie.macinnes.tvheadend.R;
 class TvheadendRenderersFactory extends DefaultRenderersFactory {
     private static final String TAG = TvheadendRenderersFactory.class.getName();
 
+    private final CodecCapabilityCache mCodecCapabilityCache;
+
     public TvheadendRenderersFactory(Context context) {
         super(context, null, EXTENSION_RENDERER_MODE_ON, DEFAULT_ALLOWED_VIDEO_JOINING_TIME_MS);
+
+        mCodecCapabilityCache = CodecCapabilityCache.getInstance(context);
     }
 
     /**
@@ -77,7 +79,7 @@ class TvheadendRenderersFactory extends DefaultRenderersFactory {
             Log.d(TAG, "Adding ShieldVideoRenderer");
             out.add(new ShieldVideoRenderer(
                     context,
-                    MediaCodecSelector.DEFAULT,
+                    mCodecCapabilityCache.buildMediaCodecSelector(false),
                     allowedVideoJoiningTimeMs,
                     drmSessionManager,
                     false,
@@ -88,7 +90,7 @@ class TvheadendRenderersFactory extends DefaultRenderersFactory {
             Log.d(TAG, "Adding MediaCodecVideoRenderer");
             out.add(new MediaCodecVideoRenderer(
                     context,
-                    MediaCodecSelector.DEFAULT,
+                    mCodecCapabilityCache.buildMediaCodecSelector(false),
                     allowedVideoJoiningTimeMs,
                     drmSessionManager,
                     false,
@@ -116,7 +118,7 @@ class TvheadendRenderersFactory extends DefaultRenderersFactory {
                                        AudioProcessor[] audioProcessors, Handler eventHandler,
                                        AudioRendererEventListener eventListener, @ExtensionRendererMode int extensionRendererMode,
                                        ArrayList<Renderer> out) {
-        AudioCapabilities audioCapabilities = AudioCapabilities.getCapabilities(context);
+        AudioCapabilities audioCapabilities = mCodecCapabilityCache.getAudioCapabilities();
 
         SharedPreferences sharedPreferences = context.getSharedPreferences(Constants.PREFERENCE_TVHEADEND, Context.MODE_PRIVATE);
 
@@ -126,7 +128,7 @@ class TvheadendRenderersFactory extends DefaultRenderersFactory {
 
         // Native Audio Decoders
         Log.d(TAG, "Adding MediaCodecAudioRenderer");
-        MediaCodecSelector mediaCodecSelector = buildMediaCodecSelector(enablePassthroughDecoder);
+        MediaCodecSelector mediaCodecSelector = mCodecCapabilityCache.buildMediaCodecSelector(enablePassthroughDecoder);
         out.add(new MediaCodecAudioRenderer(mediaCodecSelector, drmSessionManager,
                 true, eventHandler, eventListener, audioCapabilities));
 
@@ -141,27 +143,4 @@ class TvheadendRenderersFactory extends DefaultRenderersFactory {
             out.add(new FfmpegAudioRenderer(eventHandler, eventListener, audioProcessors));
         }
     }
-
-    /**
-     * Builds a MediaCodecSelector that can explicitly disable audio passthrough
-     *
-     * @param enablePassthroughDecoder
-     * @return
-     */
-    private MediaCodecSelector buildMediaCodecSelector(final boolean enablePassthroughDecoder) {
-        return new MediaCodecSelector() {
-            @Override
-            public MediaCodecInfo getDecoderInfo(String mimeType, boolean requiresSecureDecoder) throws MediaCodecUtil.DecoderQueryException {
-                return MediaCodecUtil.getDecoderInfo(mimeType, requiresSecureDecoder);
-            }
-
-            @Override
-            public MediaCodecInfo getPassthroughDecoderInfo() throws MediaCodecUtil.DecoderQueryException {
-                if (enablePassthroughDecoder) {
-                    return MediaCodecUtil.getPassthroughDecoderInfo();
-                }
-                return null;
-            }
-        };
-    }
 }
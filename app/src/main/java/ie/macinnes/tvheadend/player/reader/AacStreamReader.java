@@ -43,6 +43,9 @@ class AacStreamReader implements StreamReader {
 
     private TrackOutput mTrackOutput;
 
+    // Reused for every packet, the track output copies the data out before we return
+    private final ParsableByteArray mPayload = new ParsableByteArray();
+
     AacStreamReader(Context context) {}
 
     @Override
@@ -53,11 +56,12 @@ class AacStreamReader implements StreamReader {
     }
 
     @Override
-    public void consume(@NonNull HtspMessage message) {
-        final long pts = message.getLong("pts");
-        final byte[] payload = message.getByteArray("payload");
+    public void consume(@NonNull Muxpkt muxpkt) {
+        final long pts = muxpkt.getPts();
+        final byte[] payload = muxpkt.getPayload();
+        final int payloadLength = muxpkt.getPayloadLength();
 
-        final ParsableByteArray pba = new ParsableByteArray(payload);
+        mPayload.reset(payload, payloadLength);
 
         int skipLength;
 
@@ -69,13 +73,13 @@ class AacStreamReader implements StreamReader {
             skipLength = ADTS_HEADER_SIZE;
         }
 
-        pba.skipBytes(skipLength);
+        mPayload.skipBytes(skipLength);
 
-        final int aacFrameLength = payload.length - skipLength;
+        final int aacFrameLength = payloadLength - skipLength;
 
         // TODO: Set Buffer Flag key frame based on frametype
         // frametype   u32   required   Type of frame as ASCII value: 'I', 'P', 'B'
-        mTrackOutput.sampleData(pba, aacFrameLength);
+        mTrackOutput.sampleData(mPayload, aacFrameLength);
         mTrackOutput.sampleMetadata(pts, C.BUFFER_FLAG_KEY_FRAME, aacFrameLength, 0, null);
     }
 
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.player.reader;
+
+import android.support.annotation.NonNull;
+
+import ie.macinnes.htsp.HtspMessage;
+
+/**
+ * A muxpkt, as handed to the StreamReaders. Unlike an HtspMessage, a single instance is reused
+ * for every packet, including its payload buffer, so the extractor can decode packets without
+ * allocating. Nothing may hold on to it, or its payload, after the call it was passed to.
+ */
+public class Muxpkt {
+    // TVHeadend has not provided a PTS or DTS
+    public static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    // TVHeadend has not provided a frame type
+    public static final int FRAME_TYPE_UNKNOWN = -1;
+
+    private int mStream;
+    private int mFrameType = FRAME_TYPE_UNKNOWN;
+    private long mPts = NO_TIMESTAMP;
+    private long mDts = NO_TIMESTAMP;
+    private int mDuration;
+
+    private byte[] mPayload = new byte[0];
+    private int mPayloadLength = 0;
+
+    // Grown as needed when decoding into this packet, and then reused
+    private byte[] mPayloadBuffer = new byte[0];
+
+    public int getStream() {
+        return mStream;
+    }
+
+    /**
+     * Returns the frame type as an ASCII value, 'I', 'P' or 'B', or FRAME_TYPE_UNKNOWN.
+     */
+    public int getFrameType() {
+        return mFrameType;
+    }
+
+    public boolean hasPts() {
+        return mPts != NO_TIMESTAMP;
+    }
+
+    public long getPts() {
+        return mPts;
+    }
+
+    public boolean hasDts() {
+        return mDts != NO_TIMESTAMP;
+    }
+
+    public long getDts() {
+        return mDts;
+    }
+
+    public int getDuration() {
+        return mDuration;
+    }
+
+    /**
+     * Returns the payload, only the first getPayloadLength() bytes of which are valid.
+     */
+    @NonNull
+    public byte[] getPayload() {
+        return mPayload;
+    }
+
+    public int getPayloadLength() {
+        return mPayloadLength;
+    }
+
+    public void set(int stream, int frameType, long pts, long dts, int duration) {
+        mStream = stream;
+        mFrameType = frameType;
+        mPts = pts;
+        mDts = dts;
+        mDuration = duration;
+    }
+
+    /**
+     * Sets this packet from a muxpkt message, using the message's own payload.
+     */
+    public void set(@NonNull HtspMessage message) {
+        set(message.getInteger("stream"),
+                message.getInteger("frametype", FRAME_TYPE_UNKNOWN),
+                message.containsKey("pts") ? message.getLong("pts") : NO_TIMESTAMP,
+                message.containsKey("dts") ? message.getLong("dts") : NO_TIMESTAMP,
+                message.getInteger("duration", 0));
+
+        final byte[] payload = message.getByteArray("payload");
+        mPayload = payload != null ? payload : new byte[0];
+        mPayloadLength = mPayload.length;
+    }
+
+    /**
+     * Returns this packet's own payload buffer, with room for at least length bytes, and makes it
+     * the payload. The caller fills in the data.
+     */
+    @NonNull
+    public byte[] preparePayload(int length) {
+        if (mPayloadBuffer.length < length) {
+            mPayloadBuffer = new byte[length];
+        }
+
+        mPayload = mPayloadBuffer;
+        mPayloadLength = length;
+
+        return mPayloadBuffer;
+    }
+}
@@ -39,6 +39,9 @@ abstract class PlainStreamReader implements StreamReader {
     private String mStreamType;
     private TrackOutput mTrackOutput;
 
+    // Reused for every packet, the track output copies the data out before we return
+    private final ParsableByteArray mPayload = new ParsableByteArray();
+
     PlainStreamReader(Context context, int trackType) {
         mContext = context;
         mTrackType = trackType;
@@ -53,12 +56,12 @@ abstract class PlainStreamReader implements StreamReader {
     }
 
     @Override
-    public final void consume(@NonNull final HtspMessage message) {
-        final long pts = message.getLong("pts");
-        final int frameType = message.getInteger("frametype", -1);
-        final byte[] payload = message.getByteArray("payload");
+    public final void consume(@NonNull final Muxpkt muxpkt) {
+        final long pts = muxpkt.getPts();
+        final int frameType = muxpkt.getFrameType();
+        final int payloadLength = muxpkt.getPayloadLength();
 
-        final ParsableByteArray pba = new ParsableByteArray(payload);
+        mPayload.reset(muxpkt.getPayload(), payloadLength);
 
         int bufferFlags = 0;
 
@@ -77,8 +80,8 @@ abstract class PlainStreamReader implements StreamReader {
             bufferFlags |= C.BUFFER_FLAG_KEY_FRAME;
         }
 
-        mTrackOutput.sampleData(pba, payload.length);
-        mTrackOutput.sampleMetadata(pts, bufferFlags, payload.length, 0, null);
+        mTrackOutput.sampleData(mPayload, payloadLength);
+        mTrackOutput.sampleMetadata(pts, bufferFlags, payloadLength, 0, null);
     }
 
     @Override
@@ -24,6 +24,6 @@ import ie.macinnes.htsp.HtspMessage;
 
 public interface StreamReader {
     void createTracks(HtspMessage stream, ExtractorOutput output);
-    void consume(@NonNull final HtspMessage message);
+    void consume(@NonNull final Muxpkt muxpkt);
     void release();
 }
\ No newline at end of file
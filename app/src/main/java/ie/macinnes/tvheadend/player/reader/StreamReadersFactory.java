@@ -17,6 +17,10 @@
 package ie.macinnes.tvheadend.player.reader;
 
 import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.android.exoplayer2.util.MimeTypes;
 
 public class StreamReadersFactory {
     private final Context mContext;
@@ -54,4 +58,22 @@ public class StreamReadersFactory {
                 return null;
         }
     }
+
+    /**
+     * Returns the MIME type of the video carried by streams of the given HTSP stream type, or null
+     * if they don't carry video.
+     */
+    @Nullable
+    public static String getVideoMimeType(@NonNull String streamType) {
+        switch (streamType) {
+            case "H264":
+                return MimeTypes.VIDEO_H264;
+            case "HEVC":
+                return MimeTypes.VIDEO_H265;
+            case "MPEG2VIDEO":
+                return MimeTypes.VIDEO_MPEG2;
+            default:
+                return null;
+        }
+    }
 }
@@ -26,11 +26,8 @@ import com.google.android.exoplayer2.extractor.ExtractorOutput;
 import com.google.android.exoplayer2.extractor.TrackOutput;
 import com.google.android.exoplayer2.util.MimeTypes;
 import com.google.android.exoplayer2.util.ParsableByteArray;
-import com.google.android.exoplayer2.util.Util;
 
-import java.nio.charset.Charset;
 import java.util.Arrays;
-import java.util.Locale;
 
 import ie.macinnes.htsp.HtspMessage;
 import ie.macinnes.tvheadend.Application;
@@ -64,12 +61,14 @@ class TextsubStreamReader implements StreamReader {
      */
     private static final int SUBRIP_TIMECODE_LENGTH = 12;
 
-    // UTF-8 is the default on Android
-    private static final Charset UTF_8 = Charset.defaultCharset();
-
     private final Context mContext;
     private TrackOutput mTrackOutput;
 
+    // Reused for every packet, grown as needed. The track output copies the data out before we
+    // return.
+    private byte[] mSample = Arrays.copyOf(SUBRIP_PREFIX, 256);
+    private final ParsableByteArray mSampleData = new ParsableByteArray();
+
     TextsubStreamReader(Context context) {
         mContext = context;
     }
@@ -82,21 +81,38 @@ class TextsubStreamReader implements StreamReader {
     }
 
     @Override
-    public void consume(@NonNull final HtspMessage message) {
+    public void consume(@NonNull final Muxpkt muxpkt) {
+
+        final long pts = muxpkt.getPts();
+        final long duration = muxpkt.getDuration();
+        final byte[] payload = muxpkt.getPayload();
+
+        // Trim leading and trailing whitespace. This is done on the UTF-8 bytes directly, as
+        // multi-byte sequences never contain bytes in the whitespace range.
+        int start = 0;
+        int end = muxpkt.getPayloadLength();
+
+        while (start < end && (payload[start] & 0xFF) <= ' ') {
+            start++;
+        }
+
+        while (end > start && (payload[end - 1] & 0xFF) <= ' ') {
+            end--;
+        }
+
+        final int lengthWithPrefix = SUBRIP_PREFIX.length + (end - start);
 
-        final long pts = message.getLong("pts");
-        final long duration = message.getInteger("duration");
-        final byte[] payload = Util.getUtf8Bytes(
-                new String(message.getByteArray("payload"), UTF_8).trim());
+        if (mSample.length < lengthWithPrefix) {
+            mSample = Arrays.copyOf(mSample, lengthWithPrefix);
+        }
 
-        final int lengthWithPrefix = SUBRIP_PREFIX.length + payload.length;
-        final byte[] subsipSample = Arrays.copyOf(SUBRIP_PREFIX, lengthWithPrefix);
+        System.arraycopy(payload, start, mSample, SUBRIP_PREFIX.length, end - start);
 
-        System.arraycopy(payload, 0, subsipSample, SUBRIP_PREFIX.length, payload.length);
+        setSubripSampleEndTimecode(mSample, duration);
 
-        setSubripSampleEndTimecode(subsipSample, duration);
+        mSampleData.reset(mSample, lengthWithPrefix);
 
-        mTrackOutput.sampleData(new ParsableByteArray(subsipSample), lengthWithPrefix);
+        mTrackOutput.sampleData(mSampleData, lengthWithPrefix);
         mTrackOutput.sampleMetadata(pts, C.BUFFER_FLAG_KEY_FRAME, lengthWithPrefix, 0, null);
     }
 
@@ -118,22 +134,37 @@ class TextsubStreamReader implements StreamReader {
     }
 
     private static void setSubripSampleEndTimecode(byte[] subripSample, long timeUs) {
-        byte[] timeCodeData;
         if (timeUs == C.TIME_UNSET || timeUs == 0) {
-            timeCodeData = SUBRIP_TIMECODE_EMPTY;
-        } else {
-            int hours = (int) (timeUs / 3600000000L);
-            timeUs -= (hours * 3600000000L);
-            int minutes = (int) (timeUs / 60000000);
-            timeUs -= (minutes * 60000000);
-            int seconds = (int) (timeUs / 1000000);
-            timeUs -= (seconds * 1000000);
-            int milliseconds = (int) (timeUs / 1000);
-            timeCodeData = Util.getUtf8Bytes(String.format(Locale.US, "%02d:%02d:%02d,%03d", hours,
-                    minutes, seconds, milliseconds));
+            System.arraycopy(SUBRIP_TIMECODE_EMPTY, 0, subripSample, SUBRIP_PREFIX_END_TIMECODE_OFFSET,
+                    SUBRIP_TIMECODE_LENGTH);
+            return;
+        }
+
+        int hours = (int) (timeUs / 3600000000L);
+        timeUs -= (hours * 3600000000L);
+        int minutes = (int) (timeUs / 60000000);
+        timeUs -= (minutes * 60000000);
+        int seconds = (int) (timeUs / 1000000);
+        timeUs -= (seconds * 1000000);
+        int milliseconds = (int) (timeUs / 1000);
+
+        // Equivalent to formatting "%02d:%02d:%02d,%03d", without allocating a String
+        int offset = SUBRIP_PREFIX_END_TIMECODE_OFFSET;
+        offset = putDigits(subripSample, offset, hours, 2);
+        subripSample[offset++] = ':';
+        offset = putDigits(subripSample, offset, minutes, 2);
+        subripSample[offset++] = ':';
+        offset = putDigits(subripSample, offset, seconds, 2);
+        subripSample[offset++] = ',';
+        putDigits(subripSample, offset, milliseconds, 3);
+    }
+
+    private static int putDigits(byte[] target, int offset, int value, int digits) {
+        for (int i = digits - 1; i >= 0; i--) {
+            target[offset + i] = (byte) ('0' + (value % 10));
+            value /= 10;
         }
 
-        System.arraycopy(timeCodeData, 0, subripSample, SUBRIP_PREFIX_END_TIMECODE_OFFSET,
-                SUBRIP_TIMECODE_LENGTH);
+        return offset + digits;
     }
 }
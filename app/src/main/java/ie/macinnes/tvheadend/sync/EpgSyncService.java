@@ -17,19 +17,19 @@
 package ie.macinnes.tvheadend.sync;
 
 import android.accounts.Account;
-import android.accounts.AccountManager;
 import android.app.Service;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
+import android.support.annotation.NonNull;
 import android.util.Log;
 
-import ie.macinnes.htsp.HtspConnection;
 import ie.macinnes.htsp.SimpleHtspConnection;
-import ie.macinnes.tvheadend.BuildConfig;
+import ie.macinnes.htsp.tasks.Authenticator;
 import ie.macinnes.tvheadend.Constants;
+import ie.macinnes.tvheadend.HtspConnectionManager;
 import ie.macinnes.tvheadend.MiscUtils;
 import ie.macinnes.tvheadend.R;
 import ie.macinnes.tvheadend.account.AccountUtils;
@@ -42,13 +42,29 @@ public class EpgSyncService extends Service {
 
     private SharedPreferences mSharedPreferences;
 
-    private AccountManager mAccountManager;
     private Account mAccount;
 
     private SimpleHtspConnection mConnection;
     private EpgSyncTask mEpgSyncTask;
     private DvrDeleteTask mDvrDeleteTask;
 
+    private final Authenticator.Listener mAuthenticationListener = new Authenticator.Listener() {
+        @Override
+        public void onAuthenticationStateChange(@NonNull Authenticator.State state) {
+            if (state == Authenticator.State.AUTHENTICATED && mHandler != null) {
+                // Off the connection manager's lock, we may need to acquire a new connection
+                mHandler.post(mAuthenticatedRunnable);
+            }
+        }
+    };
+
+    private final Runnable mAuthenticatedRunnable = new Runnable() {
+        @Override
+        public void run() {
+            onAuthenticated();
+        }
+    };
+
     public EpgSyncService() {
     }
 
@@ -84,7 +100,6 @@ public class EpgSyncService extends Service {
         mHandlerThread.start();
         mHandler = new Handler(mHandlerThread.getLooper());
 
-        mAccountManager = AccountManager.get(this);
         mAccount = AccountUtils.getActiveAccount(this);
 
         openConnection();
@@ -128,25 +143,45 @@ public class EpgSyncService extends Service {
     }
 
     private void initHtspConnection() {
-        final String hostname = mAccountManager.getUserData(mAccount, Constants.KEY_HOSTNAME);
-        final int port = Integer.parseInt(mAccountManager.getUserData(mAccount, Constants.KEY_HTSP_PORT));
-        final String username = mAccount.name;
-        final String password = mAccountManager.getPassword(mAccount);
-
-        HtspConnection.ConnectionDetails connectionDetails = new HtspConnection.ConnectionDetails(
-                hostname, port, username, password, "android-tvheadend (EPG)",
-                BuildConfig.VERSION_NAME);
+        mConnection = HtspConnectionManager.getInstance(this).acquire();
 
-        mConnection = new SimpleHtspConnection(connectionDetails);
+        if (mConnection == null) {
+            stopSelf();
+            return;
+        }
 
         mEpgSyncTask = new EpgSyncTask(this, mConnection);
         mConnection.addMessageListener(mEpgSyncTask);
-        mConnection.addAuthenticationListener(mEpgSyncTask);
 
         mDvrDeleteTask = new DvrDeleteTask(this, mConnection);
         mConnection.addMessageListener(mDvrDeleteTask);
 
-        mConnection.start();
+        // The connection may already be authenticated, if the TV input got to it first
+        HtspConnectionManager.getInstance(this).addAuthenticationListener(mAuthenticationListener);
+    }
+
+    private void onAuthenticated() {
+        final HtspConnectionManager connectionManager = HtspConnectionManager.getInstance(this);
+
+        if (mConnection == null || mEpgSyncTask == null) {
+            return;
+        }
+
+        if (!connectionManager.isCurrent(mConnection)) {
+            // The account changed, we're told about the new connection authenticating
+            Log.i(TAG, "HTSP connection replaced after an account change, switching over");
+            closeConnection();
+            initHtspConnection();
+            return;
+        }
+
+        if (!connectionManager.claimAsyncMetadata()) {
+            // Another EpgSyncTask, e.g. from before we were restarted, already enabled it
+            Log.d(TAG, "Async metadata already enabled on this HTSP connection");
+            return;
+        }
+
+        mEpgSyncTask.onAuthenticationStateChange(Authenticator.State.AUTHENTICATED);
     }
 
     private void closeConnection() {
@@ -158,14 +193,14 @@ public class EpgSyncService extends Service {
 
         if (mEpgSyncTask != null) {
             mConnection.removeMessageListener(mEpgSyncTask);
-            mConnection.removeAuthenticationListener(mEpgSyncTask);
+            HtspConnectionManager.getInstance(this).removeAuthenticationListener(mAuthenticationListener);
 //            mEpgSyncTask.stop();
             mEpgSyncTask = null;
         }
 
         if (mConnection != null) {
-            Log.d(TAG, "Closing HTSP connection");
-            mConnection.stop();
+            Log.d(TAG, "Releasing HTSP connection");
+            HtspConnectionManager.getInstance(this).release(mConnection);
         }
 
         cleanupConnection();
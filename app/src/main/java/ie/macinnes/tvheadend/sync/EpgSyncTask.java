@@ -600,6 +600,12 @@ public class EpgSyncTask implements HtspMessage.Listener, Authenticator.Listener
             long recordingStart = -1;
             long recordingStop = -1;
 
+            if (files.length > 0) {
+                // Lets the player try the right extractor first, rather than sniffing them all
+                values.put(TvContract.RecordedPrograms.COLUMN_INTERNAL_PROVIDER_FLAG1,
+                        TvContractUtils.getRecordingContainer(files[0].getString("filename", null)));
+            }
+
             for (HtspMessage file : files) {
                 long fileStart = file.getLong("start", -1);
                 long fileStop = file.getLong("stop", -1);
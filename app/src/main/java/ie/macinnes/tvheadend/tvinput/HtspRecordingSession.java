@@ -34,6 +34,7 @@ import ie.macinnes.htsp.HtspNotConnectedException;
 import ie.macinnes.htsp.SimpleHtspConnection;
 import ie.macinnes.tvheadend.Constants;
 import ie.macinnes.tvheadend.TvContractUtils;
+import ie.macinnes.tvheadend.player.StandbySubscriptionPool;
 
 
 @RequiresApi(api = Build.VERSION_CODES.N)
@@ -44,6 +45,7 @@ class HtspRecordingSession extends TvInputService.RecordingSession {
 
     private final Context mContext;
     private final SimpleHtspConnection mConnection;
+    private final StandbySubscriptionPool mStandbySubscriptionPool;
     private final int mSessionNumber;
     private final Handler mHandler;
     private final SharedPreferences mSharedPreferences;
@@ -51,12 +53,15 @@ class HtspRecordingSession extends TvInputService.RecordingSession {
     private Uri mChannelUri;
     private Uri mProgramUri;
     private int mDvrEntryId = INVALID_DVR_ENTRY_ID;
+    private boolean mHoldsTuner = false;
 
-    public HtspRecordingSession(Context context, SimpleHtspConnection connection) {
+    public HtspRecordingSession(Context context, SimpleHtspConnection connection,
+                                StandbySubscriptionPool standbySubscriptionPool) {
         super(context);
 
         mContext = context;
         mConnection = connection;
+        mStandbySubscriptionPool = standbySubscriptionPool;
         mSessionNumber = sSessionCounter.getAndIncrement();
         mHandler = new Handler();
 
@@ -72,6 +77,13 @@ class HtspRecordingSession extends TvInputService.RecordingSession {
 
         mChannelUri = channelUri;
 
+        // The framework considers a tuner in use from here on, make sure it's not being used by a
+        // standby subscription
+        if (!mHoldsTuner && mStandbySubscriptionPool != null) {
+            mStandbySubscriptionPool.acquireTuner();
+            mHoldsTuner = true;
+        }
+
         // I'm not sure we really need to do anything here?
         notifyTuned(channelUri);
     }
@@ -147,5 +159,10 @@ class HtspRecordingSession extends TvInputService.RecordingSession {
     @Override
     public void onRelease() {
         Log.d(TAG, "RecordingSession onRelease (" + mSessionNumber + ")");
+
+        if (mHoldsTuner) {
+            mStandbySubscriptionPool.releaseTuner();
+            mHoldsTuner = false;
+        }
     }
 }
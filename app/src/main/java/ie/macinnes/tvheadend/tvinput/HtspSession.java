@@ -30,7 +30,6 @@ import android.util.SparseArray;
 import android.view.Surface;
 import android.view.View;
 import android.view.accessibility.CaptioningManager;
-import android.widget.Toast;
 
 import com.google.android.exoplayer2.ExoPlaybackException;
 import com.google.android.exoplayer2.Player;
@@ -40,8 +39,10 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import ie.macinnes.htsp.SimpleHtspConnection;
 import ie.macinnes.tvheadend.Constants;
+import ie.macinnes.tvheadend.HtspConnectionManager;
 import ie.macinnes.tvheadend.R;
 import ie.macinnes.tvheadend.TvContractUtils;
+import ie.macinnes.tvheadend.player.StandbySubscriptionPool;
 import ie.macinnes.tvheadend.player.TvheadendPlayer;
 
 // TODO: Rename?
@@ -49,6 +50,14 @@ public class HtspSession extends TvInputService.Session implements TvheadendPlay
     private static final String TAG = HtspSession.class.getName();
     private static final AtomicInteger sSessionCounter = new AtomicInteger();
 
+    // Give the newly tuned channel time to claim its standby subscription, and avoid churning
+    // subscriptions while the user is flicking through channels
+    private static final long STANDBY_UPDATE_DELAY_MS = 5000;
+
+    // How long a tune waits for the HTSP connection to authenticate, e.g. just after waking up,
+    // before trying anyway
+    private static final long AUTHENTICATION_WAIT_MS = 10000;
+
     private final Context mContext;
     private final int mSessionNumber;
     private final Handler mHandler;
@@ -56,10 +65,14 @@ public class HtspSession extends TvInputService.Session implements TvheadendPlay
     private final SharedPreferences mSharedPreferences;
 
     private final TvheadendPlayer mTvheadendPlayer;
+    private final StandbySubscriptionPool mStandbySubscriptionPool;
+    private boolean mHoldsTuner = false;
 
     private Runnable mPlayChannelRunnable;
+    private Runnable mUpdateStandbyRunnable;
 
-    public HtspSession(Context context, SimpleHtspConnection connection) {
+    public HtspSession(Context context, SimpleHtspConnection connection,
+                       StandbySubscriptionPool standbySubscriptionPool) {
         super(context);
 
         mContext = context;
@@ -72,7 +85,8 @@ public class HtspSession extends TvInputService.Session implements TvheadendPlay
 
         Log.d(TAG, "HtspSession created (" + mSessionNumber + ")");
 
-        mTvheadendPlayer = new TvheadendPlayer(mContext, connection, this);
+        mStandbySubscriptionPool = standbySubscriptionPool;
+        mTvheadendPlayer = new TvheadendPlayer(mContext, connection, mStandbySubscriptionPool, this);
 
         setOverlayViewEnabled(true);
     }
@@ -80,6 +94,11 @@ public class HtspSession extends TvInputService.Session implements TvheadendPlay
     @Override
     public void onRelease() {
         Log.d(TAG, "Session onRelease (" + mSessionNumber + ")");
+        cancelPlayRunnable();
+        mHandler.removeCallbacks(mUpdateStandbyRunnable);
+
+        // Before the player is released, which would make us look like the primary session
+        releaseTuner();
         mTvheadendPlayer.release();
     }
 
@@ -92,9 +111,7 @@ public class HtspSession extends TvInputService.Session implements TvheadendPlay
         // Notify we are busy tuning
         notifyVideoUnavailable(TvInputManager.VIDEO_UNAVAILABLE_REASON_TUNING);
 
-        mHandler.removeCallbacks(mPlayChannelRunnable);
-        mPlayChannelRunnable = new PlayChannelRunnable(channelUri);
-        mHandler.post(mPlayChannelRunnable);
+        postPlayRunnable(new PlayChannelRunnable(channelUri));
 
         return true;
     }
@@ -107,9 +124,7 @@ public class HtspSession extends TvInputService.Session implements TvheadendPlay
         // Notify we are busy tuning
         notifyVideoUnavailable(TvInputManager.VIDEO_UNAVAILABLE_REASON_TUNING);
 
-        mHandler.removeCallbacks(mPlayChannelRunnable);
-        mPlayChannelRunnable = new PlayRecordedProgramRunnable(recordedProgramUri);
-        mHandler.post(mPlayChannelRunnable);
+        postPlayRunnable(new PlayRecordedProgramRunnable(recordedProgramUri));
     }
 
     @Override
@@ -204,7 +219,7 @@ public class HtspSession extends TvInputService.Session implements TvheadendPlay
     public void onTimeShiftSetPlaybackParams(PlaybackParams params) {
         Log.d(TAG, "onTimeShiftSetPlaybackParams: " + params);
 
-        Toast.makeText(mContext, "Unsupported", Toast.LENGTH_SHORT).show();
+        mTvheadendPlayer.setPlaybackParams(params);
     }
 
     @RequiresApi(api = Build.VERSION_CODES.M)
@@ -219,6 +234,44 @@ public class HtspSession extends TvInputService.Session implements TvheadendPlay
         return mTvheadendPlayer.getTimeshiftCurrentPosition();
     }
 
+    // Misc Internal Methods
+    private void postPlayRunnable(Runnable runnable) {
+        cancelPlayRunnable();
+        mPlayChannelRunnable = runnable;
+
+        // The connection may still be coming up, e.g. just after waking up, in which case playback
+        // starts as soon as it's authenticated rather than failing to subscribe
+        HtspConnectionManager.getInstance(mContext).postWhenAuthenticated(
+                mHandler, mPlayChannelRunnable, AUTHENTICATION_WAIT_MS);
+    }
+
+    /**
+     * Gives up our tuner, along with the standby subscriptions if we're the session they were
+     * kept for, as nobody else has any use for them.
+     */
+    private void releaseTuner() {
+        if (mStandbySubscriptionPool == null) {
+            return;
+        }
+
+        if (mHoldsTuner) {
+            mStandbySubscriptionPool.releaseTuner();
+            mHoldsTuner = false;
+        }
+
+        if (mTvheadendPlayer.isPrimarySession()) {
+            mStandbySubscriptionPool.release();
+        }
+    }
+
+    private void cancelPlayRunnable() {
+        if (mPlayChannelRunnable != null) {
+            mHandler.removeCallbacks(mPlayChannelRunnable);
+            HtspConnectionManager.getInstance(mContext).removePending(mPlayChannelRunnable);
+            mPlayChannelRunnable = null;
+        }
+    }
+
     // Inner Classes
     private class PlayChannelRunnable implements Runnable {
         private final Uri mChannelUri;
@@ -231,9 +284,21 @@ public class HtspSession extends TvInputService.Session implements TvheadendPlay
             Log.i(TAG, "Start playback of channel");
             Uri channelUri = Uri.parse("htsp://channel/" + tvhChannelId);
 
+            if (!mHoldsTuner && mStandbySubscriptionPool != null) {
+                mStandbySubscriptionPool.acquireTuner();
+                mHoldsTuner = true;
+            }
+
             mTvheadendPlayer.open(channelUri);
             mTvheadendPlayer.play();
 
+            // Standby subscriptions are only worth their tuners and memory for the main session
+            if (mStandbySubscriptionPool != null && mTvheadendPlayer.isPrimarySession()) {
+                mHandler.removeCallbacks(mUpdateStandbyRunnable);
+                mUpdateStandbyRunnable = new UpdateStandbyRunnable(mChannelUri);
+                mHandler.postDelayed(mUpdateStandbyRunnable, STANDBY_UPDATE_DELAY_MS);
+            }
+
             boolean timeshiftEnabled = mSharedPreferences.getBoolean(
                     Constants.KEY_TIMESHIFT_ENABLED,
                     mContext.getResources().getBoolean(R.bool.pref_default_timeshift_enabled));
@@ -257,6 +322,19 @@ public class HtspSession extends TvInputService.Session implements TvheadendPlay
         }
     }
 
+    private class UpdateStandbyRunnable implements Runnable {
+        private final Uri mChannelUri;
+
+        public UpdateStandbyRunnable(Uri channelUri) {
+            mChannelUri = channelUri;
+        }
+
+        @Override
+        public void run() {
+            mStandbySubscriptionPool.update(mChannelUri);
+        }
+    }
+
     private class PlayRecordedProgramRunnable implements Runnable {
         private final Uri mRecordedProgramUri;
 
@@ -264,9 +342,15 @@ public class HtspSession extends TvInputService.Session implements TvheadendPlay
             mRecordedProgramUri = recordedProgramUri;
         }
 
-        private boolean tune(int dvrEntryId) {
+        private boolean tune(int dvrEntryId, int container) {
             Log.i(TAG, "Start playback of DVR entry");
-            Uri recordedProgramUri = Uri.parse("htsp://dvrfile/" + dvrEntryId);
+            Uri recordedProgramUri = Uri.parse("htsp://dvrfile/" + dvrEntryId).buildUpon()
+                    .appendQueryParameter(TvheadendPlayer.QUERY_PARAMETER_CONTAINER, String.valueOf(container))
+                    .build();
+
+            // Recordings are played back from disk, no tuner required
+            mHandler.removeCallbacks(mUpdateStandbyRunnable);
+            releaseTuner();
 
             mTvheadendPlayer.open(recordedProgramUri);
             mTvheadendPlayer.play();
@@ -287,7 +371,7 @@ public class HtspSession extends TvInputService.Session implements TvheadendPlay
             Integer tvhDvrEntryId = TvContractUtils.getTvhDvrEntryIdFromRecordedProgramUri(mContext, mRecordedProgramUri);
 
             if (tvhDvrEntryId != null) {
-                tune(tvhDvrEntryId);
+                tune(tvhDvrEntryId, TvContractUtils.getRecordingContainerFromRecordedProgramUri(mContext, mRecordedProgramUri));
             } else {
                 Log.w(TAG, "Failed to get recorded program info for " + mRecordedProgramUri);
             }
@@ -15,10 +15,11 @@ under the License.
 package ie.macinnes.tvheadend.tvinput;
 
 import android.accounts.Account;
-import android.accounts.AccountManager;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.media.tv.TvInputInfo;
 import android.media.tv.TvInputManager;
@@ -27,13 +28,14 @@ import android.support.annotation.Nullable;
 import android.support.annotation.RequiresApi;
 import android.util.Log;
 
-import ie.macinnes.htsp.HtspConnection;
 import ie.macinnes.htsp.SimpleHtspConnection;
-import ie.macinnes.tvheadend.BuildConfig;
 import ie.macinnes.tvheadend.Constants;
+import ie.macinnes.tvheadend.HtspConnectionManager;
 import ie.macinnes.tvheadend.MiscUtils;
 import ie.macinnes.tvheadend.R;
 import ie.macinnes.tvheadend.account.AccountUtils;
+import ie.macinnes.tvheadend.player.CodecCapabilityCache;
+import ie.macinnes.tvheadend.player.StandbySubscriptionPool;
 import ie.macinnes.tvheadend.sync.EpgSyncService;
 
 
@@ -41,12 +43,20 @@ public class TvInputService extends android.media.tv.TvInputService {
     private static final String TAG = TvInputService.class.getName();
 
     private SimpleHtspConnection mConnection;
+    private StandbySubscriptionPool mStandbySubscriptionPool;
 
-    private AccountManager mAccountManager;
     private Account mAccount;
 
     private SharedPreferences mSharedPreferences;
 
+    private final BroadcastReceiver mScreenOnReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Log.d(TAG, "Screen on, warming up HTSP connection");
+            HtspConnectionManager.getInstance(context).warmUp();
+        }
+    };
+
     @Override
     public void onCreate() {
         super.onCreate();
@@ -54,12 +64,17 @@ public class TvInputService extends android.media.tv.TvInputService {
         mSharedPreferences = getSharedPreferences(
                 Constants.PREFERENCE_TVHEADEND, Context.MODE_PRIVATE);
 
-        mAccountManager = AccountManager.get(this);
         mAccount = AccountUtils.getActiveAccount(this);
 
+        // Get decoder probing out of the way before the first session needs a player
+        CodecCapabilityCache.getInstance(this).prewarm();
+
         openConnection();
         maybeEnableDvr();
 
+        // Coming out of standby, the user is likely about to tune
+        registerReceiver(mScreenOnReceiver, new IntentFilter(Intent.ACTION_SCREEN_ON));
+
         // Start the EPG Sync Service
         getApplicationContext().startService(new Intent(getApplicationContext(), EpgSyncService.class));
     }
@@ -68,6 +83,7 @@ public class TvInputService extends android.media.tv.TvInputService {
     public void onDestroy() {
         super.onDestroy();
 
+        unregisterReceiver(mScreenOnReceiver);
         closeConnection();
     }
 
@@ -76,7 +92,16 @@ public class TvInputService extends android.media.tv.TvInputService {
     public Session onCreateSession(String inputId) {
         Log.d(TAG, "Creating new TvInputService HtspSession for input ID: " + inputId + ".");
 
-        return new HtspSession(this, mConnection);
+        // Our input has been selected, make sure the connection is ready for the first tune
+        HtspConnectionManager.getInstance(this).warmUp();
+
+        if (mConnection != null && !HtspConnectionManager.getInstance(this).isCurrent(mConnection)) {
+            Log.i(TAG, "HTSP connection replaced after an account change, switching over");
+            closeConnection();
+            initHtspConnection();
+        }
+
+        return new HtspSession(this, mConnection, mStandbySubscriptionPool);
     }
 
     @RequiresApi(api = Build.VERSION_CODES.N)
@@ -85,7 +110,7 @@ public class TvInputService extends android.media.tv.TvInputService {
     public RecordingSession onCreateRecordingSession(String inputId) {
         Log.d(TAG, "Creating new TvInputService HtspRecordingSession for input ID: " + inputId + ".");
 
-        return new HtspRecordingSession(this, mConnection);
+        return new HtspRecordingSession(this, mConnection, mStandbySubscriptionPool);
     }
 
     private void maybeEnableDvr() {
@@ -130,23 +155,23 @@ public class TvInputService extends android.media.tv.TvInputService {
     }
 
     private void initHtspConnection() {
-        final String hostname = mAccountManager.getUserData(mAccount, Constants.KEY_HOSTNAME);
-        final int port = Integer.parseInt(mAccountManager.getUserData(mAccount, Constants.KEY_HTSP_PORT));
-        final String username = mAccount.name;
-        final String password = mAccountManager.getPassword(mAccount);
+        mConnection = HtspConnectionManager.getInstance(this).acquire();
 
-        HtspConnection.ConnectionDetails connectionDetails = new HtspConnection.ConnectionDetails(
-                hostname, port, username, password, "android-tvheadend (TV)",
-                BuildConfig.VERSION_NAME);
+        if (mConnection == null) {
+            return;
+        }
 
-        mConnection = new SimpleHtspConnection(connectionDetails);
-        mConnection.start();
+        mStandbySubscriptionPool = new StandbySubscriptionPool(this, mConnection);
     }
 
     private void closeConnection() {
+        if (mStandbySubscriptionPool != null) {
+            mStandbySubscriptionPool.release();
+        }
+
         if (mConnection != null) {
-            Log.d(TAG, "Closing HTSP connection");
-            mConnection.stop();
+            Log.d(TAG, "Releasing HTSP connection");
+            HtspConnectionManager.getInstance(this).release(mConnection);
         }
 
         cleanupConnection();
@@ -154,5 +179,6 @@ public class TvInputService extends android.media.tv.TvInputService {
 
     private void cleanupConnection() {
         mConnection = null;
+        mStandbySubscriptionPool = null;
     }
 }
@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.player;
+
+import com.google.android.exoplayer2.util.ParsableByteArray;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import ie.macinnes.htsp.HtspMessage;
+import ie.macinnes.tvheadend.player.reader.Muxpkt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HtspFramingTest {
+    private static final byte[] PAYLOAD = new byte[]{1, 2, 3, 4, 5, 6, 7};
+
+    @Test
+    public void muxpktRoundTrip() throws IOException {
+        HtspMessage message = new HtspMessage();
+        message.put("method", "muxpkt");
+        message.put("stream", 3);
+        message.put("frametype", 73);
+        message.put("pts", 123456789L);
+        message.put("dts", 123450000L);
+        message.put("duration", 40000);
+
+        Muxpkt decoded = decodeMuxpkt(encodeMuxpkt(message, PAYLOAD), new Muxpkt());
+
+        assertEquals(3, decoded.getStream());
+        assertEquals(73, decoded.getFrameType());
+        assertTrue(decoded.hasPts());
+        assertEquals(123456789L, decoded.getPts());
+        assertTrue(decoded.hasDts());
+        assertEquals(123450000L, decoded.getDts());
+        assertEquals(40000, decoded.getDuration());
+        assertPayload(PAYLOAD, decoded);
+    }
+
+    @Test
+    public void muxpktWithoutTimestamps() throws IOException {
+        HtspMessage message = new HtspMessage();
+        message.put("method", "muxpkt");
+        message.put("stream", 1);
+
+        Muxpkt decoded = decodeMuxpkt(encodeMuxpkt(message, PAYLOAD), new Muxpkt());
+
+        assertFalse(decoded.hasPts());
+        assertFalse(decoded.hasDts());
+        assertEquals(Muxpkt.FRAME_TYPE_UNKNOWN, decoded.getFrameType());
+        assertEquals(0, decoded.getDuration());
+    }
+
+    @Test
+    public void muxpktPayloadBufferIsReused() {
+        HtspMessage message = new HtspMessage();
+        message.put("stream", 1);
+
+        Muxpkt muxpkt = new Muxpkt();
+
+        decodeMuxpkt(encodeMuxpkt(message, PAYLOAD), muxpkt);
+        final byte[] buffer = muxpkt.getPayload();
+
+        // A smaller payload fits in the same buffer, only the first bytes are valid
+        decodeMuxpkt(encodeMuxpkt(message, new byte[]{9, 8}), muxpkt);
+
+        assertSame(buffer, muxpkt.getPayload());
+        assertPayload(new byte[]{9, 8}, muxpkt);
+    }
+
+    @Test
+    public void muxpktDecodingDoesNotAllocate() {
+        Assume.assumeTrue(isAllocationCountingSupported());
+
+        HtspMessage message = new HtspMessage();
+        message.put("stream", 3);
+        message.put("frametype", 73);
+        message.put("pts", 123456789L);
+        message.put("dts", 123450000L);
+        message.put("duration", 40000);
+
+        final ParsableByteArray data = new ParsableByteArray(encodeMuxpkt(message, new byte[1500]));
+        final Muxpkt muxpkt = new Muxpkt();
+
+        // Warm up, growing the payload buffer and letting the JIT settle
+        for (int i = 0; i < 10000; i++) {
+            decodeMuxpkt(data, muxpkt);
+        }
+
+        final int iterations = 100000;
+        final long allocatedBefore = getAllocatedBytes();
+
+        for (int i = 0; i < iterations; i++) {
+            decodeMuxpkt(data, muxpkt);
+        }
+
+        final long allocated = getAllocatedBytes() - allocatedBefore;
+
+        // Allows for anything allocated by the measurement itself
+        assertEquals("Bytes allocated per muxpkt", 0, allocated / iterations);
+        assertEquals(123456789L, muxpkt.getPts());
+    }
+
+    @Test
+    public void muxpktFrameSize() {
+        HtspMessage message = new HtspMessage();
+        message.put("stream", 1);
+
+        byte[] header = new byte[HtspFraming.FRAME_LENGTH_SIZE + HtspFraming.MUXPKT_HEADER_SIZE];
+        int headerLength = HtspFraming.writeMuxpktHeader(header, message, PAYLOAD.length);
+
+        assertEquals(header.length, headerLength);
+        assertEquals(headerLength + PAYLOAD.length, HtspFraming.getMuxpktFrameSize(PAYLOAD.length));
+    }
+
+    @Test
+    public void subscriptionStartRoundTrip() throws IOException {
+        HtspMessage message = new HtspMessage();
+        message.put("method", "subscriptionStart");
+        message.put("subscriptionId", 42);
+
+        HtspMessage decoded = decode(HtspFraming.encodeSubscriptionStart(message, false));
+
+        assertEquals("subscriptionStart", decoded.getString("method"));
+        assertEquals(42, decoded.getInteger("subscriptionId"));
+    }
+
+    @Test
+    public void cachedSubscriptionStartRoundTrip() throws IOException {
+        HtspMessage message = new HtspMessage();
+        message.put("method", "subscriptionStart");
+        message.put("subscriptionId", 42);
+
+        HtspMessage decoded = decode(HtspFraming.encodeSubscriptionStart(message, true));
+
+        assertEquals("cachedSubscriptionStart", decoded.getString("method"));
+        assertEquals(42, decoded.getInteger("subscriptionId"));
+    }
+
+    @Test
+    public void timeshiftStatusRoundTrip() throws IOException {
+        byte[] frame = new byte[HtspFraming.FRAME_LENGTH_SIZE + HtspFraming.TIMESHIFT_STATUS_HEADER_SIZE];
+        assertEquals(frame.length, HtspFraming.writeTimeshiftStatus(frame, 987654321L));
+
+        HtspMessage decoded = decode(frame);
+
+        assertEquals("timeshiftStatus", decoded.getString("method"));
+        assertEquals(987654321L, decoded.getLong("start"));
+    }
+
+    @Test
+    public void unknownFrameType() throws IOException {
+        assertNull(decode(new byte[]{0, 0, 0, 1, 99}));
+    }
+
+    @Test
+    public void framesAreReadInSequence() throws IOException {
+        HtspMessage first = new HtspMessage();
+        first.put("stream", 1);
+        HtspMessage second = new HtspMessage();
+        second.put("stream", 2);
+
+        byte[] firstFrame = encodeMuxpkt(first, PAYLOAD);
+        byte[] secondFrame = encodeMuxpkt(second, new byte[0]);
+
+        byte[] frames = new byte[firstFrame.length + secondFrame.length];
+        System.arraycopy(firstFrame, 0, frames, 0, firstFrame.length);
+        System.arraycopy(secondFrame, 0, frames, firstFrame.length, secondFrame.length);
+
+        ParsableByteArray data = new ParsableByteArray(frames);
+        Muxpkt muxpkt = new Muxpkt();
+
+        int frameLength = data.readInt();
+        assertEquals(HtspFraming.FRAME_TYPE_MUXPKT, HtspFraming.readFrameType(data));
+        HtspFraming.readMuxpkt(data, frameLength, muxpkt);
+        assertEquals(1, muxpkt.getStream());
+
+        frameLength = data.readInt();
+        assertEquals(HtspFraming.FRAME_TYPE_MUXPKT, HtspFraming.readFrameType(data));
+        HtspFraming.readMuxpkt(data, frameLength, muxpkt);
+        assertEquals(2, muxpkt.getStream());
+        assertEquals(0, muxpkt.getPayloadLength());
+        assertEquals(0, data.bytesLeft());
+    }
+
+    // Misc Internal Methods
+    static byte[] encodeMuxpkt(HtspMessage message, byte[] payload) {
+        byte[] frame = new byte[HtspFraming.getMuxpktFrameSize(payload.length)];
+
+        int headerLength = HtspFraming.writeMuxpktHeader(frame, message, payload.length);
+        System.arraycopy(payload, 0, frame, headerLength, payload.length);
+
+        return frame;
+    }
+
+    private static HtspMessage decode(byte[] frame) throws IOException {
+        ParsableByteArray data = new ParsableByteArray(frame);
+        int frameLength = data.readInt();
+
+        assertEquals(frame.length - HtspFraming.FRAME_LENGTH_SIZE, frameLength);
+
+        HtspMessage message = HtspFraming.readMessage(data, HtspFraming.readFrameType(data), frameLength);
+        assertEquals(0, data.bytesLeft());
+
+        return message;
+    }
+
+    private static Muxpkt decodeMuxpkt(byte[] frame, Muxpkt muxpkt) {
+        ParsableByteArray data = new ParsableByteArray(frame);
+        decodeMuxpkt(data, muxpkt);
+        assertEquals(0, data.bytesLeft());
+
+        return muxpkt;
+    }
+
+    private static void decodeMuxpkt(ParsableByteArray data, Muxpkt muxpkt) {
+        data.setPosition(0);
+
+        final int frameLength = data.readInt();
+        if (HtspFraming.readFrameType(data) != HtspFraming.FRAME_TYPE_MUXPKT) {
+            throw new AssertionError("Not a muxpkt frame");
+        }
+
+        HtspFraming.readMuxpkt(data, frameLength, muxpkt);
+    }
+
+    private static void assertPayload(byte[] expected, Muxpkt muxpkt) {
+        assertEquals(expected.length, muxpkt.getPayloadLength());
+        assertArrayEquals(expected, Arrays.copyOf(muxpkt.getPayload(), muxpkt.getPayloadLength()));
+    }
+
+    private static boolean isAllocationCountingSupported() {
+        return ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).isThreadAllocatedMemoryEnabled();
+    }
+
+    private static long getAllocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.player;
+
+import com.google.android.exoplayer2.SeekParameters;
+import com.google.android.exoplayer2.extractor.SeekMap;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class KeyframeIndexTest {
+    private static final long DEFAULT = -1;
+
+    @Test
+    public void emptyIndex() {
+        KeyframeIndex index = new KeyframeIndex(10);
+
+        assertTrue(index.isEmpty());
+        assertEquals(DEFAULT, index.findPosition(1000, DEFAULT));
+        assertEquals(DEFAULT, index.findPts(1000, DEFAULT));
+        assertEquals(DEFAULT, index.getFirstPts(DEFAULT));
+        assertEquals(DEFAULT, index.getLastPts(DEFAULT));
+    }
+
+    @Test
+    public void findsLastEntryAtOrBefore() {
+        KeyframeIndex index = createIndex(10, 5);
+
+        assertFalse(index.isEmpty());
+
+        // Entries are pts 1000, 2000, ... at positions 100, 200, ...
+        assertEquals(300, index.findPosition(3000, DEFAULT));
+        assertEquals(300, index.findPosition(3999, DEFAULT));
+        assertEquals(500, index.findPosition(99999, DEFAULT));
+
+        assertEquals(3000, index.findPts(300, DEFAULT));
+        assertEquals(3000, index.findPts(399, DEFAULT));
+        assertEquals(DEFAULT, index.findPts(99, DEFAULT));
+
+        assertEquals(1000, index.getFirstPts(DEFAULT));
+        assertEquals(5000, index.getLastPts(DEFAULT));
+    }
+
+    @Test
+    public void positionBeforeFirstEntryIsOldestEntry() {
+        KeyframeIndex index = createIndex(10, 5);
+
+        assertEquals(100, index.findPosition(0, DEFAULT));
+    }
+
+    @Test
+    public void addingBackwardsDropsLaterEntries() {
+        KeyframeIndex index = createIndex(10, 5);
+
+        index.add(2500, 250);
+
+        assertEquals(2500, index.getLastPts(DEFAULT));
+        assertEquals(250, index.findPosition(4000, DEFAULT));
+    }
+
+    @Test
+    public void oldestEntriesAreDroppedAtMaxEntries() {
+        KeyframeIndex index = createIndex(3, 5);
+
+        assertEquals(3000, index.getFirstPts(DEFAULT));
+        assertEquals(5000, index.getLastPts(DEFAULT));
+    }
+
+    @Test
+    public void growsAndCompactsPastInitialCapacity() {
+        KeyframeIndex index = createIndex(300, 1000);
+
+        assertEquals(701000, index.getFirstPts(DEFAULT));
+        assertEquals(1000000, index.getLastPts(DEFAULT));
+        assertEquals(80000, index.findPosition(800500, DEFAULT));
+    }
+
+    @Test
+    public void trimToPosition() {
+        KeyframeIndex index = createIndex(10, 5);
+
+        index.trimToPosition(250);
+
+        assertEquals(3000, index.getFirstPts(DEFAULT));
+    }
+
+    @Test
+    public void trimToPts() {
+        KeyframeIndex index = createIndex(10, 5);
+
+        index.trimToPts(3000);
+        assertEquals(3000, index.getFirstPts(DEFAULT));
+
+        index.trimToPts(10000);
+        assertTrue(index.isEmpty());
+    }
+
+    @Test
+    public void clear() {
+        KeyframeIndex index = createIndex(10, 5);
+
+        index.clear();
+
+        assertTrue(index.isEmpty());
+    }
+
+    @Test
+    public void seekPointsEitherSide() {
+        KeyframeIndex index = createIndex(10, 5);
+
+        SeekMap.SeekPoints seekPoints = index.getSeekPoints(2500);
+        assertEquals(2000, seekPoints.first.timeUs);
+        assertEquals(200, seekPoints.first.position);
+        assertEquals(3000, seekPoints.second.timeUs);
+        assertEquals(300, seekPoints.second.position);
+
+        // An exact match, or anything after the last entry, has a single seek point
+        seekPoints = index.getSeekPoints(2000);
+        assertEquals(2000, seekPoints.first.timeUs);
+        assertEquals(seekPoints.first, seekPoints.second);
+
+        seekPoints = index.getSeekPoints(9000);
+        assertEquals(5000, seekPoints.first.timeUs);
+        assertEquals(seekPoints.first, seekPoints.second);
+
+        // Before the first entry, the first entry is the best there is
+        seekPoints = index.getSeekPoints(0);
+        assertEquals(1000, seekPoints.first.timeUs);
+    }
+
+    @Test
+    public void adjustedSeekPosition() {
+        KeyframeIndex index = createIndex(10, 5);
+
+        assertEquals(2400, index.getAdjustedSeekPositionUs(2400, SeekParameters.EXACT));
+        assertEquals(2000, index.getAdjustedSeekPositionUs(2400, SeekParameters.CLOSEST_SYNC));
+        assertEquals(3000, index.getAdjustedSeekPositionUs(2600, SeekParameters.CLOSEST_SYNC));
+        assertEquals(2000, index.getAdjustedSeekPositionUs(2600, SeekParameters.PREVIOUS_SYNC));
+        assertEquals(3000, index.getAdjustedSeekPositionUs(2400, SeekParameters.NEXT_SYNC));
+    }
+
+    // Misc Internal Methods
+    /**
+     * Returns an index with count entries, pts 1000, 2000, ... at positions 100, 200, ...
+     */
+    private static KeyframeIndex createIndex(int maxEntries, int count) {
+        KeyframeIndex index = new KeyframeIndex(maxEntries);
+
+        for (int i = 1; i <= count; i++) {
+            index.add(i * 1000, i * 100);
+        }
+
+        return index;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.player;
+
+import com.google.android.exoplayer2.C;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ie.macinnes.htsp.HtspMessage;
+import ie.macinnes.tvheadend.player.reader.Muxpkt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class PtsSplicerTest {
+    private PtsSplicer mSplicer;
+
+    @Before
+    public void setUp() {
+        mSplicer = new PtsSplicer("test");
+    }
+
+    @Test
+    public void firstSubscriptionIsUnchanged() {
+        mSplicer.onSubscriptionStart();
+
+        HtspMessage message = adjust(muxpkt(5000000L, 4900000L, 40000));
+
+        assertEquals(5000000L, message.getLong("pts"));
+        assertEquals(4900000L, message.getLong("dts"));
+    }
+
+    @Test
+    public void resubscriptionCarriesOnFromTheEnd() {
+        mSplicer.onSubscriptionStart();
+        adjust(muxpkt(5000000L, 5000000L, 40000));
+        adjust(muxpkt(5040000L, 5040000L, 40000));
+
+        // The new subscription starts its timestamps from scratch
+        mSplicer.onSubscriptionStart();
+        HtspMessage first = adjust(muxpkt(100000L, 60000L, 40000));
+        HtspMessage second = adjust(muxpkt(140000L, 100000L, 40000));
+
+        assertEquals(5080000L, first.getLong("pts"));
+        assertEquals(5040000L, first.getLong("dts"));
+        assertEquals(5120000L, second.getLong("pts"));
+        assertEquals(5080000L, second.getLong("dts"));
+    }
+
+    @Test
+    public void packetsWithoutPtsAreLeftAlone() {
+        mSplicer.onSubscriptionStart();
+        adjust(muxpkt(5000000L, 5000000L, 40000));
+        mSplicer.onSubscriptionStart();
+
+        HtspMessage message = new HtspMessage();
+        message.put("dts", 100000L);
+        adjust(message);
+
+        assertFalse(message.containsKey("pts"));
+        assertEquals(100000L, message.getLong("dts"));
+
+        // The splice still happens on the first packet with a PTS
+        assertEquals(5040000L, adjust(muxpkt(100000L, 100000L, 40000)).getLong("pts"));
+    }
+
+    @Test
+    public void prepareSpliceBeforeAnyPackets() {
+        assertEquals(C.TIME_UNSET, mSplicer.prepareSplice());
+    }
+
+    @Test
+    public void prepareSpliceRoundsUpToWholeMilliseconds() {
+        mSplicer.onSubscriptionStart();
+        adjust(muxpkt(5000000L, 5000000L, 40001));
+
+        assertEquals(5041000L, mSplicer.prepareSplice());
+
+        // The next subscription is spliced on at that position
+        mSplicer.onSubscriptionStart();
+        assertEquals(5041000L, adjust(muxpkt(100000L, 100000L, 40000)).getLong("pts"));
+    }
+
+    @Test
+    public void muxpktsAreSplicedInPlace() {
+        mSplicer.onSubscriptionStart();
+        adjust(muxpkt(5000000L, 5000000L, 40000));
+        mSplicer.onSubscriptionStart();
+
+        Muxpkt muxpkt = new Muxpkt();
+        muxpkt.set(1, 'I', 100000L, 60000L, 40000);
+        mSplicer.adjust(muxpkt);
+
+        assertEquals(1, muxpkt.getStream());
+        assertEquals('I', muxpkt.getFrameType());
+        assertEquals(5040000L, muxpkt.getPts());
+        assertEquals(5000000L, muxpkt.getDts());
+        assertEquals(40000, muxpkt.getDuration());
+
+        // Messages and muxpkts share the one stream end
+        assertEquals(5080000L, adjust(muxpkt(140000L, 140000L, 40000)).getLong("pts"));
+    }
+
+    @Test
+    public void muxpktsWithoutDtsKeepNone() {
+        mSplicer.onSubscriptionStart();
+        adjust(muxpkt(5000000L, 5000000L, 40000));
+        mSplicer.onSubscriptionStart();
+
+        Muxpkt muxpkt = new Muxpkt();
+        muxpkt.set(1, Muxpkt.FRAME_TYPE_UNKNOWN, 100000L, Muxpkt.NO_TIMESTAMP, 40000);
+        mSplicer.adjust(muxpkt);
+
+        assertEquals(5040000L, muxpkt.getPts());
+        assertFalse(muxpkt.hasDts());
+    }
+
+    // Misc Internal Methods
+    private HtspMessage adjust(HtspMessage message) {
+        mSplicer.adjust(message);
+        return message;
+    }
+
+    private static HtspMessage muxpkt(long pts, long dts, int duration) {
+        HtspMessage message = new HtspMessage();
+        message.put("method", "muxpkt");
+        message.put("pts", pts);
+        message.put("dts", dts);
+        message.put("duration", duration);
+        return message;
+    }
+}
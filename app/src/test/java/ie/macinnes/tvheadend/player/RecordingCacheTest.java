@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.player;
+
+import android.net.Uri;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.cache.Cache;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class RecordingCacheTest {
+    private static final String KEY = "dvrfile/123";
+    private static final String OTHER_KEY = "dvrfile/456";
+
+    private final Map<String, Long> mContentLengths = new HashMap<>();
+    private Cache mCache;
+
+    @Before
+    public void setUp() {
+        mCache = createCache(mContentLengths);
+    }
+
+    @Test
+    public void storedLengthIsForgottenBeforeOpening() throws IOException {
+        // The length stored the first time the recording was played, it has grown since
+        mContentLengths.put(KEY, 1000L);
+
+        RecordingDataSource upstream = new RecordingDataSource(2000);
+        DataSource dataSource = new RecordingCache.LengthResettingDataSource(mCache, upstream);
+
+        assertEquals(2000, dataSource.open(new DataSpec(null, 0, C.LENGTH_UNSET, KEY)));
+        assertEquals(C.LENGTH_UNSET, upstream.mStoredLengthWhenOpened);
+    }
+
+    @Test
+    public void lengthIsForgottenOnEveryOpen() throws IOException {
+        RecordingDataSource upstream = new RecordingDataSource(2000);
+        DataSource dataSource = new RecordingCache.LengthResettingDataSource(mCache, upstream);
+
+        dataSource.open(new DataSpec(null, 0, C.LENGTH_UNSET, KEY));
+        dataSource.close();
+
+        // Stored by the CacheDataSource, having read to the end of the recording
+        mContentLengths.put(KEY, 2000L);
+
+        dataSource.open(new DataSpec(null, 1500, C.LENGTH_UNSET, KEY));
+        assertEquals(C.LENGTH_UNSET, upstream.mStoredLengthWhenOpened);
+    }
+
+    @Test
+    public void otherRecordingsAreLeftAlone() throws IOException {
+        mContentLengths.put(OTHER_KEY, 1000L);
+
+        DataSource dataSource = new RecordingCache.LengthResettingDataSource(mCache, new RecordingDataSource(2000));
+        dataSource.open(new DataSpec(null, 0, C.LENGTH_UNSET, KEY));
+
+        assertEquals(1000L, (long) mContentLengths.get(OTHER_KEY));
+    }
+
+    @Test
+    public void closeIsPassedOn() throws IOException {
+        RecordingDataSource upstream = new RecordingDataSource(2000);
+        DataSource dataSource = new RecordingCache.LengthResettingDataSource(mCache, upstream);
+
+        dataSource.open(new DataSpec(null, 0, C.LENGTH_UNSET, KEY));
+        dataSource.close();
+
+        assertFalse(upstream.mIsOpen);
+    }
+
+    // Misc Internal Methods
+    /**
+     * Returns a Cache which only keeps track of content lengths, in contentLengths.
+     */
+    private static Cache createCache(final Map<String, Long> contentLengths) {
+        return (Cache) Proxy.newProxyInstance(Cache.class.getClassLoader(), new Class<?>[] {Cache.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        switch (method.getName()) {
+                            case "setContentLength":
+                                contentLengths.put((String) args[0], (Long) args[1]);
+                                return null;
+                            case "getContentLength":
+                                final Long length = contentLengths.get(args[0]);
+                                return length != null ? length : C.LENGTH_UNSET;
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    }
+                });
+    }
+
+    // Inner Classes
+    /**
+     * Stands in for the CacheDataSource, noting the length stored in the cache when it is opened.
+     */
+    private class RecordingDataSource implements DataSource {
+        private final long mLength;
+
+        private long mStoredLengthWhenOpened;
+        private boolean mIsOpen = false;
+
+        RecordingDataSource(long length) {
+            mLength = length;
+        }
+
+        @Override
+        public long open(DataSpec dataSpec) {
+            mStoredLengthWhenOpened = mCache.getContentLength(dataSpec.key);
+            mIsOpen = true;
+            return mLength - dataSpec.position;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int readLength) {
+            return C.RESULT_END_OF_INPUT;
+        }
+
+        @Override
+        public Uri getUri() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+            mIsOpen = false;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.player;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+
+import com.google.android.exoplayer2.extractor.SeekMap;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RecordingIndexTest {
+    private static final String DVR_ENTRY_ID = "123";
+    private static final long BASE_PTS = 1000000;
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private Context mContext;
+
+    @Before
+    public void setUp() throws IOException {
+        final File cacheDir = mTemporaryFolder.newFolder("cache");
+
+        mContext = new ContextWrapper(null) {
+            @Override
+            public File getCacheDir() {
+                return cacheDir;
+            }
+        };
+    }
+
+    @Test
+    public void notSeekableWithoutBasePts() {
+        RecordingIndex index = new RecordingIndex(mContext, DVR_ENTRY_ID);
+
+        assertFalse(index.isSeekable());
+
+        index.setBasePts(BASE_PTS);
+
+        assertTrue(index.isSeekable());
+        assertEquals(BASE_PTS, index.getBasePts());
+    }
+
+    @Test
+    public void seekPointsAreRelativeToBasePts() {
+        RecordingIndex index = createIndex();
+
+        SeekMap.SeekPoints seekPoints = index.getSeekPoints(1500000);
+        assertEquals(1000000, seekPoints.first.timeUs);
+        assertEquals(1000, seekPoints.first.position);
+        assertEquals(2000000, seekPoints.second.timeUs);
+        assertEquals(2000, seekPoints.second.position);
+
+        seekPoints = index.getSeekPoints(3000000);
+        assertEquals(3000000, seekPoints.first.timeUs);
+        assertEquals(seekPoints.first, seekPoints.second);
+    }
+
+    @Test
+    public void beforeFirstEntryIsStartOfRecording() {
+        RecordingIndex index = createIndex();
+
+        SeekMap.SeekPoints seekPoints = index.getSeekPoints(500000);
+        assertEquals(0, seekPoints.first.timeUs);
+        assertEquals(0, seekPoints.first.position);
+    }
+
+    @Test
+    public void entriesCloseToExistingOnesAreIgnored() {
+        RecordingIndex index = createIndex();
+
+        index.add(BASE_PTS + 2100000, 2100);
+        index.add(BASE_PTS + 2900000, 2900);
+
+        SeekMap.SeekPoints seekPoints = index.getSeekPoints(2500000);
+        assertEquals(2000000, seekPoints.first.timeUs);
+        assertEquals(3000000, seekPoints.second.timeUs);
+
+        // Entries can be added out of order
+        index.add(BASE_PTS + 2500000, 2500);
+
+        seekPoints = index.getSeekPoints(2600000);
+        assertEquals(2500000, seekPoints.first.timeUs);
+        assertEquals(2500, seekPoints.first.position);
+    }
+
+    @Test
+    public void saveAndLoad() {
+        createIndex().save();
+
+        RecordingIndex index = new RecordingIndex(mContext, DVR_ENTRY_ID);
+
+        assertTrue(index.isSeekable());
+        assertEquals(BASE_PTS, index.getBasePts());
+
+        SeekMap.SeekPoints seekPoints = index.getSeekPoints(2000000);
+        assertEquals(2000000, seekPoints.first.timeUs);
+        assertEquals(2000, seekPoints.first.position);
+    }
+
+    @Test
+    public void notSavedWithoutBasePts() {
+        RecordingIndex index = new RecordingIndex(mContext, DVR_ENTRY_ID);
+        index.add(BASE_PTS, 0);
+        index.save();
+
+        assertFalse(getIndexFile().exists());
+    }
+
+    @Test
+    public void corruptIndexIsDiscarded() throws IOException {
+        File file = getIndexFile();
+        assertTrue(file.getParentFile().mkdirs());
+
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            output.write(new byte[]{0, 0, 0, 1, 2, 3});
+        }
+
+        RecordingIndex index = new RecordingIndex(mContext, DVR_ENTRY_ID);
+
+        assertFalse(index.isSeekable());
+        assertFalse(file.exists());
+    }
+
+    // Misc Internal Methods
+    /**
+     * Returns an index with entries 1, 2 and 3 seconds in, at positions 1000, 2000 and 3000.
+     */
+    private RecordingIndex createIndex() {
+        RecordingIndex index = new RecordingIndex(mContext, DVR_ENTRY_ID);
+        index.setBasePts(BASE_PTS);
+
+        for (int i = 1; i <= 3; i++) {
+            index.add(BASE_PTS + i * 1000000, i * 1000);
+        }
+
+        return index;
+    }
+
+    private File getIndexFile() {
+        return new File(new File(mContext.getCacheDir(), "recording_index"), DVR_ENTRY_ID);
+    }
+}
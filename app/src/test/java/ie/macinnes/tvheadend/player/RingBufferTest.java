@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.player;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RingBufferTest {
+    private static final int CAPACITY = 16;
+
+    private RingBuffer mRingBuffer;
+
+    @Before
+    public void setUp() {
+        mRingBuffer = new RingBuffer(ByteBuffer.allocate(CAPACITY));
+    }
+
+    @Test
+    public void writeThenRead() {
+        assertTrue(mRingBuffer.write(bytes(1, 5), 5, null));
+        assertEquals(5, mRingBuffer.getReadableBytes());
+        assertEquals(CAPACITY - 5, mRingBuffer.getWritableBytes());
+
+        assertArrayEquals(bytes(1, 5), read(5));
+        assertEquals(0, mRingBuffer.getReadableBytes());
+    }
+
+    @Test
+    public void headerAndPayloadAreWrittenTogether() {
+        assertTrue(mRingBuffer.write(bytes(1, 8), 3, bytes(10, 4)));
+
+        assertArrayEquals(new byte[]{1, 2, 3, 10, 11, 12, 13}, read(7));
+    }
+
+    @Test
+    public void readIsLimitedToReadableBytes() {
+        mRingBuffer.write(bytes(1, 3), 3, null);
+
+        byte[] target = new byte[8];
+        assertEquals(3, mRingBuffer.read(target, 0, target.length));
+        assertEquals(0, mRingBuffer.read(target, 0, target.length));
+    }
+
+    @Test
+    public void writeAndReadWrapAround() {
+        // Move the positions close to the end of the storage
+        mRingBuffer.write(bytes(1, 12), 12, null);
+        read(12);
+
+        // Both the header and the payload straddle the end
+        assertTrue(mRingBuffer.write(bytes(20, 6), 6, bytes(40, 6)));
+        assertEquals(12, mRingBuffer.getReadableBytes());
+
+        byte[] expected = new byte[12];
+        System.arraycopy(bytes(20, 6), 0, expected, 0, 6);
+        System.arraycopy(bytes(40, 6), 0, expected, 6, 6);
+        assertArrayEquals(expected, read(12));
+
+        assertEquals(24, mRingBuffer.getWritePosition());
+        assertEquals(24, mRingBuffer.getReadPosition());
+    }
+
+    @Test
+    public void fillsToExactCapacity() {
+        assertTrue(mRingBuffer.write(bytes(1, CAPACITY), CAPACITY, null));
+        assertEquals(0, mRingBuffer.getWritableBytes());
+
+        assertArrayEquals(bytes(1, CAPACITY), read(CAPACITY));
+    }
+
+    @Test
+    public void overflowingWriteWritesNothing() {
+        mRingBuffer.write(bytes(1, 10), 10, null);
+
+        assertFalse(mRingBuffer.write(bytes(50, 4), 4, bytes(60, 4)));
+
+        assertEquals(10, mRingBuffer.getReadableBytes());
+        assertEquals(10, mRingBuffer.getWritePosition());
+        assertArrayEquals(bytes(1, 10), read(10));
+
+        // There is room again once read
+        assertTrue(mRingBuffer.write(bytes(50, 4), 4, bytes(60, 4)));
+    }
+
+    @Test
+    public void overflowsAreCounted() {
+        assertEquals(0, mRingBuffer.getOverflowCount());
+        assertEquals(0, mRingBuffer.getOverflowBytes());
+
+        mRingBuffer.write(bytes(1, 10), 10, null);
+        mRingBuffer.write(bytes(1, 4), 4, bytes(1, 4));
+        mRingBuffer.write(bytes(1, 7), 7, null);
+
+        assertEquals(2, mRingBuffer.getOverflowCount());
+        assertEquals(15, mRingBuffer.getOverflowBytes());
+    }
+
+    @Test
+    public void clearDiscardsReadableBytes() {
+        mRingBuffer.write(bytes(1, 10), 10, null);
+
+        mRingBuffer.clear();
+
+        assertEquals(0, mRingBuffer.getReadableBytes());
+        assertEquals(10, mRingBuffer.getReadPosition());
+    }
+
+    // Misc Internal Methods
+    private byte[] read(int length) {
+        byte[] target = new byte[length];
+        assertEquals(length, mRingBuffer.read(target, 0, length));
+        return target;
+    }
+
+    private static byte[] bytes(int first, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (first + i);
+        }
+        return bytes;
+    }
+}
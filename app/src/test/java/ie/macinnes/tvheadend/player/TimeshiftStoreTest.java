@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.player;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimeshiftStoreTest {
+    private static final int SEGMENT_COUNT = 2;
+    private static final long CAPACITY = (long) SEGMENT_COUNT * TimeshiftStore.SEGMENT_SIZE;
+
+    // Frames don't line up with the segments, so some straddle a segment boundary
+    private static final int FRAME_SIZE = 3 * 1024 * 1024 + 17;
+    private static final int HEADER_SIZE = 16;
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private File mDirectory;
+    private TimeshiftStore mStore;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = mTemporaryFolder.newFolder("timeshift");
+        mStore = new TimeshiftStore(mDirectory, CAPACITY);
+    }
+
+    @After
+    public void tearDown() {
+        mStore.release();
+        TimeshiftStore.releaseSpareSegments();
+    }
+
+    @Test
+    public void sizeIsRoundedDownToWholeSegments() throws IOException {
+        TimeshiftStore store = new TimeshiftStore(mDirectory, CAPACITY + TimeshiftStore.SEGMENT_SIZE / 2);
+
+        assertEquals(CAPACITY, store.getCapacity());
+        store.release();
+    }
+
+    @Test
+    public void sizeIsBoundedInA32BitProcess() {
+        final long size = 1024L * 1024 * 1024;
+
+        assertEquals(TimeshiftStore.MAX_32_BIT_SIZE, TimeshiftStore.boundSize(size, false));
+        assertEquals(size, TimeshiftStore.boundSize(size, true));
+        assertEquals(CAPACITY, TimeshiftStore.boundSize(CAPACITY, false));
+    }
+
+    @Test
+    public void segmentFilesAreDeleted() {
+        assertEquals(0, mDirectory.listFiles().length);
+    }
+
+    @Test
+    public void writeThenReadBack() {
+        assertTrue(writeFrame(0));
+        assertTrue(writeFrame(1));
+
+        assertEquals(2L * FRAME_SIZE, mStore.getWritePosition());
+        assertArrayEquals(frame(0), readFrame(0));
+        assertArrayEquals(frame(1), readFrame(FRAME_SIZE));
+    }
+
+    @Test
+    public void readIsLimitedToWrittenData() {
+        writeFrame(0);
+
+        byte[] target = new byte[FRAME_SIZE];
+        assertEquals(FRAME_SIZE - 10, mStore.read(10, target, 0, target.length));
+        assertEquals(0, mStore.read(FRAME_SIZE, target, 0, target.length));
+    }
+
+    @Test
+    public void peekFrameLength() {
+        writeFrame(0);
+
+        assertEquals(FRAME_SIZE - HtspFraming.FRAME_LENGTH_SIZE, mStore.peekFrameLength(0));
+    }
+
+    @Test
+    public void oldestFramesAreEvicted() {
+        final int frameCount = (int) (CAPACITY / FRAME_SIZE) * 3;
+
+        for (int i = 0; i < frameCount; i++) {
+            assertTrue(writeFrame(i));
+        }
+
+        final long writePosition = mStore.getWritePosition();
+        final int firstRetained = frameCount - (int) (CAPACITY / FRAME_SIZE);
+
+        // Evicted frames can't be read, or looked up
+        assertFalse(mStore.beginFrameRead(0));
+        assertEquals((long) firstRetained * 1000, mStore.getStartPts());
+        assertEquals((long) (frameCount - 1) * 1000, mStore.getEndPts());
+        assertEquals((long) firstRetained * FRAME_SIZE, mStore.findPosition(0));
+
+        // The newest frames are intact, having wrapped around the segments
+        final long position = writePosition - FRAME_SIZE;
+        assertTrue(mStore.beginFrameRead(position));
+        assertArrayEquals(frame(frameCount - 1), readFrame(position));
+        mStore.endFrameRead();
+    }
+
+    @Test
+    public void frameBeingReadIsNotEvicted() {
+        final int framesToFill = (int) (CAPACITY / FRAME_SIZE);
+
+        for (int i = 0; i < framesToFill; i++) {
+            writeFrame(i);
+        }
+
+        assertTrue(mStore.beginFrameRead(0));
+        assertFalse(writeFrame(framesToFill));
+
+        mStore.endFrameRead();
+        assertTrue(writeFrame(framesToFill));
+        assertFalse(mStore.beginFrameRead(0));
+    }
+
+    @Test
+    public void parkedReaderDoesNotStopTheWriter() {
+        final int framesToFill = (int) (CAPACITY / FRAME_SIZE);
+
+        for (int i = 0; i < framesToFill; i++) {
+            writeFrame(i);
+        }
+
+        // Read a whole frame, then stop between frames, e.g. while paused
+        assertTrue(mStore.beginFrameRead(0));
+        readFrame(0);
+        mStore.endFrameRead();
+
+        assertTrue(writeFrame(framesToFill));
+    }
+
+    @Test
+    public void indexLookups() {
+        for (int i = 0; i < 3; i++) {
+            writeFrame(i);
+        }
+
+        assertEquals(FRAME_SIZE, mStore.findPosition(1500));
+        assertEquals(1000, mStore.findPts(FRAME_SIZE + 10));
+        assertEquals(0, mStore.getStartPts());
+        assertEquals(2000, mStore.getEndPts());
+    }
+
+    @Test
+    public void framesWithoutPtsAreNotIndexed() {
+        writeFrame(0);
+        mStore.write(frame(1), HEADER_SIZE, null, null);
+
+        assertEquals(0, mStore.getEndPts());
+        assertEquals(0, mStore.findPosition(5000));
+    }
+
+    @Test
+    public void releasedStoreRefusesReadsAndWrites() {
+        writeFrame(0);
+
+        mStore.release();
+
+        assertTrue(mStore.isReleased());
+        assertFalse(writeFrame(1));
+        assertFalse(mStore.beginFrameRead(0));
+        assertEquals(0, mStore.read(0, new byte[16], 0, 16));
+        assertEquals(HtspDataSource.INVALID_TIMESHIFT_TIME, mStore.getStartPts());
+    }
+
+    @Test
+    public void releasedSegmentsAreReused() throws IOException {
+        writeFrame(0);
+        mStore.release();
+
+        // Segments are only mapped, creating the directory, when there are no spares to reuse
+        File directory = new File(mTemporaryFolder.getRoot(), "unused");
+        mStore = new TimeshiftStore(directory, CAPACITY);
+
+        assertFalse(directory.exists());
+
+        // The new store starts out empty
+        assertEquals(0, mStore.getWritePosition());
+        assertEquals(HtspDataSource.INVALID_TIMESHIFT_TIME, mStore.getStartPts());
+        assertTrue(writeFrame(0));
+        assertArrayEquals(frame(0), readFrame(0));
+    }
+
+    // Misc Internal Methods
+    /**
+     * Writes frame(number), with a PTS of number * 1000.
+     */
+    private boolean writeFrame(int number) {
+        final byte[] frame = frame(number);
+        final byte[] payload = new byte[FRAME_SIZE - HEADER_SIZE];
+        System.arraycopy(frame, HEADER_SIZE, payload, 0, payload.length);
+
+        return mStore.write(frame, HEADER_SIZE, payload, (long) number * 1000);
+    }
+
+    private byte[] readFrame(long position) {
+        byte[] target = new byte[FRAME_SIZE];
+        assertEquals(FRAME_SIZE, mStore.read(position, target, 0, target.length));
+        return target;
+    }
+
+    /**
+     * Returns a frame with a valid length prefix, filled with a pattern unique to number.
+     */
+    private static byte[] frame(int number) {
+        byte[] frame = new byte[FRAME_SIZE];
+
+        for (int i = HtspFraming.FRAME_LENGTH_SIZE; i < FRAME_SIZE; i++) {
+            frame[i] = (byte) (number * 31 + i);
+        }
+
+        final int length = FRAME_SIZE - HtspFraming.FRAME_LENGTH_SIZE;
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+
+        return frame;
+    }
+}